@@ -0,0 +1,133 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.chain.ChainGenerator;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.ModelBuilder;
+import com.github.vitineth.mkvc.token.StreamingTokenizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The text that the benchmarks run over. The <code>book</code> and <code>test</code> corpora are the files in
+ * <code>res/test_data</code> repeated <code>scale</code> times. The <code>synthetic</code> corpus is generated from a
+ * first order model of the book with a fixed seed until it is <code>scale</code> times the length of the book, so it
+ * keeps the shape of real text while its vocabulary of word pairs keeps growing with its size.
+ * <br><br>
+ * The data directory can be moved with the <code>mkvc.corpus.dir</code> system property and defaults to
+ * <code>res/test_data</code> relative to the working directory.
+ */
+final class BenchmarkCorpus {
+
+    /**
+     * The directory holding the real corpora
+     */
+    private static final File DIRECTORY = new File(System.getProperty("mkvc.corpus.dir", "res/test_data"));
+    /**
+     * The seed used to generate the synthetic corpus so every run measures the same text
+     */
+    private static final long SYNTHETIC_SEED = 0x4D4B5643L;
+    /**
+     * The maximum length of each generated chain in the synthetic corpus
+     */
+    private static final int SYNTHETIC_CHAIN_LENGTH = 40;
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * Returns the named corpus scaled up by the given factor.
+     *
+     * @param name  String one of <code>book</code>, <code>test</code> or <code>synthetic</code>
+     * @param scale int the number of times larger than the source file the corpus should be
+     * @return String the text of the corpus
+     * @throws IOException If there is an error reading the source file.
+     */
+    static String load(String name, int scale) throws IOException {
+        switch (name) {
+            case "book":
+                return repeat(read("book.txt"), scale);
+            case "test":
+                return repeat(read("test.data"), scale);
+            case "synthetic":
+                return synthesize(read("book.txt"), scale);
+            default:
+                throw new IllegalArgumentException("Unknown corpus " + name);
+        }
+    }
+
+    /**
+     * Splits the text into tokens in the same way training does.
+     *
+     * @param text String the text
+     * @return String[] the tokens
+     */
+    static String[] tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        try {
+            new StreamingTokenizer(new StringReader(text)).tokenize(tokens::add);
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading from a string cannot fail", e);
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Trains a model of the given order over the text.
+     *
+     * @param text  String the text
+     * @param order int the order of the model
+     * @return MarkovModel the trained model
+     */
+    static MarkovModel train(String text, int order) {
+        ModelBuilder builder = new ModelBuilder(order);
+        builder.addAll(tokenize(text));
+        return builder.build();
+    }
+
+    /**
+     * Reads one of the files in the corpus directory.
+     *
+     * @param file String the name of the file
+     * @return String the contents of the file
+     * @throws IOException If there is an error reading the file.
+     */
+    private static String read(String file) throws IOException {
+        return new String(Files.readAllBytes(new File(DIRECTORY, file).toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Joins the given number of copies of the text, separated by new lines.
+     *
+     * @param text  String the text
+     * @param times int the number of copies
+     * @return String the joined copies
+     */
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times + times);
+        for (int i = 0; i < times; i++) builder.append(text).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * Generates text from a first order model of the source until it is the given number of times longer.
+     *
+     * @param source String the text to model
+     * @param scale  int how many times longer than the source the output should be
+     * @return String the generated text
+     */
+    private static String synthesize(String source, int scale) {
+        ChainGenerator generator = new ChainGenerator(train(source, 1));
+        SplittableRandom random = new SplittableRandom(SYNTHETIC_SEED);
+        long target = (long) source.length() * scale;
+        StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, target + 256));
+        while (builder.length() < target) builder.append(generator.generate(random, SYNTHETIC_CHAIN_LENGTH)).append('\n');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.ModelBuilder;
+import com.github.vitineth.mkvc.model.ParallelTrainer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures counting the transitions of an already tokenized corpus, freezing the counts into a {@link MarkovModel}
+ * and the whole tokenize and count pass of the {@link ParallelTrainer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CountBenchmark {
+
+    /**
+     * The corpus to count, see {@link BenchmarkCorpus}
+     */
+    @Param({"book", "synthetic"})
+    public String corpus;
+    /**
+     * How many times larger than its source file the corpus is
+     */
+    @Param({"1", "16"})
+    public int scale;
+    /**
+     * The order of the model being counted
+     */
+    @Param({"1", "2", "3"})
+    public int order;
+
+    /**
+     * The text of the corpus
+     */
+    private String text;
+    /**
+     * The tokens of the corpus
+     */
+    private String[] tokens;
+    /**
+     * The trainer using every available processor
+     */
+    private ParallelTrainer trainer;
+
+    @Setup
+    public void setup() throws IOException {
+        text = BenchmarkCorpus.load(corpus, scale);
+        tokens = BenchmarkCorpus.tokenize(text);
+        trainer = new ParallelTrainer(order, Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        trainer.shutdown();
+    }
+
+    @Benchmark
+    public ModelBuilder count() {
+        ModelBuilder builder = new ModelBuilder(order);
+        builder.addAll(tokens);
+        return builder;
+    }
+
+    @Benchmark
+    public MarkovModel countAndBuild() {
+        ModelBuilder builder = new ModelBuilder(order);
+        builder.addAll(tokens);
+        return builder.build();
+    }
+
+    @Benchmark
+    public ModelBuilder countParallel() {
+        return trainer.count(text);
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.chain.ChainGenerator;
+import com.github.vitineth.mkvc.chain.StructuredGenerator;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.SyntaxTable;
+import com.github.vitineth.mkvc.model.Vocabulary;
+import com.github.vitineth.mkvc.word.WordType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating a single chain, both a regular chain through {@link ChainGenerator} and a structured chain of
+ * three sentences through {@link StructuredGenerator}. The word types and sentence templates of the structured chains
+ * are assigned at random with a fixed seed so that the benchmark does not depend on the parser model being available,
+ * which does not change the amount of work done per word.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GenerationBenchmark {
+
+    /**
+     * The number of random sentence templates to generate structured chains from
+     */
+    private static final int TEMPLATES = 256;
+
+    /**
+     * The corpus to model, see {@link BenchmarkCorpus}
+     */
+    @Param({"book", "synthetic"})
+    public String corpus;
+    /**
+     * How many times larger than its source file the corpus is
+     */
+    @Param({"1", "16"})
+    public int scale;
+    /**
+     * The order of the model
+     */
+    @Param({"1", "2"})
+    public int order;
+
+    /**
+     * The generator of regular chains
+     */
+    private ChainGenerator generator;
+    /**
+     * The generator of structured chains
+     */
+    private StructuredGenerator structuredGenerator;
+    /**
+     * The random source of both generators
+     */
+    private SplittableRandom random;
+
+    @Setup
+    public void setup() throws IOException {
+        MarkovModel model = BenchmarkCorpus.train(BenchmarkCorpus.load(corpus, scale), order);
+
+        Random setupRandom = new Random(7);
+        WordType[] types = WordType.values();
+        Vocabulary vocabulary = model.getVocabulary();
+        HashMap<String, WordType> wordMap = new HashMap<>();
+        for (int i = 0; i < vocabulary.size(); i++) {
+            wordMap.put(vocabulary.getWord(i), types[setupRandom.nextInt(types.length - 1)]);
+        }
+        List<WordType[]> templates = new ArrayList<>(TEMPLATES);
+        for (int i = 0; i < TEMPLATES; i++) {
+            WordType[] template = new WordType[4 + setupRandom.nextInt(12)];
+            for (int j = 0; j < template.length; j++) template[j] = types[setupRandom.nextInt(types.length - 1)];
+            templates.add(template);
+        }
+        model = model.withSyntax(SyntaxTable.from(vocabulary, wordMap, templates));
+
+        generator = new ChainGenerator(model);
+        structuredGenerator = new StructuredGenerator(model);
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public String regularChain() {
+        return generator.generate(random, MarkovChainsRewrite.MAXIMUM_LENGTH);
+    }
+
+    @Benchmark
+    public String structuredChain() {
+        return structuredGenerator.generate(random, 3);
+    }
+}
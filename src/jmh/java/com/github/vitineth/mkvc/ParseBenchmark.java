@@ -0,0 +1,71 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.nlp.NlpService;
+import com.github.vitineth.mkvc.nlp.ParsedSentence;
+import com.github.vitineth.mkvc.nlp.TaggingMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures tagging every sentence of the test corpus with the {@link NlpService}, once with the full parser and once
+ * with the part of speech tagger. The models are loaded during setup so only tagging is timed. The OpenNLP models must
+ * be in <code>res/opennlp</code> when the benchmarks are packaged or this benchmark fails during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ParseBenchmark {
+
+    /**
+     * How the sentences are tagged
+     */
+    @Param({"PARSER", "POS_TAGGER"})
+    public TaggingMode mode;
+    /**
+     * The number of threads tagging sentences
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    /**
+     * The service being measured
+     */
+    private NlpService service;
+    /**
+     * The sentences of the test corpus
+     */
+    private String[] sentences;
+
+    @Setup
+    public void setup() throws IOException {
+        service = new NlpService(threads, mode);
+        sentences = service.detectSentences(BenchmarkCorpus.load("test", 1));
+        service.parse(sentences);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.close();
+    }
+
+    @Benchmark
+    public ParsedSentence[] parse() throws IOException {
+        return service.parse(sentences);
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.model.AliasTable;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.TransitionTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures picking a single weighted follower, comparing a cumulative walk over the counts of a row with the constant
+ * time {@link AliasTable}. Both sample from the state with the most distinct followers, which is the worst case for the
+ * cumulative walk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SamplingBenchmark {
+
+    /**
+     * The corpus to model, see {@link BenchmarkCorpus}
+     */
+    @Param({"book", "synthetic"})
+    public String corpus;
+    /**
+     * How many times larger than its source file the corpus is
+     */
+    @Param({"1", "16"})
+    public int scale;
+
+    /**
+     * The transitions of the model
+     */
+    private TransitionTable table;
+    /**
+     * The sampling table of the model
+     */
+    private AliasTable aliasTable;
+    /**
+     * The state with the most distinct followers
+     */
+    private int state;
+    /**
+     * The random source of both samplers
+     */
+    private SplittableRandom random;
+
+    @Setup
+    public void setup() throws IOException {
+        MarkovModel model = BenchmarkCorpus.train(BenchmarkCorpus.load(corpus, scale), 1);
+        table = model.getTransitions();
+        for (int i = 1; i < table.getStateCount(); i++) {
+            if (table.getRowEnd(i) - table.getRowStart(i) > table.getRowEnd(state) - table.getRowStart(state)) state = i;
+        }
+        aliasTable = model.getAliasTable();
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public int cumulativeWalk() {
+        int end = table.getRowEnd(state);
+        int value = random.nextInt(table.getTotal(state));
+        for (int i = table.getRowStart(state); i < end; i++) {
+            value -= table.getCount(i);
+            if (value < 0) return i;
+        }
+        return end - 1;
+    }
+
+    @Benchmark
+    public int aliasTable() {
+        return aliasTable.sample(state, random);
+    }
+}
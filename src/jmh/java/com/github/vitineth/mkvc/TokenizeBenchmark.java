@@ -0,0 +1,78 @@
+package com.github.vitineth.mkvc;
+
+import com.github.vitineth.mkvc.model.HashVocabulary;
+import com.github.vitineth.mkvc.token.StreamingTokenizer;
+import com.github.vitineth.mkvc.token.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures splitting a corpus into tokens, with {@link MarkovChainsRewrite#getSegments(String)} over the whole string,
+ * with the chunked {@link StreamingTokenizer} and with the {@link Tokenizer} interning straight into a vocabulary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TokenizeBenchmark {
+
+    /**
+     * The corpus to tokenize, see {@link BenchmarkCorpus}
+     */
+    @Param({"book", "test", "synthetic"})
+    public String corpus;
+    /**
+     * How many times larger than its source file the corpus is
+     */
+    @Param({"1", "16"})
+    public int scale;
+
+    /**
+     * The text of the corpus
+     */
+    private String text;
+    /**
+     * The instance whose tokenizer is measured
+     */
+    private MarkovChainsRewrite rewrite;
+
+    @Setup
+    public void setup() throws IOException {
+        text = BenchmarkCorpus.load(corpus, scale);
+        rewrite = new MarkovChainsRewrite();
+    }
+
+    @Benchmark
+    public String[] getSegments() {
+        return rewrite.getSegments(text);
+    }
+
+    @Benchmark
+    public HashVocabulary tokenizeToIds(Blackhole blackhole) {
+        HashVocabulary vocabulary = new HashVocabulary();
+        char[] chars = text.toCharArray();
+        Tokenizer.tokenize(chars, 0, chars.length, vocabulary, blackhole::consume);
+        return vocabulary;
+    }
+
+    @Benchmark
+    public void streamingTokenizer(Blackhole blackhole) throws IOException {
+        new StreamingTokenizer(new StringReader(text)).tokenize(blackhole::consume);
+    }
+}
@@ -1,10 +1,30 @@
 package com.github.vitineth.mkvc;
 
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.ModelBuilder;
+import com.github.vitineth.mkvc.model.ModelPruner;
+import com.github.vitineth.mkvc.model.ModelFile;
+import com.github.vitineth.mkvc.model.ModelStorage;
+import com.github.vitineth.mkvc.nlp.TaggingMode;
+import com.github.vitineth.mkvc.server.GenerationServer;
+import com.github.vitineth.mkvc.util.metrics.Metrics;
+import com.github.vitineth.mkvc.util.output.LogLevel;
+import com.github.vitineth.mkvc.util.output.Logger;
+import com.github.vitineth.mkvc.util.time.SegmentedTimerTool;
+import com.github.vitineth.mkvc.util.time.TimerTool;
+
+import javax.management.JMException;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * The basic launcher for the program which takes 4 command line arguments: -file, -regular, -english, -timings.
+ * The basic launcher for the program which takes 22 command line arguments: -file (or -train), -regular, -english,
+ * -timings, -order, -threads, -seed, -save, -load, -tagger, -serve, -online, -storage, -mincount, -topk, -minfreq,
+ * -log, -cache, -pipeline, -parsecache, -partial, -merge.
  */
 public class Launcher {
 
@@ -24,6 +44,75 @@ public class Launcher {
      * Whether the timings should be outputted.
      */
     private static boolean timings = true;
+    /**
+     * The number of words that make up each state of the model
+     */
+    private static int order = 1;
+    /**
+     * The number of threads to count transitions on while training
+     */
+    private static int threads = 1;
+    /**
+     * The seed to generate with, or null to pick a new one
+     */
+    private static Long seed;
+    /**
+     * The location to save the trained model to, or null if it should not be saved
+     */
+    private static String saveFile;
+    /**
+     * The location of a saved model to load instead of training, or to train the input file into if both are given, or
+     * null if a model should be trained
+     */
+    private static String loadFile;
+    /**
+     * The location to write the partial counts of the input file to instead of building a model, or null to build one
+     */
+    private static String partialFile;
+    /**
+     * A comma separated list of partial count files to merge into a model, or null if a model is trained or loaded
+     */
+    private static String mergeFiles;
+    /**
+     * How sentences are tagged while training structured chains
+     */
+    private static TaggingMode taggingMode = TaggingMode.PARSER;
+    /**
+     * The file tagged sentences are cached in between runs or null if they are not cached
+     */
+    private static String parseCacheFile;
+    /**
+     * The port to serve generation requests on, or -1 if the chains should be printed instead
+     */
+    private static int servePort = -1;
+    /**
+     * Whether served models should keep learning from text posted to the server
+     */
+    private static boolean online = false;
+    /**
+     * Where the columns of the model should live, or null to keep trained models on the heap and map loaded ones
+     */
+    private static ModelStorage storage;
+    /**
+     * The cutoffs used to compact a trained model
+     */
+    private static ModelPruner pruner = new ModelPruner();
+    /**
+     * The number of states whose structured sampling tables are cached, or 0 to build them for every state up front
+     */
+    private static int cacheSize = 0;
+    /**
+     * The number of workers on the split stage of the ingestion pipeline, or 0 if it is not used
+     */
+    private static int splitThreads = 0;
+    /**
+     * The number of workers on the parse stage of the ingestion pipeline, or 0 if it is not used
+     */
+    private static int parseThreads = 0;
+    /**
+     * The number of messages the log buffer holds while serving
+     */
+    private static final int LOG_BUFFER_SIZE = 8192;
 
     /**
      * Attempts to launch the rewritten markov chain program by parsing the given command line flags. The possible
@@ -38,7 +127,7 @@ public class Launcher {
             printHelp();
             return;
         }
-        if (args.length > 6) {
+        if (args.length > 44) {
             System.err.println("Too many arguments. See help for help.");
             printHelp();
             return;
@@ -51,14 +140,171 @@ public class Launcher {
             }
         }
 
-        if (inputFile == null) {
-            System.err.println("Cannot execute without a valid input file. See help for help");
+        if (inputFile == null && loadFile == null && mergeFiles == null) {
+            System.err.println("Cannot execute without a valid input file, model to load or partial counts to merge. See help for help");
+            printHelp();
+            return;
+        }
+        if (mergeFiles != null && (inputFile != null || loadFile != null || servePort != -1)) {
+            System.err.println("Partial counts can only be merged on their own, not with an input file, a model to load or while serving. See help for help");
+            printHelp();
+            return;
+        }
+        if (partialFile != null && (inputFile == null || loadFile != null || servePort != -1)) {
+            System.err.println("Partial counts can only be written for an input file, not for a loaded model or while serving. See help for help");
+            printHelp();
+            return;
+        }
+        if (inputFile != null && loadFile != null && (servePort != -1 || loadFile.contains(","))) {
+            System.err.println("Can only update a single model from an input file, and not while serving. See help for help");
             printHelp();
             return;
         }
 
         MarkovChainsRewrite rewrite = new MarkovChainsRewrite();
-        rewrite.produceChain(new File(inputFile), structured > 0, regular, structured, timings);
+        rewrite.setOrder(order);
+        rewrite.setThreads(threads);
+        rewrite.setSeed(seed);
+        rewrite.setTaggingMode(taggingMode);
+        if (parseCacheFile != null) rewrite.setParseCacheFile(new File(parseCacheFile));
+        rewrite.setPruner(pruner);
+        rewrite.setCacheSize(cacheSize);
+        rewrite.setPipeline(splitThreads, parseThreads);
+        SegmentedTimerTool timerTool = new SegmentedTimerTool(TimerTool.Precision.MILLISECOND);
+        timerTool.setMetrics(rewrite.getMetrics());
+        registerMetrics(rewrite.getMetrics());
+
+        if (servePort != -1) {
+            serve(rewrite, timerTool);
+            return;
+        }
+
+        if (partialFile != null) {
+            rewrite.countPartial(new File(inputFile), structured > 0, new File(partialFile), timerTool);
+            timerTool.end();
+            if (timings) timerTool.printStatistics();
+            return;
+        }
+
+        MarkovModel model = null;
+        if (loadFile != null) {
+            timerTool.start();
+            model = load(new File(loadFile));
+            timerTool.lap("Loading model");
+        }
+        if (mergeFiles != null) {
+            List<File> partials = new ArrayList<>();
+            for (String path : mergeFiles.split(",")) partials.add(new File(path.trim()));
+            model = rewrite.merge(partials, timerTool);
+            if (storage != null) {
+                timerTool.start();
+                model = model.copyTo(storage);
+                timerTool.lap("Moving model to storage");
+            }
+        }
+        if (inputFile != null) {
+            if (model != null) {
+                //The new file is counted with the order of the model it is merged into.
+                rewrite.setOrder(model.getOrder());
+                model = rewrite.update(model, new File(inputFile), structured > 0, timerTool);
+            } else {
+                model = rewrite.train(new File(inputFile), structured > 0, timerTool);
+            }
+            if (storage != null) {
+                timerTool.start();
+                model = model.copyTo(storage);
+                timerTool.lap("Moving model to storage");
+            }
+        }
+        String modelName = loadFile != null ? loadFile : inputFile != null ? inputFile : saveFile != null ? saveFile : "merged";
+        rewrite.getMetrics().setModelSize(stripExtension(new File(modelName).getName()), model.getSizeInBytes());
+
+        if (saveFile != null) {
+            timerTool.start();
+            ModelFile.save(model, new File(saveFile));
+            timerTool.lap("Saving model");
+        }
+
+        rewrite.generate(model, regular, structured, timerTool);
+
+        timerTool.end();
+        if (timings) timerTool.printStatistics();
+    }
+
+    /**
+     * Loads every model given to -load, or trains one from the input file, and serves generation requests for them
+     * until the process is stopped. Each loaded model is named after its file without the extension.
+     *
+     * @param rewrite   MarkovChainsRewrite the configured instance to train with
+     * @param timerTool SegmentedTimerTool the timer to record loading on
+     * @throws IOException If there is an error reading a model or binding the port.
+     */
+    private static void serve(MarkovChainsRewrite rewrite, SegmentedTimerTool timerTool) throws IOException {
+        //Request threads must never wait on the console, so log through the writer thread while serving.
+        Logger.startAsync(LOG_BUFFER_SIZE);
+        Map<String, MarkovModel> models = new LinkedHashMap<>();
+        if (loadFile != null) {
+            for (String path : loadFile.split(",")) {
+                File file = new File(path.trim());
+                timerTool.start();
+                models.put(stripExtension(file.getName()), load(file));
+                timerTool.lap("Loading model " + file.getName());
+            }
+        } else {
+            File file = new File(inputFile);
+            MarkovModel model = rewrite.train(file, structured > 0, timerTool);
+            if (storage != null) {
+                timerTool.start();
+                model = model.copyTo(storage);
+                timerTool.lap("Moving model to storage");
+            }
+            models.put(stripExtension(file.getName()), model);
+        }
+        timerTool.end();
+        if (timings) timerTool.printStatistics();
+        for (Map.Entry<String, MarkovModel> model : models.entrySet()) {
+            rewrite.getMetrics().setModelSize(model.getKey(), model.getValue().getSizeInBytes());
+        }
+
+        GenerationServer server = new GenerationServer(models, servePort, threads, online, cacheSize);
+        server.setMetrics(rewrite.getMetrics());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+    }
+
+    /**
+     * Registers the metrics over JMX so they can be read by monitoring tools, logging a warning if they cannot be.
+     *
+     * @param metrics Metrics the metrics to register
+     */
+    private static void registerMetrics(Metrics metrics) {
+        try {
+            metrics.register("markov");
+        } catch (JMException e) {
+            Logger.warn(Launcher.class.getSimpleName(), "Could not register metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Loads a model file into the storage given to -storage, or maps it if none was given.
+     *
+     * @param file File the model file
+     * @return MarkovModel the loaded model
+     * @throws IOException If the file cannot be read or is not a supported model file.
+     */
+    private static MarkovModel load(File file) throws IOException {
+        return storage == null ? ModelFile.load(file) : ModelFile.load(file, storage);
+    }
+
+    /**
+     * Returns the file name without anything from its last dot onwards.
+     *
+     * @param name String the file name
+     * @return String the name without its extension
+     */
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
     }
 
     /**
@@ -72,7 +318,11 @@ public class Launcher {
     @SuppressWarnings("Duplicates")
     private static boolean processFlag(String key, String value) {
         System.out.println("[" + key + ", " + value + "]");
-        if (key.equalsIgnoreCase("-file")) inputFile = value;
+        if (key.equalsIgnoreCase("-file") || key.equalsIgnoreCase("-train")) inputFile = value;
+        if (key.equalsIgnoreCase("-save")) saveFile = value;
+        if (key.equalsIgnoreCase("-load")) loadFile = value;
+        if (key.equalsIgnoreCase("-partial")) partialFile = value;
+        if (key.equalsIgnoreCase("-merge")) mergeFiles = value;
         if (key.equalsIgnoreCase("-regular")) {
             if (canParseInteger(value)) {
                 int reg = Integer.parseInt(value);
@@ -97,6 +347,130 @@ public class Launcher {
                 return false;
             }
         }
+        if (key.equalsIgnoreCase("-order")) {
+            if (canParseInteger(value)) {
+                int ord = Integer.parseInt(value);
+                if (ord < 1 || ord > ModelBuilder.MAX_ORDER) {
+                    System.err.println("The order must be between 1 and " + ModelBuilder.MAX_ORDER + ".");
+                    return false;
+                }
+                order = ord;
+            } else {
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-threads")) {
+            if (canParseInteger(value)) {
+                int thr = Integer.parseInt(value);
+                if (thr < 1) {
+                    System.err.println("Must use at least one thread.");
+                    return false;
+                }
+                threads = thr;
+            } else {
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-seed")) {
+            if (canParseLong(value)) {
+                seed = Long.parseLong(value);
+            } else {
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-tagger")) {
+            TaggingMode mode = TaggingMode.fromName(value);
+            if (mode == null) {
+                System.err.println("The tagger must be either parser or pos.");
+                return false;
+            }
+            taggingMode = mode;
+        }
+        if (key.equalsIgnoreCase("-serve")) {
+            if (canParseInteger(value)) {
+                int port = Integer.parseInt(value);
+                if (port < 0 || port > 65535) {
+                    System.err.println("The port must be between 0 and 65535.");
+                    return false;
+                }
+                servePort = port;
+            } else {
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-mincount")) {
+            if (canParseInteger(value) && Integer.parseInt(value) >= 1) {
+                pruner.setMinimumCount(Integer.parseInt(value));
+            } else {
+                System.err.println("The minimum count must be at least 1.");
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-topk")) {
+            if (canParseInteger(value) && Integer.parseInt(value) >= 0) {
+                pruner.setMaximumFollowers(Integer.parseInt(value));
+            } else {
+                System.err.println("The number of followers to keep cannot be negative.");
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-minfreq")) {
+            if (canParseInteger(value) && Integer.parseInt(value) >= 1) {
+                pruner.setMinimumWordFrequency(Integer.parseInt(value));
+            } else {
+                System.err.println("The minimum word frequency must be at least 1.");
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-cache")) {
+            if (canParseInteger(value) && Integer.parseInt(value) >= 0) {
+                cacheSize = Integer.parseInt(value);
+            } else {
+                System.err.println("The number of states to cache cannot be negative.");
+                return false;
+            }
+        }
+        if (key.equalsIgnoreCase("-parsecache")) {
+            parseCacheFile = value;
+        }
+        if (key.equalsIgnoreCase("-pipeline")) {
+            String[] pools = value.split(",");
+            if (pools.length > 2 || !canParseInteger(pools[0]) || (pools.length == 2 && !canParseInteger(pools[1]))) {
+                System.err.println("The pipeline takes the number of parse workers or the number of split and parse workers separated by a comma.");
+                return false;
+            }
+            int split = pools.length == 2 ? Integer.parseInt(pools[0]) : 1;
+            int parse = Integer.parseInt(pools[pools.length - 1]);
+            if (split < 0 || parse < 0) {
+                System.err.println("The number of pipeline workers cannot be negative.");
+                return false;
+            }
+            splitThreads = parse == 0 ? 0 : Math.max(1, split);
+            parseThreads = parse;
+        }
+        if (key.equalsIgnoreCase("-log")) {
+            LogLevel level = LogLevel.fromName(value);
+            if (level == null) {
+                System.err.println("The log level must be one of debug, info, warn, error or severe.");
+                return false;
+            }
+            Logger.setMinimumLevel(level);
+        }
+        if (key.equalsIgnoreCase("-storage")) {
+            ModelStorage store = ModelStorage.fromName(value);
+            if (store == null) {
+                System.err.println("The storage must be one of heap, direct or mapped.");
+                return false;
+            }
+            storage = store;
+        }
+        if (key.equalsIgnoreCase("-online")) {
+            if (canParseBoolean(value)) {
+                online = Boolean.parseBoolean(value);
+            } else {
+                return false;
+            }
+        }
         if (key.equalsIgnoreCase("-timings")) {
             if (canParseBoolean(value)) {
                 timings = Boolean.parseBoolean(value);
@@ -133,18 +507,59 @@ public class Launcher {
         }
     }
 
+    /**
+     * Returns true if the given string can be parsed as a long using {@link Long#parseLong(String)}.
+     *
+     * @param s String the string to test
+     * @return boolean if the string can be cast to a long
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static boolean canParseLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Prints the help for the program.
      */
     private static void printHelp() {
         System.out.println("HELP -- Markov Chain Generator (using markov.jar as the name of this jar file for demonstration)");
-        System.out.println("java -jar markov.jar -file [file] -regular [n] -english [n] -timings [true/false]");
+        System.out.println("java -jar markov.jar -file [file] -regular [n] -english [n] -timings [true/false] -order [n] -threads [n] -seed [n] -tagger [parser/pos] -parsecache [file] -mincount [n] -topk [n] -minfreq [n] -storage [heap/direct/mapped] -pipeline [n] -log [level] -save [model]");
+        System.out.println("java -jar markov.jar -load [model] -regular [n] -english [n] -timings [true/false] -threads [n] -seed [n] -storage [heap/direct/mapped]");
+        System.out.println("java -jar markov.jar -load [model] -file [file] -save [model] -regular [n] -english [n] -threads [n] -pipeline [n] -parsecache [file]");
+        System.out.println("java -jar markov.jar -file [slice] -partial [counts] -order [n] -english [n] -threads [n] -pipeline [n]");
+        System.out.println("java -jar markov.jar -merge [counts,counts,...] -save [model] -regular [n] -english [n] -mincount [n] -topk [n] -minfreq [n]");
+        System.out.println("java -jar markov.jar -load [model,model,...] -serve [port] -threads [n] -online [true/false] -storage [heap/direct/mapped] -cache [n]");
         System.out.println("Arguments: ");
         System.out.println("  -file [file] :: Specifies the input file location. Should be a plaintext file.");
+        System.out.println("  -train [file] :: The same as -file.");
+        System.out.println("  -save [model] :: Saves the trained model to the given file so it can be loaded later.");
+        System.out.println("  -load [model] :: Loads a previously saved model instead of training from an input file. Given with -file, the file is trained into the loaded model, which can then be saved with -save.");
+        System.out.println("  -partial [counts] :: Writes the counts of the input file to the given partial count file instead of building a model, so slices of an input can be counted by separate processes.");
+        System.out.println("  -merge [counts,counts,...] :: Merges a comma separated list of partial count files of the same order into a model instead of training one.");
         System.out.println("  -regular [n] :: Specifies the number of regular markov chain strings to produce (no sentence structuring).");
         System.out.println("  -english [n] :: Specifies the number of english markov chain strings to produce (with sentence structuring).");
         System.out.println("  -timings [true/false] :: Specifies whether timings should printed once finished.");
+        System.out.println("  -order [n] :: Specifies how many previous words each word depends on, from 1 to " + ModelBuilder.MAX_ORDER + ".");
+        System.out.println("  -threads [n] :: Specifies how many threads to count the input and generate chains on. More than 1 loads the whole input into memory.");
+        System.out.println("  -seed [n] :: Specifies the seed to generate with. The same seed and model always give the same output.");
+        System.out.println("  -tagger [parser/pos] :: Specifies whether to tag sentences with the full parser or the faster part of speech tagger.");
+        System.out.println("  -serve [port] :: Serves generation requests over HTTP on the given local port instead of printing chains. -load takes a comma separated list of models when serving.");
+        System.out.println("  -online [true/false] :: Specifies whether served models keep learning from text posted to /learn.");
+        System.out.println("  -mincount [n] :: Prunes transitions seen fewer than n times from the trained model.");
+        System.out.println("  -topk [n] :: Keeps only the n most frequent followers of each state in the trained model. 0 keeps them all.");
+        System.out.println("  -minfreq [n] :: Prunes words seen fewer than n times, and every state containing them, from the trained model.");
+        System.out.println("  -storage [heap/direct/mapped] :: Specifies where the model is held: heap arrays, direct memory outside of the heap or a memory mapped file. Loaded models are mapped by default.");
+        System.out.println("  -cache [n] :: Prepares structured sampling tables for at most n states as they are reached instead of for every state up front. 0 prepares them all.");
+        System.out.println("  -parsecache [file] :: Caches tagged sentences in the given file so later runs only parse sentences they have not seen before.");
+        System.out.println("  -pipeline [n] or [split,parse] :: Streams the input file through concurrent read, sentence split, parse and count stages with n parse workers, or the given numbers of split and parse workers. 0 turns it off.");
+        System.out.println("  -log [debug/info/warn/error/severe] :: Specifies the least severe log messages to print. While serving, messages are written by a background thread.");
         System.out.println("If english is 0 then it will not do any sentence processing at all.");
+        System.out.println("Set both regular and english to 0 with -save to train a model without generating anything.");
     }
 
 }
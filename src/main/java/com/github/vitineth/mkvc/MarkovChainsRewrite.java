@@ -1,33 +1,48 @@
 package com.github.vitineth.mkvc;
 
+import com.github.vitineth.mkvc.chain.BatchGenerator;
+import com.github.vitineth.mkvc.chain.ChainGenerator;
+import com.github.vitineth.mkvc.chain.StructuredGenerator;
+import com.github.vitineth.mkvc.ingest.IngestionPipeline;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.ModelBuilder;
+import com.github.vitineth.mkvc.model.ModelPruner;
+import com.github.vitineth.mkvc.model.ModelUpdater;
+import com.github.vitineth.mkvc.model.ParallelTrainer;
+import com.github.vitineth.mkvc.model.PartialCountFile;
+import com.github.vitineth.mkvc.model.SyntaxTable;
+import com.github.vitineth.mkvc.model.TemplateTrie;
+import com.github.vitineth.mkvc.model.TypedOptionCache;
+import com.github.vitineth.mkvc.nlp.NlpService;
+import com.github.vitineth.mkvc.nlp.ParseCache;
+import com.github.vitineth.mkvc.nlp.TaggingMode;
+import com.github.vitineth.mkvc.nlp.ParsedSentence;
+import com.github.vitineth.mkvc.token.StreamingTokenizer;
+import com.github.vitineth.mkvc.token.Tokenizer;
+import com.github.vitineth.mkvc.util.metrics.LatencyHistogram;
+import com.github.vitineth.mkvc.util.metrics.Metrics;
 import com.github.vitineth.mkvc.util.output.Logger;
 import com.github.vitineth.mkvc.util.time.SegmentedTimerTool;
 import com.github.vitineth.mkvc.util.time.TimerTool;
-import com.github.vitineth.mkvc.word.WordData;
 import com.github.vitineth.mkvc.word.WordType;
 import javafx.util.Pair;
-import opennlp.tools.cmdline.parser.ParserTool;
-import opennlp.tools.parser.Parse;
-import opennlp.tools.parser.Parser;
-import opennlp.tools.parser.ParserFactory;
-import opennlp.tools.parser.ParserModel;
 import opennlp.tools.sentdetect.SentenceDetectorME;
-import opennlp.tools.sentdetect.SentenceModel;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.SplittableRandom;
 
 /**
  * The main executor for generating Markov Chains. You can use the
@@ -37,6 +52,196 @@ import java.util.stream.Collectors;
  */
 public class MarkovChainsRewrite {
 
+    /**
+     * The maximum number of words in a regular markov chain
+     */
+    static final int MAXIMUM_LENGTH = 100;
+
+    /**
+     * The number of words that make up each state of the model, see {@link ModelBuilder#MAX_ORDER}
+     */
+    private int order = 1;
+    /**
+     * The number of threads used to count transitions and parse sentences while training and to generate regular chains
+     */
+    private int threads = 1;
+    /**
+     * The seed used for generation or null if a new one should be picked for every run
+     */
+    private Long seed;
+    /**
+     * How sentences are tagged when training for structured chains
+     */
+    private TaggingMode taggingMode = TaggingMode.PARSER;
+    /**
+     * The file tagged sentences are cached in between runs or null to tag every sentence each time
+     */
+    private File parseCacheFile;
+    /**
+     * The cutoffs used to compact the model once it has been counted
+     */
+    private ModelPruner pruner = new ModelPruner();
+    /**
+     * The number of states whose structured sampling tables are cached, or 0 to build them for every state up front
+     */
+    private int cacheSize = 0;
+    /**
+     * The number of workers splitting sentences when training through the pipeline, or 0 to not use the pipeline
+     */
+    private int splitThreads = 0;
+    /**
+     * The number of workers parsing sentences when training through the pipeline
+     */
+    private int parseThreads = 0;
+    /**
+     * The metrics that training and generation are recorded to
+     */
+    private Metrics metrics = new Metrics();
+    /**
+     * The service holding the OpenNLP models, created when sentences are first parsed
+     */
+    private NlpService nlpService;
+
+    /**
+     * Sets the number of previous words that the next word of a chain depends on. Higher orders produce text closer to
+     * the input at the cost of a larger model.
+     *
+     * @param order int the order of the model, between 1 and {@link ModelBuilder#MAX_ORDER}
+     */
+    public void setOrder(int order) {
+        if (order < 1 || order > ModelBuilder.MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 1 and " + ModelBuilder.MAX_ORDER + " but was " + order);
+        }
+        this.order = order;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Sets the number of threads used to train and generate. With more than one thread the training input is split into
+     * shards which are counted in parallel and merged, giving the same model as a single thread, while sentences are
+     * parsed and regular chains are generated in parallel. This should be set before anything is trained.
+     *
+     * @param threads int the number of threads, at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Must use at least one thread but was given " + threads);
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the seed used for generation. Generating from the same model with the same seed always produces the same
+     * chains, no matter how many threads are used.
+     *
+     * @param seed Long the seed or null to pick a new one every time
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets how sentences are tagged when training for structured chains. {@link TaggingMode#POS_TAGGER} skips the full
+     * parse and is much faster. This should be set before anything is trained.
+     *
+     * @param taggingMode TaggingMode the tagging mode
+     */
+    public void setTaggingMode(TaggingMode taggingMode) {
+        this.taggingMode = taggingMode;
+    }
+
+    public TaggingMode getTaggingMode() {
+        return taggingMode;
+    }
+
+    /**
+     * Sets the file that tagged sentences are cached in through a {@link ParseCache}, so later runs only tag sentences
+     * they have not seen before. This should be set before anything is trained.
+     *
+     * @param parseCacheFile File the cache file or null to tag every sentence each time
+     */
+    public void setParseCacheFile(File parseCacheFile) {
+        this.parseCacheFile = parseCacheFile;
+    }
+
+    public File getParseCacheFile() {
+        return parseCacheFile;
+    }
+
+    /**
+     * Sets the cutoffs used to compact the model once it has been counted. Nothing is pruned unless one of the cutoffs
+     * of the pruner is set, see {@link ModelPruner#isEnabled()}.
+     *
+     * @param pruner ModelPruner the pruner
+     */
+    public void setPruner(ModelPruner pruner) {
+        this.pruner = pruner;
+    }
+
+    public ModelPruner getPruner() {
+        return pruner;
+    }
+
+    /**
+     * Sets how many states the structured generator keeps the word type partitions of. With 0 every state is
+     * partitioned before generating, otherwise states are partitioned the first time they are reached and the least
+     * recently used are dropped once the cache is full.
+     *
+     * @param cacheSize int the number of states to cache or 0 to partition every state up front
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets training from a file to go through an {@link IngestionPipeline} with the given number of workers on its
+     * split and parse stages, or turns the pipeline off if either is 0.
+     *
+     * @param splitThreads int the number of workers splitting sentences
+     * @param parseThreads int the number of workers parsing sentences
+     */
+    public void setPipeline(int splitThreads, int parseThreads) {
+        this.splitThreads = splitThreads;
+        this.parseThreads = parseThreads;
+    }
+
+    /**
+     * Returns if training from a file goes through an {@link IngestionPipeline}.
+     *
+     * @return boolean if the pipeline is used
+     */
+    public boolean isPipelined() {
+        return splitThreads > 0 && parseThreads > 0;
+    }
+
+    /**
+     * Sets the metrics that training and generation are recorded to. Token and transition rates are taken over the
+     * counting phase, chain rates over each generation phase and the time taken by every chain is kept in the
+     * <code>generate.regular</code> and <code>generate.structured</code> histograms.
+     *
+     * @param metrics Metrics the metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Shorthand method to print a message to the console using the {@link Logger#debug(String, String)} method with
      * {@link Class#getSimpleName()} as the label which should resolve to <code>MarkovChainsRewrite</code>.
@@ -48,100 +253,80 @@ public class MarkovChainsRewrite {
     }
 
     /**
-     * Splits the given data into sentences using the {@link SentenceDetectorME} returning the value from
-     * {@link SentenceDetectorME#sentDetect(String)}
+     * Splits the given data into sentences using the {@link SentenceDetectorME} held by the {@link NlpService},
+     * returning the value from {@link SentenceDetectorME#sentDetect(String)}
      *
      * @param data String the input data
      * @return String[] the sentences
      * @throws IOException If there was an error reading from the model.
      */
     private String[] processToSentences(String data) throws IOException {
-        InputStream sentenceModelInput = getClass().getResourceAsStream("/opennlp/en-sent.bin");
-        SentenceModel sentenceModel = new SentenceModel(sentenceModelInput);
-        SentenceDetectorME sentenceDetector = new SentenceDetectorME(sentenceModel);
-
-        return sentenceDetector.sentDetect(data);
+        return getNlpService().detectSentences(data);
     }
 
     /**
-     * Attempts to parse the given sentences into {@link WordType} and into a list of sentences formed from the Word
-     * Types.
+     * Attempts to parse the given sentences into {@link WordType} and into the templates formed from the Word Types of
+     * each sentence. The sentences are parsed in parallel by the {@link NlpService} and then combined in order, so a
+     * word tagged differently in two sentences keeps the type from the later one. Sentences with the same structure are
+     * merged into one template as they are parsed.
      *
      * @param sentences String[] the list of sentences to parse
-     * @return Pair[HashMap[String, WordType], List[WordType[]]] A pair of the word type map and the lsit of sentences.
+     * @return Pair[HashMap[String, WordType], TemplateTrie] A pair of the word type map and the sentence templates.
      * @throws IOException if there is an error reading the model.
      */
-    private Pair<HashMap<String, WordType>, List<WordType[]>> parseInputSyntax(String[] sentences) throws IOException {
-        InputStream parserModelInput = getClass().getResourceAsStream("/opennlp/en-parser-chunking.bin");
-        ParserModel parserModel = new ParserModel(parserModelInput);
-
-        Parser parser = ParserFactory.create(parserModel);
-        Pattern pattern = Pattern.compile("\\((CC|CD|DT|EX|FW|IN|JJR|JJS|JJ|LS|MD|NNPS|NNP|NNS|NN|PDT|POS|PRP\\$|PRP|RBR|RBS|RB|RP|SYM|TO|UH|VBD|VBG|VBN|VBP|VBZ|VB|WDT|WP\\$|WP|WRB) (.+?)\\)");
-
+    private Pair<HashMap<String, WordType>, TemplateTrie> parseInputSyntax(String[] sentences) throws IOException {
         HashMap<String, WordType> wordTypeMap = new HashMap<>();
-        List<WordType[]> sentenceList = new ArrayList<>();
-
-        for (String sentence : sentences) {
-            Parse parse = ParserTool.parseLine(sentence, parser, 1)[0];
-            StringBuffer buffer = new StringBuffer();
-
-            parse.show(buffer);
-            String map = buffer.toString();
+        TemplateTrie.Builder templates = new TemplateTrie.Builder();
 
-            Matcher matcher = pattern.matcher(map);
-            List<WordType> activeSentence = new ArrayList<>();
-
-            while (matcher.find()) {
-                WordType type = WordType.match(matcher.group(1));
-                activeSentence.add(type);
-                wordTypeMap.put(matcher.group(2), type);
+        NlpService service = getNlpService();
+        for (ParsedSentence parsed : service.parse(sentences)) {
+            for (int i = 0; i < parsed.size(); i++) {
+                wordTypeMap.put(parsed.getWords()[i], parsed.getTypes()[i]);
             }
 
-            if (activeSentence.size() > 0)
-                sentenceList.add(activeSentence.toArray(new WordType[activeSentence.size()]));
+            if (parsed.size() > 0)
+                templates.add(parsed.getTypes());
         }
+        logParseReuse(service);
 
-        return new Pair<>(wordTypeMap, sentenceList);
+        return new Pair<>(wordTypeMap, templates.build());
     }
 
     /**
-     * Count the number of times each word follows another word from the given list of words.
+     * Returns the service holding the OpenNLP models, creating it the first time it is needed so the models are only
+     * ever loaded once per instance. The parse cache is opened along with it if one has been set.
      *
-     * @param segments String[] the string array of words or data segments.
-     * @param parts    List[String] a list of each word followed by the next in the sequence
-     * @return int[][] the count data.
+     * @return NlpService the service
+     * @throws IOException If the parse cache cannot be opened.
      */
-    private int[][] countFollows(String[] segments, List<String> parts) {
-        //Get a map of each occurance and the count as a long. (This is a magic line of code from stack overflow, I
-        //don't really get this yet. Lamdas are strange. http://stackoverflow.com/questions/505928/how-to-count-the-number-of-occurrences-of-an-element-in-a-list)
-        Map<String, Long> counts = parts.stream().collect(Collectors.groupingBy(e -> e, Collectors.counting()));
-
-        //Store the last printed percentage so that we only print it once instead of spamming it.
-        int lastPrinted = -1;
-        //Create a blank array to begin with
-        int[][] followCount = new int[segments.length][segments.length];
-        for (int a = 0; a < segments.length; a++) {
-            for (int b = 0; b < segments.length; b++) {
-                //Get the count value from the map and cast it to an integer.
-                if (counts.containsKey(segments[a] + " " + segments[b]))
-                    followCount[a][b] = counts.get(segments[a] + " " + segments[b]).intValue();
-                else
-                    followCount[a][b] = 0;
-            }
-
-            int percentage = (int) (((double) a / (double) segments.length) * 100d);
-            if (percentage % 10 == 0 && percentage != lastPrinted) {
-                debug(percentage + "% done.");
-                lastPrinted = percentage;
+    private synchronized NlpService getNlpService() throws IOException {
+        if (nlpService == null) {
+            NlpService service = new NlpService(threads, taggingMode);
+            if (parseCacheFile != null) {
+                ParseCache cache = new ParseCache(parseCacheFile, taggingMode);
+                debug("Opened parse cache of " + cache.size() + " sentences");
+                service.setCache(cache);
             }
+            nlpService = service;
         }
+        return nlpService;
+    }
 
-        //Return the newly assembled array.
-        return followCount;
+    /**
+     * Logs how many sentences were found in the parse cache and how many were repeated within the input.
+     *
+     * @param service NlpService the service the sentences were tagged by
+     */
+    private void logParseReuse(NlpService service) {
+        ParseCache cache = service.getCache();
+        if (cache != null) debug("Parse cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.size() + " sentences stored");
+        debug("Repeated sentences tagged once: " + service.getDuplicateCount());
     }
 
     /**
-     * Produce and print the given number of markov chains to the console.
+     * Produce and print the given number of markov chains to the console. This trains a model through
+     * {@link #train(String, boolean, SegmentedTimerTool)} and then generates from it through
+     * {@link #generate(MarkovModel, int, int, SegmentedTimerTool)}.
      *
      * @param inputData       String the data to process to make the markov chains from
      * @param sentenceParsing boolean whether to parse the given string for sentences and word types
@@ -151,14 +336,52 @@ public class MarkovChainsRewrite {
      */
     public void produceChain(String inputData, boolean sentenceParsing, int regular, int sentence, boolean timings) {
         SegmentedTimerTool timerTool = new SegmentedTimerTool(TimerTool.Precision.MILLISECOND);
-        debug("Segmenting data");
-        timerTool.start();
-        String[] segments = getSegments(inputData);
-        timerTool.lap("Segmenting data");
+        MarkovModel model = train(inputData, sentenceParsing, timerTool);
+        generate(model, regular, sentence, timerTool);
 
+        timerTool.end();
+        if (timings) timerTool.printStatistics();
+    }
+
+    /**
+     * Produce and print the given number of markov chains to the console. Reads the file and passes it along to
+     * {@link #produceChain(String, boolean, int, int, boolean)} to make the actual output.
+     *
+     * @param inputFile       File the file containing the data to process to make the markov chains from
+     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
+     * @param regular         int the number of regular markov chains to produce
+     * @param sentence        int the number of structured markov chains to produce
+     * @param timings         boolean whether to print the timings used
+     */
+    public void produceChain(File inputFile, boolean sentenceParsing, int regular, int sentence, boolean timings) throws IOException {
+        produceChain(loadFile(inputFile), sentenceParsing, regular, sentence, timings);
+    }
+
+    /**
+     * Trains a model of the current order from the given data. Each phase is lapped on the given timer.
+     *
+     * @param inputData       String the data to train from
+     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the trained model, carrying a {@link SyntaxTable} if sentence parsing was done
+     */
+    public MarkovModel train(String inputData, boolean sentenceParsing, SegmentedTimerTool timerTool) {
+        return prune(count(inputData, sentenceParsing, timerTool), timerTool);
+    }
+
+    /**
+     * Counts the given data into a model of the current order without pruning it. Each phase is lapped on the given
+     * timer.
+     *
+     * @param inputData       String the data to count
+     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the counted model
+     */
+    private MarkovModel count(String inputData, boolean sentenceParsing, SegmentedTimerTool timerTool) {
         String[] sentences = null;
         HashMap<String, WordType> wordMap = null;
-        List<WordType[]> sentenceOrders = null;
+        TemplateTrie sentenceOrders = null;
         if (sentenceParsing) {
             debug("Parsing sentences");
             timerTool.start();
@@ -172,7 +395,7 @@ public class MarkovChainsRewrite {
             debug("Parsing word types");
             timerTool.start();
             try {
-                Pair<HashMap<String, WordType>, List<WordType[]>> pair = parseInputSyntax(sentences);
+                Pair<HashMap<String, WordType>, TemplateTrie> pair = parseInputSyntax(sentences);
                 wordMap = pair.getKey();
                 sentenceOrders = pair.getValue();
             } catch (IOException e) {
@@ -182,272 +405,284 @@ public class MarkovChainsRewrite {
 
         }
 
-        debug("Creating index");
-        timerTool.start();
-        //A matrix containing how many times a word follows another. It uses the mappings in segments for the index. Eg.
-        //     |A    |dog  |jumps|over |a    |box  |
-        //A    |0    |1    |0    |0    |0    |1    |
-        //dog  |0    |0    |1    |0    |0    |0    |
-        //jumps|0    |0    |0    |1    |0    |0    |
-        //over |0    |0    |0    |0    |1    |0    |
-        //a    |0    |0    |0    |0    |0    |1    |
-        //box  |0    |0    |0    |0    |0    |0    |
-        //
-        //followCount[a][b] means segments[a] followed by segments[b]
-        //As we are checking how many times a word follows another, we can assemble an arraylist of each word followed
-        //by the next word and count the number of times that an entry appears to see how many times a word follows
-        //another. First we assemble the arraylist of each word with its subsequent value.
-        List<String> parts = new ArrayList<>();
-        for (int i = 0; i < segments.length - 1; i++) {
-            parts.add(segments[i] + " " + segments[i + 1]);
+        ModelBuilder builder;
+        if (threads > 1) {
+            builder = countInParallel(inputData, timerTool);
+        } else {
+            debug("Segmenting and counting follows");
+            timerTool.start();
+            //Each token is interned to an integer id straight from the text and the transition from the previous
+            //`order` tokens is counted as it is added, so the row totals are known as soon as the last token has been
+            //seen. Only the transitions that actually occur are stored, which keeps the memory use proportional to the
+            //number of distinct pairs.
+            builder = new ModelBuilder(order);
+            char[] chars = inputData.toCharArray();
+            Tokenizer.tokenize(chars, 0, chars.length, builder.getVocabulary(), builder::add);
+            recordCounting(builder, timerTool.lap("Segmenting and counting follows"));
         }
-        timerTool.lap("Creating index");
 
-        debug("Counting follows");
-        timerTool.start();
-        //Then count the follows.
-        int[][] followCount = countFollows(segments, parts);
-        timerTool.lap("Counting follows");
+        return buildModel(builder, wordMap, sentenceOrders, timerTool);
+    }
 
-        debug("Totalling rows");
+    /**
+     * Tokenizes and counts the given data across the configured number of threads through a {@link ParallelTrainer}.
+     *
+     * @param inputData String the data to count
+     * @param timerTool SegmentedTimerTool the timer to record the phase on
+     * @return ModelBuilder the builder holding the merged counts
+     */
+    private ModelBuilder countInParallel(String inputData, SegmentedTimerTool timerTool) {
+        debug("Segmenting and counting follows on " + threads + " threads");
         timerTool.start();
-        //As each row represents that word followed by each in the array, the total of all values in one row will give
-        //the total number of times that the word has another word following after it. This allows us to generate a
-        //decimal value of likelihood.
-        int[] rowTotals = new int[segments.length];
-        for (int a = 0; a < segments.length; a++) {
-            int count = 0;
-            for (int b = 0; b < segments.length; b++) {
-                count += followCount[a][b];
-            }
-            rowTotals[a] = count;
+        ParallelTrainer trainer = new ParallelTrainer(order, threads);
+        ModelBuilder builder;
+        try {
+            builder = trainer.count(inputData);
+        } finally {
+            trainer.shutdown();
         }
-        timerTool.lap("Totalling rows");
+        recordCounting(builder, timerTool.lap("Segmenting and counting follows on " + threads + " threads"));
+        return builder;
+    }
+
+    /**
+     * Records the tokens and transitions counted by the builder against the time the counting phase took.
+     *
+     * @param builder ModelBuilder the builder holding the counts
+     * @param nanos   long the time spent counting in nanoseconds
+     */
+    private void recordCounting(ModelBuilder builder, long nanos) {
+        metrics.recordTokens(builder.getTokenCount(), nanos);
+        metrics.recordTransitions(builder.getObservationCount(), nanos);
+    }
 
+    /**
+     * Compacts the counts held by the builder into a model and attaches the sentence data if there is any.
+     *
+     * @param builder        ModelBuilder the builder holding the counted transitions
+     * @param wordMap        HashMap[String, WordType] the word type map or null if sentences were not parsed
+     * @param sentenceOrders TemplateTrie the sentence structures or null if sentences were not parsed
+     * @param timerTool      SegmentedTimerTool the timer to record the phase on
+     * @return MarkovModel the built model
+     */
+    private MarkovModel buildModel(ModelBuilder builder, HashMap<String, WordType> wordMap, TemplateTrie sentenceOrders, SegmentedTimerTool timerTool) {
         debug("Reducing data store");
         timerTool.start();
-        //To reduce the amount of data that we have to store we can eliminate all records of words that do not follow
-        //each other which is simply equal to those with a follow count of 0.
-        List<WordData> wordData = new ArrayList<>();
-        for (int a = 0; a < segments.length; a++) {
-            for (int b = 0; b < segments.length; b++) {
-                if (followCount[a][b] != 0) {
-                    wordData.add(new WordData(
-                            segments[a],
-                            segments[b],
-                            followCount[a][b],
-                            rowTotals[a]
-                    ));
-                }
-            }
+        //Compact the counted pairs into a sparse table.
+        MarkovModel model = builder.build();
+        if (wordMap != null && sentenceOrders != null) {
+            model = model.withSyntax(SyntaxTable.from(model.getVocabulary(), wordMap, sentenceOrders));
         }
         timerTool.lap("Reducing data store");
-
-        debug("Generating chain x" + regular);
-        timerTool.start();
-        for (int i = 0; i < 10; i++) {
-            System.out.println(getMarkovChain(wordData, 100));
-        }
-        timerTool.lap("Generating chain x" + regular);
-
-        if (sentenceParsing) {
-            debug("Generating english chain x" + sentence);
-            timerTool.start();
-            for (int i = 0; i < 10; i++) {
-                System.out.println(getMarkovChain(wordData, 3, wordMap, sentenceOrders));
-            }
-        }
-        timerTool.lap("Generating english chain x" + sentence);
-
-        timerTool.end();
-        if (timings) timerTool.printStatistics();
+        return model;
     }
 
     /**
-     * Produce and print the given number of markov chains to the console. Reads the file and passes it along to
-     * {@link #produceChain(String, boolean, int, int, boolean)} to make the actual output.
+     * Prunes the model if any cutoffs have been set.
      *
-     * @param inputFile       File the file containing the data to process to make the markov chains from
-     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
-     * @param regular         int the number of regular markov chains to produce
-     * @param sentence        int the number of structured markov chains to produce
-     * @param timings         boolean whether to print the timings used
+     * @param model     MarkovModel the model to prune
+     * @param timerTool SegmentedTimerTool the timer to record the phase on
+     * @return MarkovModel the pruned model or the given one if pruning is disabled
      */
-    public void produceChain(File inputFile, boolean sentenceParsing, int regular, int sentence, boolean timings) throws IOException {
-        produceChain(loadFile(inputFile), sentenceParsing, regular, sentence, timings);
+    private MarkovModel prune(MarkovModel model, SegmentedTimerTool timerTool) {
+        if (pruner.isEnabled()) {
+            debug("Pruning model");
+            timerTool.start();
+            ModelPruner.Result result = pruner.prune(model);
+            model = result.getModel();
+            timerTool.lap("Pruning model");
+            Logger.debug(getClass().getSimpleName(), result::toString);
+        }
+
+        return model;
     }
 
     /**
-     * Returns a markov chain generated through {@link #getMarkovChain(List, String, int)} with the seed being generated
-     * through {@link #getSeed(List, Random)} meaning that it should not start with a character.
+     * Trains a model from the contents of the given file. On a single thread without sentence parsing the file is
+     * streamed through a {@link StreamingTokenizer} straight into the model builder, so memory use depends on the size
+     * of the model and not the size of the file. Sentence detection and sharding across threads both need the whole
+     * text at once, so otherwise the file is loaded and passed to {@link #train(String, boolean, SegmentedTimerTool)},
+     * unless the pipeline is enabled through {@link #setPipeline(int, int)} in which case the file is streamed through an
+     * {@link IngestionPipeline} instead.
      *
-     * @param data    List[WordData] all complete word data
-     * @param maximum int the number of words to generate
-     * @return String the markov chain
-     * @see #getMarkovChain(List, String, int)
+     * @param inputFile       File the file containing the data to train from
+     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the trained model
+     * @throws IOException If there is an error reading the input file.
      */
-    private String getMarkovChain(List<WordData> data, int maximum) {
-        Random random = new Random();
-        String seed = getSeed(data, random);
-        return getMarkovChain(data, seed, maximum);
+    public MarkovModel train(File inputFile, boolean sentenceParsing, SegmentedTimerTool timerTool) throws IOException {
+        return prune(count(inputFile, sentenceParsing, timerTool), timerTool);
     }
 
     /**
-     * Generate a markov chain using the given generated WordDatas and the given seed. Maximum defines the maximum
-     * number of words that should be generated.
+     * Trains a model from the contents of the given file as {@link #train(File, boolean, SegmentedTimerTool)} does and
+     * merges it into an existing model through a {@link ModelUpdater}, so that only the transitions, words and sentence
+     * templates of the new file are counted and only the rows of the model it adds to are rebuilt. The order must match
+     * the order of the existing model. The merged model is pruned if any cutoffs have been set, but the counts of the
+     * new file are merged in full first.
      *
-     * @param wordData List[WordData] the generated word datas
-     * @param seed     String the seed word
-     * @param maximum  int the maximum number of words to generate.
-     * @return String the generated string
+     * @param model           MarkovModel the existing model, which is left unchanged
+     * @param inputFile       File the file containing the new data
+     * @param sentenceParsing boolean whether to parse the new data for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the updated model
+     * @throws IOException If there is an error reading the input file.
      */
-    private String getMarkovChain(List<WordData> wordData, String seed, int maximum) {
-        Random random = new Random();
-
-        StringBuilder chainBuilder = new StringBuilder();
-        chainBuilder.append(seed);
-
-        int count = 1;
-        List<WordData> options = getFollowOptions(wordData, seed);
-        while (options.size() != 0 && count <= maximum) {
-            int option = getWeightedResult(random, options);
-            if (option == -1) break;
-
-            WordData selected = options.get(option);
-            if (selected.getFollowedBy().trim().length() == 1 && !Character.isAlphabetic(selected.getFollowedBy().trim().charAt(0))) {
-                chainBuilder.append(selected.getFollowedBy());
-            } else {
-                chainBuilder.append(" ").append(selected.getFollowedBy());
-            }
-
-            count++;
-
-            options = getFollowOptions(wordData, selected.getFollowedBy());
+    public MarkovModel update(MarkovModel model, File inputFile, boolean sentenceParsing, SegmentedTimerTool timerTool) throws IOException {
+        if (model.getOrder() != order) {
+            throw new IllegalArgumentException("Cannot update a model of order " + model.getOrder() + " with order " + order);
         }
+        MarkovModel delta = count(inputFile, sentenceParsing, timerTool);
+
+        debug("Merging into the existing model");
+        timerTool.start();
+        ModelUpdater.Result result = new ModelUpdater().update(model, delta);
+        timerTool.lap("Merging into the existing model");
+        Logger.debug(getClass().getSimpleName(), result::toString);
 
-        return chainBuilder.toString();
+        return prune(result.getModel(), timerTool);
     }
 
     /**
-     * Returns a valid seed from the given data. It will return a value that is not a single non-alphabetic character.
+     * Counts the contents of the given file as {@link #train(File, boolean, SegmentedTimerTool)} does and writes the
+     * counts to a {@link PartialCountFile} instead of building a model, so that the slices of a large input can be counted
+     * by separate processes and merged through {@link #merge(List, SegmentedTimerTool)}. The counts are never pruned, as
+     * the cutoffs only make sense once every slice has been merged.
      *
-     * @param data   list[WordData] A list of all possible words
-     * @param random Random a random instance to be used to generate the random seed
-     * @return String the generated seed
+     * @param inputFile       File the file containing the slice to count
+     * @param sentenceParsing boolean whether to parse the slice for sentences and word types
+     * @param partialFile     File where to write the counts
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @throws IOException If there is an error reading the input file or writing the partial counts.
      */
-    private String getSeed(List<WordData> data, Random random) {
-        String word = data.get(random.nextInt(data.size())).getWord();
-        while (word.trim().length() == 1 && !Character.isAlphabetic(word.trim().charAt(0)))
-            word = data.get(random.nextInt(data.size())).getWord();
+    public void countPartial(File inputFile, boolean sentenceParsing, File partialFile, SegmentedTimerTool timerTool) throws IOException {
+        MarkovModel model = count(inputFile, sentenceParsing, timerTool);
 
-        return word;
+        debug("Writing partial counts");
+        timerTool.start();
+        PartialCountFile.write(model, partialFile);
+        timerTool.lap("Writing partial counts");
     }
 
     /**
-     * Generate a markov chain taking into consideration the sentence structures of the input data. This takes a map
-     * of words and their corrosponding word types as well as each sentence structure as a list. It will attempt to make
-     * the given number of sentences.
+     * Merges partial count files written by {@link #countPartial(File, boolean, File, SegmentedTimerTool)} into a
+     * model, then prunes it if any cutoffs have been set. Each file is streamed once, so memory use depends on the size
+     * of the merged model and not on the number or size of the files.
      *
-     * @param wordDatas       List[WordData] the list of all word data available
-     * @param maximum         int the number of sentences to produce
-     * @param wordTypeHashMap HashMap[String, WordType] the map of words with their corrosponding types. it does not
-     *                        have to contain all words in the word data map.
-     * @param sentences       List[WordType[]] The list of sentence structures
-     * @return String the generated markov chain
+     * @param partialFiles List[File] the partial count files, in the order their slices appear in the input
+     * @param timerTool    SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the merged model
+     * @throws IOException If a file cannot be read or the files are not all of the same order.
      */
-    private String getMarkovChain(List<WordData> wordDatas, int maximum, HashMap<String, WordType> wordTypeHashMap, List<WordType[]> sentences) {
-        Random random = new Random();
-
-        StringBuilder chainBuilder = new StringBuilder();
-        for (int i = 0; i < maximum; i++) {
-            WordType[] selected = sentences.get(random.nextInt(sentences.size()));
-            String seed = getSeed(wordDatas, random);
-
-            List<WordData> options = getFollowOptions(wordDatas, wordTypeHashMap, seed, selected[0], false);
-            for (int j = 0; j < selected.length - 1; j++) {
-                if (options.size() == 0)
-                    options = getFollowOptions(wordDatas, wordTypeHashMap, seed, selected[0], true);
-                if (options.size() == 0) {
-                    chainBuilder.append(" ").append(wordDatas.get(random.nextInt(wordDatas.size())));
-                    continue;
-                }
-
-                int option = getWeightedResult(random, options);
-                String word = options.get(option).getFollowedBy();
-
-                chainBuilder.append(" ").append(word);
-
-                options = getFollowOptions(wordDatas, wordTypeHashMap, word, selected[j + 1], false);
-                seed = word;
-            }
-
-            chainBuilder.append(".");
-        }
+    public MarkovModel merge(List<File> partialFiles, SegmentedTimerTool timerTool) throws IOException {
+        debug("Merging " + partialFiles.size() + " partial count files");
+        timerTool.start();
+        MarkovModel model = PartialCountFile.merge(partialFiles);
+        timerTool.lap("Merging partial counts");
 
-        return chainBuilder.toString();
+        return prune(model, timerTool);
     }
 
     /**
-     * Returns a pseudo-random selection out of the list of WordDatas with each being valued based on their
-     * probabilities. Those with a higher probability will be more likely to be selected by this function.
+     * Counts the contents of the given file into a model of the current order without pruning it, streaming or loading
+     * the file as described by {@link #train(File, boolean, SegmentedTimerTool)}.
      *
-     * @param random  Random the random object to use to pick the option.
-     * @param options List[WordData] the list of options that can follow a word.
-     * @return int the index of options that has been selected
+     * @param inputFile       File the file containing the data to count
+     * @param sentenceParsing boolean whether to parse the given string for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the counted model
+     * @throws IOException If there is an error reading the input file.
      */
-    private static int getWeightedResult(Random random, List<WordData> options) {
-        //If we only have one option then return 0 for the first option.
-        if (options.size() == 1) return 0;
+    private MarkovModel count(File inputFile, boolean sentenceParsing, SegmentedTimerTool timerTool) throws IOException {
+        if (isPipelined()) return trainPipelined(inputFile, sentenceParsing, timerTool);
+        if (sentenceParsing || threads > 1) return count(loadFile(inputFile), sentenceParsing, timerTool);
 
-        //Create a list of all options with each option appearing 100 times their probability. This means that on a
-        //random selection, those with a greater chance of being selected will appear more in the list.
-        List<Integer> optionIndices = new ArrayList<>();
-        for (int i = 0; i < options.size(); i++) {
-            WordData wd = options.get(i);
-            for (int j = 0; j < (int) (wd.getProbability() * 1000d); j++) {
-                optionIndices.add(i);
-            }
+        debug("Segmenting and counting follows");
+        timerTool.start();
+        ModelBuilder builder = new ModelBuilder(order);
+        try (Reader reader = new InputStreamReader(new FileInputStream(inputFile))) {
+            new StreamingTokenizer(reader).tokenize(builder.getVocabulary(), builder::add);
         }
+        recordCounting(builder, timerTool.lap("Segmenting and counting follows"));
 
-        if (optionIndices.size() == 0) return -1;
-        return optionIndices.get(random.nextInt(optionIndices.size()));
+        return buildModel(builder, null, null, timerTool);
     }
 
     /**
-     * Returns all the possible WordDatas that can follow the given word.
+     * Trains a model by streaming the file through an {@link IngestionPipeline}, so that reading, sentence splitting,
+     * parsing and counting all run at once and only a bounded part of the file is held in memory.
      *
-     * @param data List[WordData] All available word datas
-     * @param word String the word
-     * @return List[WordData] the WordDatas that can follow on from the given word.
+     * @param inputFile       File the file containing the data to train from
+     * @param sentenceParsing boolean whether to parse the data for sentences and word types
+     * @param timerTool       SegmentedTimerTool the timer to record each phase on
+     * @return MarkovModel the trained model
+     * @throws IOException If there is an error reading the input file or parsing a sentence.
      */
-    private List<WordData> getFollowOptions(List<WordData> data, String word) {
-        List<WordData> matches = new ArrayList<>();
-        for (WordData wd : data) {
-            if (wd.getWord().equals(word)) matches.add(wd);
+    private MarkovModel trainPipelined(File inputFile, boolean sentenceParsing, SegmentedTimerTool timerTool) throws IOException {
+        debug("Ingesting through the pipeline");
+        timerTool.start();
+        NlpService service = sentenceParsing ? getNlpService() : null;
+        IngestionPipeline pipeline = new IngestionPipeline(order, service);
+        pipeline.setSplitThreads(splitThreads);
+        pipeline.setParseThreads(parseThreads);
+        pipeline.setMetrics(metrics);
+        IngestionPipeline.Result result;
+        try (Reader reader = new InputStreamReader(new FileInputStream(inputFile))) {
+            result = pipeline.run(reader);
         }
-        return matches;
+        recordCounting(result.getBuilder(), timerTool.lap("Ingesting through the pipeline"));
+        if (service != null) logParseReuse(service);
+
+        return buildModel(result.getBuilder(), result.getWordMap(), result.getTemplates(), timerTool);
     }
 
     /**
-     * Returns all the possible WordDatas that can follow the given word with the given type.
+     * Generates and prints regular and structured markov chains from a trained model. Structured chains are skipped
+     * with a warning if the model has no sentence data.
      *
-     * @param data  List[WordData] All available words and their data.
-     * @param types HashMap[String, WordType] A hashmap of all words and their corrosponding types
-     * @param word  String the given word
-     * @param type  WordType the type that is required
-     * @return List[WordData] the available options
+     * @param model     MarkovModel the model to generate from
+     * @param regular   int the number of regular markov chains to produce
+     * @param sentence  int the number of structured markov chains to produce
+     * @param timerTool SegmentedTimerTool the timer to record each phase on
      */
-    private List<WordData> getFollowOptions(List<WordData> data, HashMap<String, WordType> types, String word, WordType type, boolean permitNonMapped) {
-        List<WordData> output = new ArrayList<>();
-        List<WordData> options = getFollowOptions(data, word);
-        for (WordData wd : options) {
-            if (types.containsKey(wd.getFollowedBy())) {
-                output.add(wd);
-            } else {
-                if (permitNonMapped) output.add(wd);
+    public void generate(MarkovModel model, int regular, int sentence, SegmentedTimerTool timerTool) {
+        long batchSeed = seed != null ? seed : new SplittableRandom().nextLong();
+        debug("Generating with seed " + batchSeed);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+
+        debug("Generating chain x" + regular);
+        timerTool.start();
+        BatchGenerator generator = new BatchGenerator(new ChainGenerator(model), threads);
+        generator.setLatencyHistogram(metrics.getHistogram("generate.regular"));
+        generator.generate(regular, MAXIMUM_LENGTH, batchSeed, (index, chain) -> out.println(chain));
+        out.flush();
+        metrics.recordChains(regular, timerTool.lap("Generating chain x" + regular));
+
+        if (sentence > 0) {
+            SyntaxTable syntax = model.getSyntax();
+            if (syntax == null) {
+                Logger.warn(getClass().getSimpleName(), "The model has no sentence data so no english chains can be generated.");
+                return;
             }
+
+            debug("Generating english chain x" + sentence);
+            timerTool.start();
+            SplittableRandom random = new SplittableRandom(batchSeed);
+            StructuredGenerator structured = new StructuredGenerator(model, cacheSize);
+            if (structured.getTypedSampler() instanceof TypedOptionCache) {
+                metrics.addCache("typed", ((TypedOptionCache) structured.getTypedSampler()).getCache());
+            }
+            LatencyHistogram latency = metrics.getHistogram("generate.structured");
+            for (int i = 0; i < sentence; i++) {
+                long start = System.nanoTime();
+                String chain = structured.generate(random, 3);
+                latency.recordSince(start);
+                out.println(chain);
+            }
+            out.flush();
+            metrics.recordChains(sentence, timerTool.lap("Generating english chain x" + sentence));
         }
-        return output;
     }
 
     /**
@@ -467,16 +702,18 @@ public class MarkovChainsRewrite {
     }
 
     /**
-     * Splits data according to the regex '\s+|(?=\p{Punct})|(?<=\p{Punct})', trims each segment to remove any leading
-     * and trailing whitespace and finally reduces it to lower case before returning it.
+     * Splits data on whitespace and either side of every punctuation character, as the regex
+     * '\s+|(?=\p{Punct})|(?<=\p{Punct})' would, and reduces each segment to lower case through the {@link Tokenizer}.
+     * Empty segments are never returned.
      *
      * @param data String the input data
-     * @return String[] the split data with removed leading and trailing whitespace in lowercase.
+     * @return String[] the split data in lowercase.
      */
-    private String[] getSegments(String data) {
-        String[] segments = data.split("\\s+|(?=\\p{Punct})|(?<=\\p{Punct})");
-        for (int i = 0; i < segments.length; i++) segments[i] = segments[i].trim().toLowerCase();
-        return segments;
+    String[] getSegments(String data) {
+        List<String> segments = new ArrayList<>();
+        char[] chars = data.toCharArray();
+        Tokenizer.tokenize(chars, 0, chars.length, segments::add);
+        return segments.toArray(new String[segments.size()]);
     }
 
     /**
@@ -487,14 +724,16 @@ public class MarkovChainsRewrite {
      * @throws IOException If there is an error opening the stream or reading from the file.
      */
     private String loadFile(File input) throws IOException {
-        InputStream is = new FileInputStream(input);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[2048];
-        while (is.read(buffer) >= 0) {
-            baos.write(buffer);
-        }
+        try (InputStream is = new FileInputStream(input)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[2048];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                baos.write(buffer, 0, read);
+            }
 
-        return new String(baos.toByteArray());
+            return new String(baos.toByteArray());
+        }
     }
 
     /**
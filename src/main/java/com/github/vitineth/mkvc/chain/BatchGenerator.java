@@ -0,0 +1,166 @@
+package com.github.vitineth.mkvc.chain;
+
+import com.github.vitineth.mkvc.util.metrics.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates large batches of chains from a {@link ChainGenerator} across several threads. Every chain gets its own
+ * {@link SplittableRandom} seeded from the batch seed and the chain's index, so the same seed always produces the same
+ * chains in the same order no matter how many threads are used. Chains are generated in blocks and handed to a
+ * {@link ChainSink} on the calling thread in index order, with only a few blocks in flight at once so memory use does
+ * not grow with the size of the batch.
+ */
+public class BatchGenerator {
+
+    /**
+     * The number of chains generated by a worker in one go
+     */
+    private static final int BLOCK_SIZE = 256;
+    /**
+     * The number of blocks that can be waiting to be handed to the sink per thread
+     */
+    private static final int BLOCKS_PER_THREAD = 2;
+    /**
+     * The increment of the SplitMix64 sequence used to derive the seed of each chain
+     */
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * The generator that every chain is produced by
+     */
+    private final ChainGenerator generator;
+    /**
+     * The number of threads to generate on
+     */
+    private final int threads;
+    /**
+     * The histogram the time taken by each chain is recorded to, or null if chains are not timed
+     */
+    private LatencyHistogram latencyHistogram;
+
+    /**
+     * A callback which receives each generated chain in index order.
+     */
+    public interface ChainSink {
+        void accept(int index, String chain);
+    }
+
+    /**
+     * Creates a batch generator that runs on the given number of threads.
+     *
+     * @param generator ChainGenerator the generator to produce chains with
+     * @param threads   int the number of threads to use
+     */
+    public BatchGenerator(ChainGenerator generator, int threads) {
+        this.generator = generator;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the histogram that the time taken to generate each chain is recorded to.
+     *
+     * @param latencyHistogram LatencyHistogram the histogram or null to stop timing chains
+     */
+    public void setLatencyHistogram(LatencyHistogram latencyHistogram) {
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    /**
+     * Generates the given number of chains and returns them in index order.
+     *
+     * @param count     int the number of chains to generate
+     * @param maxLength int the maximum number of words in each chain
+     * @param seed      long the seed of the batch
+     * @return List[String] the chains
+     * @throws IllegalStateException If generating a chain fails or the calling thread is interrupted.
+     */
+    public List<String> generate(int count, int maxLength, long seed) {
+        List<String> chains = new ArrayList<>(count);
+        generate(count, maxLength, seed, (index, chain) -> chains.add(chain));
+        return chains;
+    }
+
+    /**
+     * Generates the given number of chains, passing each one to the sink in index order as soon as it and every chain
+     * before it is ready.
+     *
+     * @param count     int the number of chains to generate
+     * @param maxLength int the maximum number of words in each chain
+     * @param seed      long the seed of the batch
+     * @param sink      ChainSink the callback to receive the chains, always called on the calling thread
+     * @throws IllegalStateException If generating a chain fails or the calling thread is interrupted before every chain
+     *                               has been delivered, in which case the interrupt flag is left set.
+     */
+    public void generate(int count, int maxLength, long seed, ChainSink sink) {
+        if (threads == 1) {
+            for (int i = 0; i < count; i++) sink.accept(i, generateChain(i, maxLength, seed));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<String[]>> pending = new ArrayDeque<>();
+            int delivered = 0;
+            int submitted = 0;
+            while (delivered < count) {
+                while (submitted < count && pending.size() < threads * BLOCKS_PER_THREAD) {
+                    final int start = submitted;
+                    final int end = Math.min(count, start + BLOCK_SIZE);
+                    pending.add(executor.submit(() -> {
+                        String[] block = new String[end - start];
+                        for (int i = start; i < end; i++) block[i - start] = generateChain(i, maxLength, seed);
+                        return block;
+                    }));
+                    submitted = end;
+                }
+
+                for (String chain : pending.poll().get()) sink.accept(delivered++, chain);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted before the batch of " + count + " chains was finished", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to generate a chain", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates the chain with the given index using a random source derived only from the batch seed and the index.
+     *
+     * @param index     int the index of the chain within the batch
+     * @param maxLength int the maximum number of words in the chain
+     * @param seed      long the seed of the batch
+     * @return String the chain
+     */
+    private String generateChain(int index, int maxLength, long seed) {
+        if (latencyHistogram == null) return generator.generate(new SplittableRandom(mix(seed + (index + 1) * GOLDEN_GAMMA)), maxLength);
+
+        long start = System.nanoTime();
+        String chain = generator.generate(new SplittableRandom(mix(seed + (index + 1) * GOLDEN_GAMMA)), maxLength);
+        latencyHistogram.recordSince(start);
+        return chain;
+    }
+
+    /**
+     * The SplitMix64 finalizer, which spreads the bits of the input so neighbouring indices get unrelated seeds.
+     *
+     * @param z long the value to mix
+     * @return long the mixed value
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
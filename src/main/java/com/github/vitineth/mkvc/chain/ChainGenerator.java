@@ -0,0 +1,174 @@
+package com.github.vitineth.mkvc.chain;
+
+import com.github.vitineth.mkvc.model.AliasTable;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.StateTrie;
+import com.github.vitineth.mkvc.model.TransitionTable;
+import com.github.vitineth.mkvc.model.Vocabulary;
+
+import java.util.SplittableRandom;
+
+/**
+ * Generates markov chains directly from a {@link MarkovModel}. Follow options are found by indexing straight into the
+ * row for the current state and the next word is drawn from that row's {@link AliasTable}, so each step runs in
+ * constant time regardless of how large the model is.
+ */
+public class ChainGenerator {
+
+    /**
+     * The number of random states tried when picking a seed before giving up
+     */
+    private static final int SEED_ATTEMPTS = 64;
+
+    /**
+     * The model being generated from
+     */
+    private final MarkovModel model;
+    /**
+     * The vocabulary used to turn token ids back into words
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The states of the model
+     */
+    private final StateTrie states;
+    /**
+     * The transitions out of each state
+     */
+    private final TransitionTable table;
+    /**
+     * The sampling tables for each state in the transition table
+     */
+    private final AliasTable aliasTable;
+
+    /**
+     * Creates a generator for the given model, building its sampling tables if they have not been already.
+     *
+     * @param model MarkovModel the trained model
+     */
+    public ChainGenerator(MarkovModel model) {
+        this.model = model;
+        this.vocabulary = model.getVocabulary();
+        this.states = model.getStates();
+        this.table = model.getTransitions();
+        this.aliasTable = model.getAliasTable();
+    }
+
+    /**
+     * Generates a markov chain from a random seed chosen through {@link #getSeed(SplittableRandom)}.
+     *
+     * @param random  SplittableRandom the random source
+     * @param maximum int the maximum number of words to generate
+     * @return String the generated chain or an empty string if no seed state could be found
+     */
+    public String generate(SplittableRandom random, int maximum) {
+        int seed = getSeed(random);
+        if (seed == -1) return "";
+        return generate(random, seed, maximum);
+    }
+
+    /**
+     * Generates a markov chain starting from the given words. If there are at least as many words as the order of the
+     * model then the chain starts from the state made of the last of them. If there are fewer, a random state that
+     * begins with the words is used instead.
+     *
+     * @param random  SplittableRandom the random source
+     * @param seed    String the words to start from separated by whitespace
+     * @param maximum int the maximum number of words to generate
+     * @return String the generated chain, which is just the seed if no state matches it
+     */
+    public String generate(SplittableRandom random, String seed, int maximum) {
+        String[] words = seed.trim().split("\\s+");
+        int[] tuple = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            tuple[i] = vocabulary.getId(words[i]);
+            if (tuple[i] == -1) return seed;
+        }
+
+        int state;
+        if (words.length >= states.getOrder()) {
+            state = states.getState(tuple, words.length - states.getOrder());
+        } else {
+            int node = states.findNode(tuple, 0, tuple.length);
+            while (node != -1 && !states.isState(node)) {
+                int start = states.getChildStart(node);
+                node = start + random.nextInt(states.getChildEnd(node) - start);
+            }
+            state = node == -1 ? -1 : states.toState(node);
+        }
+        if (state == -1) return seed;
+
+        return generate(random, state, maximum);
+    }
+
+    /**
+     * Generates a markov chain starting from the given state.
+     *
+     * @param random  SplittableRandom the random source
+     * @param state   int the state to start from
+     * @param maximum int the maximum number of words to generate
+     * @return String the generated chain
+     */
+    private String generate(SplittableRandom random, int state, int maximum) {
+        StringBuilder chainBuilder = new StringBuilder();
+        chainBuilder.append(model.getStateText(state));
+
+        int count = states.getOrder();
+        while (count <= maximum) {
+            int transition = aliasTable.sample(state, random);
+            if (transition == -1) break;
+
+            appendWord(chainBuilder, vocabulary.getWord(table.getFollower(transition)));
+            state = table.getSuccessor(transition);
+            count++;
+        }
+
+        return chainBuilder.toString();
+    }
+
+    /**
+     * Returns a random state to start a chain from. States are weighted by how many distinct words follow them and a
+     * state starting with a single non-alphabetic character will never be picked. Only a fixed number of states are
+     * tried, so a model where (nearly) every state starts with punctuation gives up rather than searching forever.
+     *
+     * @param random SplittableRandom the random source
+     * @return int the seed state or -1 if there is nothing to start from
+     */
+    public int getSeed(SplittableRandom random) {
+        if (table.getTransitionCount() == 0) return -1;
+
+        int[] tuple = new int[states.getOrder()];
+        for (int attempt = 0; attempt < SEED_ATTEMPTS; attempt++) {
+            int state = table.getState(random.nextInt(table.getTransitionCount()));
+            states.getTuple(state, tuple);
+            if (!isPunctuation(vocabulary.getWord(tuple[0]))) return state;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a word to the chain, attaching it directly to the previous word if it is a single non-alphabetic
+     * character and separating it with a space otherwise.
+     *
+     * @param chainBuilder StringBuilder the chain being built
+     * @param word         String the word to add
+     */
+    static void appendWord(StringBuilder chainBuilder, String word) {
+        if (isPunctuation(word)) {
+            chainBuilder.append(word);
+        } else {
+            chainBuilder.append(" ").append(word);
+        }
+    }
+
+    /**
+     * Returns if the given word is a single non-alphabetic character once trimmed.
+     *
+     * @param word String the word
+     * @return boolean if the word is a lone punctuation character
+     */
+    static boolean isPunctuation(String word) {
+        String trimmed = word.trim();
+        return trimmed.length() == 1 && !Character.isAlphabetic(trimmed.charAt(0));
+    }
+}
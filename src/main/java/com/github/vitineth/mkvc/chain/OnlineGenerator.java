@@ -0,0 +1,50 @@
+package com.github.vitineth.mkvc.chain;
+
+import com.github.vitineth.mkvc.model.OnlineModel;
+
+import java.util.SplittableRandom;
+
+/**
+ * Generates markov chains from an {@link OnlineModel} while it is still learning. Each step samples the latest
+ * snapshot of the current state, so a chain never waits on the threads that are learning and always sees a consistent
+ * set of followers for each state, although later steps of a chain may see newer counts than earlier ones.
+ */
+public class OnlineGenerator {
+
+    /**
+     * The model being generated from
+     */
+    private final OnlineModel model;
+
+    public OnlineGenerator(OnlineModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Generates a markov chain from a random seed chosen through {@link OnlineModel#getSeed(SplittableRandom)}.
+     *
+     * @param random  SplittableRandom the random source
+     * @param maximum int the maximum number of words to generate
+     * @return String the generated chain or an empty string if the model has not learned anything yet
+     */
+    public String generate(SplittableRandom random, int maximum) {
+        int state = model.getSeed(random);
+        if (state == -1) return "";
+
+        StringBuilder chainBuilder = new StringBuilder();
+        chainBuilder.append(model.getStateText(state));
+
+        int count = model.getOrder();
+        while (count <= maximum) {
+            OnlineModel.StateSnapshot snapshot = model.getSnapshot(state);
+            int index = snapshot.sample(random);
+            if (index == -1) break;
+
+            ChainGenerator.appendWord(chainBuilder, model.getWord(snapshot.getFollower(index)));
+            state = snapshot.getSuccessor(index);
+            count++;
+        }
+
+        return chainBuilder.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.vitineth.mkvc.chain;
+
+import com.github.vitineth.mkvc.model.AliasTable;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.SyntaxTable;
+import com.github.vitineth.mkvc.model.TemplateTrie;
+import com.github.vitineth.mkvc.model.TransitionTable;
+import com.github.vitineth.mkvc.model.TypedOptionCache;
+import com.github.vitineth.mkvc.model.TypedSampler;
+import com.github.vitineth.mkvc.model.TypedTransitionTable;
+import com.github.vitineth.mkvc.model.Vocabulary;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.util.SplittableRandom;
+
+/**
+ * Generates markov chains that follow the sentence structures of the input. Each sentence picks one of the sentence
+ * templates of the model, weighted by how often it was seen, and fills every slot of it with a word of the slot's
+ * {@link WordType}, sampled from the followers of the current state through the model's {@link TypedTransitionTable},
+ * or through a bounded {@link TypedOptionCache} that only prepares the states that are actually reached. If nothing of
+ * the right type follows the current state then any follower is taken instead, and if nothing follows it at all the
+ * chain jumps to a new random state. Generators hold no mutable state other than their cache so one can be shared
+ * between threads.
+ */
+public class StructuredGenerator {
+
+    /**
+     * The vocabulary that token ids resolve through
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The transitions out of each state
+     */
+    private final TransitionTable table;
+    /**
+     * The sampling tables used when no follower of the wanted type exists
+     */
+    private final AliasTable aliasTable;
+    /**
+     * The transitions partitioned by the word type of their follower
+     */
+    private final TypedSampler typedSampler;
+    /**
+     * The sentence templates to follow
+     */
+    private final TemplateTrie templates;
+    /**
+     * The generator used to pick random states to start from
+     */
+    private final ChainGenerator chainGenerator;
+
+    /**
+     * Creates a generator for the given model, building its sampling tables if they have not been already.
+     *
+     * @param model MarkovModel the trained model, which must carry sentence structure data
+     */
+    public StructuredGenerator(MarkovModel model) {
+        this(model, 0);
+    }
+
+    /**
+     * Creates a generator for the given model. With a cache size of 0 the transitions of every state are partitioned by
+     * word type up front through {@link MarkovModel#getTypedTransitions()}, otherwise the partitions of at most that
+     * many states are built on first use and held in a {@link TypedOptionCache}.
+     *
+     * @param model     MarkovModel the trained model, which must carry sentence structure data
+     * @param cacheSize int the number of states to cache or 0 to partition every state up front
+     */
+    public StructuredGenerator(MarkovModel model, int cacheSize) {
+        SyntaxTable syntax = model.getSyntax();
+        if (syntax == null) throw new IllegalArgumentException("The model has no sentence structure data");
+
+        this.vocabulary = model.getVocabulary();
+        this.table = model.getTransitions();
+        this.aliasTable = model.getAliasTable();
+        this.typedSampler = cacheSize > 0 ? new TypedOptionCache(model, cacheSize) : model.getTypedTransitions();
+        this.templates = syntax.getTemplates();
+        this.chainGenerator = new ChainGenerator(model);
+    }
+
+    /**
+     * Generates the given number of sentences, each following a randomly picked sentence template.
+     *
+     * @param random    SplittableRandom the random source
+     * @param sentences int the number of sentences to generate
+     * @return String the generated chain or an empty string if the model has no templates or transitions
+     */
+    public String generate(SplittableRandom random, int sentences) {
+        int state = chainGenerator.getSeed(random);
+        if (state == -1 || templates.getTemplateCount() == 0) return "";
+
+        StringBuilder chainBuilder = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            WordType[] template = templates.sample(random);
+            for (WordType type : template) {
+                int transition = type == WordType.ANY ? -1 : typedSampler.sample(state, type, random);
+                if (transition == -1) transition = aliasTable.sample(state, random);
+                if (transition == -1) {
+                    state = chainGenerator.getSeed(random);
+                    if (state == -1) return chainBuilder.toString().trim();
+                    transition = aliasTable.sample(state, random);
+                }
+
+                ChainGenerator.appendWord(chainBuilder, vocabulary.getWord(table.getFollower(transition)));
+                state = table.getSuccessor(transition);
+            }
+            chainBuilder.append(".");
+        }
+
+        return chainBuilder.toString().trim();
+    }
+
+    /**
+     * Returns what transitions of a given word type are picked through.
+     *
+     * @return TypedSampler the {@link TypedTransitionTable} of the model or the {@link TypedOptionCache} of this generator
+     */
+    public TypedSampler getTypedSampler() {
+        return typedSampler;
+    }
+}
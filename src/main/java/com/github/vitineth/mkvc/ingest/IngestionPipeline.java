@@ -0,0 +1,493 @@
+package com.github.vitineth.mkvc.ingest;
+
+import com.github.vitineth.mkvc.model.ModelBuilder;
+import com.github.vitineth.mkvc.model.TemplateTrie;
+import com.github.vitineth.mkvc.nlp.NlpService;
+import com.github.vitineth.mkvc.nlp.ParsedSentence;
+import com.github.vitineth.mkvc.token.Tokenizer;
+import com.github.vitineth.mkvc.util.metrics.Metrics;
+import com.github.vitineth.mkvc.util.metrics.StageStats;
+import com.github.vitineth.mkvc.util.output.Logger;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Trains from a stream of text through four stages that run at the same time, handing batches to each other through
+ * bounded queues:
+ * <ol>
+ * <li><b>read</b> cuts the input into chunks of roughly {@link #setChunkSize(int)} characters at line breaks or
+ * whitespace, so no token is ever split between chunks</li>
+ * <li><b>split</b> breaks each chunk into sentences on a pool of workers</li>
+ * <li><b>parse</b> tags every sentence with the {@link NlpService} on a pool of workers, which is usually the slowest
+ * stage and the one to give the most threads</li>
+ * <li><b>count</b> tokenizes each chunk into a {@link ModelBuilder} and collects the word types and sentence templates
+ * on the calling thread, taking chunks in input order so the counts are the same as counting the whole input at
+ * once</li>
+ * </ol>
+ * A full queue blocks the stage feeding it, so a slow stage holds back the ones before it rather than letting batches
+ * pile up. Batches can finish out of order when a stage has several workers, so the reader also takes a permit for
+ * every chunk that the counting stage only gives back once it has counted that chunk. This caps the chunks held at one
+ * queue's worth per stage, including any held back waiting for an earlier chunk, no matter how large the input is. When
+ * no sentence parsing is wanted the split and parse stages are left out. The queue depth, throughput and busy time of
+ * every stage are kept as {@link StageStats}, which can be watched through {@link Metrics} while the pipeline runs.
+ */
+public class IngestionPipeline {
+
+    /**
+     * The number of characters aimed for in each chunk by default
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    /**
+     * The number of batches each queue holds by default
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    /**
+     * How long the counting stage waits for a batch before checking if another stage has failed
+     */
+    private static final long POLL_MILLIS = 100;
+    /**
+     * The batch that marks the end of the input
+     */
+    private static final Batch END = new Batch(-1, null);
+
+    /**
+     * The order of the model being built
+     */
+    private final int order;
+    /**
+     * The service used to split and parse sentences, or null if sentences are not parsed
+     */
+    private final NlpService nlpService;
+    /**
+     * The number of workers splitting sentences
+     */
+    private int splitThreads = 1;
+    /**
+     * The number of workers parsing sentences
+     */
+    private int parseThreads = 1;
+    /**
+     * The number of batches each queue holds
+     */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    /**
+     * The number of characters aimed for in each chunk
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    /**
+     * The metrics that the stages are reported to, or null
+     */
+    private Metrics metrics;
+    /**
+     * The statistics of each stage of the last run
+     */
+    private volatile List<StageStats> stages = Collections.emptyList();
+
+    /**
+     * A chunk of the input along with what each stage has made of it.
+     */
+    private static class Batch {
+        /**
+         * The position of the chunk in the input
+         */
+        private final long sequence;
+        /**
+         * The text of the chunk
+         */
+        private final String text;
+        /**
+         * The sentences of the chunk, once split
+         */
+        private String[] sentences;
+        /**
+         * The tagged words of each sentence, once parsed
+         */
+        private ParsedSentence[] parsed;
+
+        private Batch(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The work done on a batch by a stage.
+     */
+    private interface Step {
+        /**
+         * Processes a batch.
+         *
+         * @param batch Batch the batch
+         * @return int the number of records processed
+         * @throws IOException If the batch cannot be processed.
+         */
+        int apply(Batch batch) throws IOException;
+    }
+
+    /**
+     * The counts, word types and templates collected from the input.
+     */
+    public static class Result {
+        /**
+         * The builder holding the counted transitions
+         */
+        private final ModelBuilder builder;
+        /**
+         * The word type of each tagged word, or null if sentences were not parsed
+         */
+        private final HashMap<String, WordType> wordMap;
+        /**
+         * The sentence templates, or null if sentences were not parsed
+         */
+        private final TemplateTrie templates;
+
+        private Result(ModelBuilder builder, HashMap<String, WordType> wordMap, TemplateTrie templates) {
+            this.builder = builder;
+            this.wordMap = wordMap;
+            this.templates = templates;
+        }
+
+        public ModelBuilder getBuilder() {
+            return builder;
+        }
+
+        public HashMap<String, WordType> getWordMap() {
+            return wordMap;
+        }
+
+        public TemplateTrie getTemplates() {
+            return templates;
+        }
+    }
+
+    /**
+     * Creates a pipeline that builds a model of the given order.
+     *
+     * @param order      int the order of the model
+     * @param nlpService NlpService the service to split and parse sentences with, or null to only count tokens
+     */
+    public IngestionPipeline(int order, NlpService nlpService) {
+        if (order < 1 || order > ModelBuilder.MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 1 and " + ModelBuilder.MAX_ORDER + " but was " + order);
+        }
+        this.order = order;
+        this.nlpService = nlpService;
+    }
+
+    /**
+     * Sets the number of workers that split chunks into sentences.
+     *
+     * @param splitThreads int the number of workers, at least 1
+     */
+    public void setSplitThreads(int splitThreads) {
+        if (splitThreads < 1) throw new IllegalArgumentException("At least one split worker is needed");
+        this.splitThreads = splitThreads;
+    }
+
+    public int getSplitThreads() {
+        return splitThreads;
+    }
+
+    /**
+     * Sets the number of workers that parse sentences.
+     *
+     * @param parseThreads int the number of workers, at least 1
+     */
+    public void setParseThreads(int parseThreads) {
+        if (parseThreads < 1) throw new IllegalArgumentException("At least one parse worker is needed");
+        this.parseThreads = parseThreads;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * Sets the number of batches each queue between the stages holds before the stage feeding it has to wait.
+     *
+     * @param queueCapacity int the capacity, at least 1
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) throw new IllegalArgumentException("The queue capacity must be at least 1");
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of characters aimed for in each chunk. Chunks are cut at the last line break or whitespace before
+     * the size is reached, so they are usually a little shorter.
+     *
+     * @param chunkSize int the chunk size, at least 1
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("The chunk size must be at least 1");
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the metrics that the statistics of each stage are reported to as they run.
+     *
+     * @param metrics Metrics the metrics or null
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the statistics of each stage of the current or last run, in pipeline order.
+     *
+     * @return List[StageStats] the statistics
+     */
+    public List<StageStats> getStages() {
+        return stages;
+    }
+
+    /**
+     * Reads the input to its end through the pipeline, returning once every chunk has been counted. The reader is not
+     * closed.
+     *
+     * @param reader Reader the input
+     * @return Result the counts, word types and templates of the input
+     * @throws IOException If the input cannot be read or a sentence cannot be parsed.
+     */
+    public Result run(Reader reader) throws IOException {
+        boolean parsing = nlpService != null;
+        BlockingQueue<Batch> toSplit = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Batch> toParse = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Batch> toCount = new ArrayBlockingQueue<>(queueCapacity);
+
+        StageStats read = new StageStats("read", 1, null);
+        StageStats split = new StageStats("split", splitThreads, toSplit);
+        StageStats parse = new StageStats("parse", parseThreads, toParse);
+        StageStats count = new StageStats("count", 1, toCount);
+        stages = parsing ? Arrays.asList(read, split, parse, count) : Arrays.asList(read, count);
+        if (metrics != null) for (StageStats stage : stages) metrics.addStage(stage);
+
+        AtomicInteger created = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parsing ? 1 + splitThreads + parseThreads : 1, runnable -> {
+            Thread thread = new Thread(runnable, "ingest-worker-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Semaphore inFlight = new Semaphore(queueCapacity * stages.size());
+
+        try {
+            if (parsing) {
+                executor.execute(() -> read(reader, toSplit, splitThreads, inFlight, read, failure));
+                AtomicInteger splitting = new AtomicInteger(splitThreads);
+                AtomicInteger parsingWorkers = new AtomicInteger(parseThreads);
+                for (int i = 0; i < splitThreads; i++) {
+                    executor.execute(() -> work(toSplit, toParse, splitting, parseThreads, split, batch -> {
+                        batch.sentences = nlpService.detectSentences(batch.text);
+                        return batch.sentences.length;
+                    }, failure));
+                }
+                for (int i = 0; i < parseThreads; i++) {
+                    executor.execute(() -> work(toParse, toCount, parsingWorkers, 1, parse, batch -> {
+                        batch.parsed = nlpService.parseOnCurrentThread(batch.sentences);
+                        return batch.parsed.length;
+                    }, failure));
+                }
+            } else {
+                executor.execute(() -> read(reader, toCount, 1, inFlight, read, failure));
+            }
+
+            Result result = count(toCount, parsing, inFlight, count, failure);
+            for (StageStats stage : stages) Logger.debug(getClass().getSimpleName(), stage::toString);
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Cuts the input into chunks and queues them for the next stage, then queues one end marker per worker of the next
+     * stage. A permit is taken for each chunk before it is queued, waiting for the counting stage to give one back if
+     * too many chunks are already in flight.
+     *
+     * @param reader      Reader the input
+     * @param output      BlockingQueue[Batch] the queue of the next stage
+     * @param nextWorkers int the number of workers of the next stage
+     * @param inFlight    Semaphore the permits for chunks that have been read but not yet counted
+     * @param stats       StageStats the statistics of this stage
+     * @param failure     AtomicReference[Throwable] where to report a failure
+     */
+    private void read(Reader reader, BlockingQueue<Batch> output, int nextWorkers, Semaphore inFlight, StageStats stats,
+                      AtomicReference<Throwable> failure) {
+        try {
+            char[] buffer = new char[chunkSize];
+            int filled = 0;
+            long sequence = 0;
+            long start = System.nanoTime();
+            int read;
+            while ((read = reader.read(buffer, filled, buffer.length - filled)) != -1) {
+                filled += read;
+                if (filled < buffer.length) continue;
+
+                int cut = cut(buffer, filled);
+                Batch batch = new Batch(sequence++, new String(buffer, 0, cut));
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+                stats.record(cut, System.nanoTime() - start);
+                inFlight.acquire();
+                output.put(batch);
+                start = System.nanoTime();
+            }
+            if (filled > 0) {
+                Batch batch = new Batch(sequence, new String(buffer, 0, filled));
+                stats.record(filled, System.nanoTime() - start);
+                inFlight.acquire();
+                output.put(batch);
+            }
+            for (int i = 0; i < nextWorkers; i++) output.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            stats.finish();
+        }
+    }
+
+    /**
+     * Returns where to end a full chunk: just after the last line break in its second half, otherwise just after its
+     * last whitespace character, otherwise at its end if it is a single token longer than the chunk size.
+     *
+     * @param buffer char[] the chunk
+     * @param length int the number of characters in the chunk
+     * @return int the length of the chunk to send on
+     */
+    private static int cut(char[] buffer, int length) {
+        for (int i = length - 1; i >= length / 2; i--) {
+            if (buffer[i] == '\n') return i + 1;
+        }
+        for (int i = length - 1; i > 0; i--) {
+            if (Tokenizer.isSeparator(buffer[i])) return i + 1;
+        }
+        return length;
+    }
+
+    /**
+     * Takes batches from the input queue, processes them and passes them on until an end marker is taken. The last
+     * worker of the stage to finish queues one end marker per worker of the next stage.
+     *
+     * @param input       BlockingQueue[Batch] the queue of this stage
+     * @param output      BlockingQueue[Batch] the queue of the next stage
+     * @param running     AtomicInteger the number of workers of this stage still running
+     * @param nextWorkers int the number of workers of the next stage
+     * @param stats       StageStats the statistics of this stage
+     * @param step        Step the work to do on each batch
+     * @param failure     AtomicReference[Throwable] where to report a failure
+     */
+    private static void work(BlockingQueue<Batch> input, BlockingQueue<Batch> output, AtomicInteger running,
+                             int nextWorkers, StageStats stats, Step step, AtomicReference<Throwable> failure) {
+        try {
+            Batch batch;
+            while ((batch = input.take()) != END) {
+                long start = System.nanoTime();
+                int records = step.apply(batch);
+                stats.record(records, System.nanoTime() - start);
+                output.put(batch);
+            }
+            if (running.decrementAndGet() == 0) {
+                stats.finish();
+                for (int i = 0; i < nextWorkers; i++) output.put(END);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    /**
+     * Counts batches on the calling thread in input order, holding back any that arrive early, until the end marker is
+     * taken. The permit of each batch is given back once it has been counted. A failure reported by any other stage is
+     * thrown from here, after which the caller stops every worker.
+     *
+     * @param input    BlockingQueue[Batch] the queue of the counting stage
+     * @param parsing  boolean whether the batches carry parsed sentences
+     * @param inFlight Semaphore the permits for chunks that have been read but not yet counted
+     * @param stats    StageStats the statistics of the counting stage
+     * @param failure  AtomicReference[Throwable] where other stages report a failure
+     * @return Result the counts, word types and templates
+     * @throws IOException If another stage failed or the thread was interrupted.
+     */
+    private Result count(BlockingQueue<Batch> input, boolean parsing, Semaphore inFlight, StageStats stats,
+                         AtomicReference<Throwable> failure) throws IOException {
+        ModelBuilder builder = new ModelBuilder(order);
+        HashMap<String, WordType> wordMap = parsing ? new HashMap<>() : null;
+        TemplateTrie.Builder templates = parsing ? new TemplateTrie.Builder() : null;
+        Map<Long, Batch> early = new HashMap<>();
+        long next = 0;
+
+        try {
+            while (true) {
+                rethrow(failure.get());
+                Batch batch = input.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (batch == null) continue;
+                if (batch == END) break;
+
+                early.put(batch.sequence, batch);
+                while ((batch = early.remove(next)) != null) {
+                    next++;
+                    long start = System.nanoTime();
+                    long tokens = builder.getTokenCount();
+                    char[] chars = batch.text.toCharArray();
+                    Tokenizer.tokenize(chars, 0, chars.length, builder.getVocabulary(), builder::add);
+                    if (parsing) {
+                        for (ParsedSentence parsed : batch.parsed) {
+                            for (int i = 0; i < parsed.size(); i++) wordMap.put(parsed.getWords()[i], parsed.getTypes()[i]);
+                            if (parsed.size() > 0) templates.add(parsed.getTypes());
+                        }
+                    }
+                    stats.record(builder.getTokenCount() - tokens, System.nanoTime() - start);
+                    inFlight.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting the input", e);
+        } finally {
+            stats.finish();
+        }
+        rethrow(failure.get());
+
+        return new Result(builder, wordMap, parsing ? templates.build() : null);
+    }
+
+    /**
+     * Throws the failure of a stage, if there was one, as an IOException.
+     *
+     * @param t Throwable the failure or null
+     * @throws IOException If there was a failure.
+     */
+    private static void rethrow(Throwable t) throws IOException {
+        if (t == null) return;
+        if (t instanceof IOException) throw (IOException) t;
+        throw new IOException("Ingestion failed", t);
+    }
+}
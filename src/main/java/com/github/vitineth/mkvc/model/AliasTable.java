@@ -0,0 +1,141 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Precomputed Walker/Vose alias tables for every row of a {@link TransitionTable}. The tables are stored flat and
+ * parallel to the transition columns so that sampling the follower of a state takes a single uniform pick and one
+ * comparison, with no allocation and no loss of precision on rare transitions.
+ */
+public class AliasTable {
+
+    /**
+     * The transitions that the tables were built from
+     */
+    private final TransitionTable table;
+    /**
+     * The probability of keeping each column rather than taking its alias
+     */
+    private final DoubleBuffer probability;
+    /**
+     * The transition index that each column falls back to
+     */
+    private final IntBuffer alias;
+
+    /**
+     * Builds the alias table for every state in the given transition table.
+     *
+     * @param table TransitionTable the counted transitions
+     */
+    public AliasTable(TransitionTable table) {
+        this.table = table;
+        this.probability = DoubleBuffer.allocate(table.getTransitionCount());
+        this.alias = IntBuffer.allocate(table.getTransitionCount());
+
+        //Scratch space shared by every row, sized for the widest one.
+        int widest = 0;
+        for (int state = 0; state < table.getStateCount(); state++) {
+            widest = Math.max(widest, table.getRowEnd(state) - table.getRowStart(state));
+        }
+        int[] weights = new int[widest];
+        double[] scaled = new double[widest];
+        int[] small = new int[widest];
+        int[] large = new int[widest];
+
+        for (int state = 0; state < table.getStateCount(); state++) {
+            int start = table.getRowStart(state);
+            int size = table.getRowEnd(state) - start;
+            for (int i = 0; i < size; i++) weights[i] = table.getCount(start + i);
+            buildRow(weights, size, table.getTotal(state), scaled, small, large, probability, alias, start);
+        }
+    }
+
+    /**
+     * Creates an alias table from columns that have already been built, such as those read from a model file.
+     *
+     * @param table       TransitionTable the transitions that the columns were built from
+     * @param probability DoubleBuffer the probability of keeping each column
+     * @param alias       IntBuffer the transition index each column falls back to
+     */
+    public AliasTable(TransitionTable table, DoubleBuffer probability, IntBuffer alias) {
+        this.table = table;
+        this.probability = probability;
+        this.alias = alias;
+    }
+
+    /**
+     * Fills in the alias columns for a single row of weights using Vose's method. The columns of the row are written
+     * from <code>start</code> onwards and each alias is the absolute column it falls back to.
+     *
+     * @param weights     int[] the weight of each column of the row
+     * @param size        int the number of columns in the row
+     * @param total       double the sum of the weights
+     * @param scaled      double[] scratch space for the scaled probabilities
+     * @param small       int[] scratch space for the columns below the average
+     * @param large       int[] scratch space for the columns at or above the average
+     * @param probability DoubleBuffer the probability column to fill
+     * @param alias       IntBuffer the alias column to fill
+     * @param start       int the first column of the row
+     */
+    static void buildRow(int[] weights, int size, double total, double[] scaled, int[] small, int[] large, DoubleBuffer probability, IntBuffer alias, int start) {
+        if (size == 0) return;
+
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < size; i++) {
+            scaled[i] = (double) weights[i] * size / total;
+            if (scaled[i] < 1d) small[smallCount++] = i;
+            else large[largeCount++] = i;
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+
+            probability.put(start + less, scaled[less]);
+            alias.put(start + less, start + more);
+
+            scaled[more] = (scaled[more] + scaled[less]) - 1d;
+            if (scaled[more] < 1d) small[smallCount++] = more;
+            else large[largeCount++] = more;
+        }
+
+        //Anything left over is only short of 1 through rounding error so it always keeps its own column.
+        while (largeCount > 0) {
+            int column = large[--largeCount];
+            probability.put(start + column, 1d);
+            alias.put(start + column, start + column);
+        }
+        while (smallCount > 0) {
+            int column = small[--smallCount];
+            probability.put(start + column, 1d);
+            alias.put(start + column, start + column);
+        }
+    }
+
+    /**
+     * Picks a transition out of the given state with the probability of each being proportional to its count.
+     *
+     * @param state  int the state to leave
+     * @param random SplittableRandom the random source
+     * @return int the selected transition index or -1 if nothing follows the state
+     */
+    public int sample(int state, SplittableRandom random) {
+        int start = table.getRowStart(state);
+        int size = table.getRowEnd(state) - start;
+        if (size == 0) return -1;
+
+        int column = start + random.nextInt(size);
+        return random.nextDouble() < probability.get(column) ? column : alias.get(column);
+    }
+
+    DoubleBuffer probability() {
+        return probability.duplicate();
+    }
+
+    IntBuffer alias() {
+        return alias.duplicate();
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ModelStorage} that keeps every column in direct memory through {@link ByteBuffer#allocateDirect(int)}. The
+ * columns sit outside of the heap, so the garbage collector only ever sees the small buffer objects that point at them.
+ * The memory is limited by <code>-XX:MaxDirectMemorySize</code> and is freed when the buffers are collected.
+ */
+public class DirectStorage implements ModelStorage {
+
+    @Override
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.vitineth.mkvc.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable {@link Vocabulary} backed by an open addressing hash table which interns each distinct token to a dense
+ * integer id so that the rest of the model can work with primitive ids instead of strings. Ids are handed out in the
+ * order that tokens are first seen, starting at 0.
+ * <br><br>
+ * Tokens can be looked up straight from a range of a <code>char[]</code> through {@link #intern(char[], int, int)}, in
+ * which case a <code>String</code> is only created the first time a token is seen.
+ */
+public class HashVocabulary implements Vocabulary {
+
+    /**
+     * The fraction of slots which can be used before the table is grown
+     */
+    private static final double LOAD_FACTOR = 0.5d;
+
+    /**
+     * The id of the token in each slot plus one, or 0 if the slot is unused
+     */
+    private int[] table;
+    /**
+     * The hash of each token, where the index is the id
+     */
+    private int[] hashes;
+    /**
+     * The token for each id, where the index is the id
+     */
+    private List<String> words;
+
+    public HashVocabulary() {
+        table = new int[64];
+        hashes = new int[32];
+        words = new ArrayList<>();
+    }
+
+    /**
+     * Returns the id of the given token, assigning it the next free id if it has not been seen before.
+     *
+     * @param word String the token
+     * @return int the id of the token
+     */
+    public int intern(String word) {
+        int hash = word.hashCode();
+        int slot = find(word, hash);
+        if (table[slot] != 0) return table[slot] - 1;
+        return insert(slot, word, hash);
+    }
+
+    /**
+     * Returns the id of the token made up of the given range of characters, assigning it the next free id if it has
+     * not been seen before. No objects are created unless the token is new.
+     *
+     * @param chars  char[] the characters
+     * @param offset int the start of the token
+     * @param length int the number of characters in the token
+     * @return int the id of the token
+     */
+    public int intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) hash = 31 * hash + chars[i];
+
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(words.get(id), chars, offset, length)) return id;
+            slot = (slot + 1) & mask;
+        }
+        return insert(slot, new String(chars, offset, length), hash);
+    }
+
+    /**
+     * Returns the id of the given token or -1 if it has never been interned.
+     *
+     * @param word String the token
+     * @return int the id or -1
+     */
+    @Override
+    public int getId(String word) {
+        int slot = find(word, word.hashCode());
+        return table[slot] - 1;
+    }
+
+    /**
+     * Returns the token with the given id.
+     *
+     * @param id int the id
+     * @return String the token
+     */
+    @Override
+    public String getWord(int id) {
+        return words.get(id);
+    }
+
+    /**
+     * Returns the number of distinct tokens in the vocabulary.
+     *
+     * @return int the number of tokens
+     */
+    @Override
+    public int size() {
+        return words.size();
+    }
+
+    /**
+     * Returns the slot holding the token or the empty slot it should be inserted into.
+     *
+     * @param word String the token
+     * @param hash int the hash of the token, as given by {@link String#hashCode()}
+     * @return int the slot index
+     */
+    private int find(String word, int hash) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && words.get(id).equals(word)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Gives a new token the next id and places it in the given empty slot, growing the table if it has become too full.
+     *
+     * @param slot int the empty slot
+     * @param word String the token
+     * @param hash int the hash of the token
+     * @return int the id of the token
+     */
+    private int insert(int slot, String word, int hash) {
+        int id = words.size();
+        words.add(word);
+        if (id == hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (words.size() > table.length * LOAD_FACTOR) rehash(table.length * 2);
+        return id;
+    }
+
+    /**
+     * Moves every token into a new table of the given capacity.
+     *
+     * @param capacity int the new capacity, must be a power of two
+     */
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < words.size(); id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Returns if the token is made up of exactly the given range of characters.
+     *
+     * @param word   String the token
+     * @param chars  char[] the characters
+     * @param offset int the start of the range
+     * @param length int the length of the range
+     * @return boolean if they are equal
+     */
+    private static boolean matches(String word, char[] chars, int offset, int length) {
+        if (word.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[offset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a string hash so that similar tokens do not cluster in the table.
+     *
+     * @param hash int the hash
+     * @return int the mixed hash
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
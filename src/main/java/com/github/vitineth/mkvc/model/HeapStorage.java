@@ -0,0 +1,15 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ModelStorage} that keeps every column in a heap array. This is the cheapest to build and read but the
+ * garbage collector has to trace and move the arrays.
+ */
+public class HeapStorage implements ModelStorage {
+
+    @Override
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.vitineth.mkvc.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ModelStorage} that keeps every column in a memory mapped file, so the operating system pages the model in
+ * and out as it is used and a model can be larger than the memory of the machine.
+ * <br><br>
+ * Sections read from a model file are mapped straight from that file without any copying. New columns are appended to
+ * a backing file, one mapping each, which is a temporary file deleted on exit unless one is given.
+ */
+public class MappedStorage implements ModelStorage {
+
+    /**
+     * The file new columns are appended to, or null if a temporary file should be created on first use
+     */
+    private File file;
+    /**
+     * The end of the last column written to the backing file
+     */
+    private long position;
+
+    public MappedStorage() {
+        this(null);
+    }
+
+    /**
+     * Creates a mapped storage which appends new columns to the given file. Anything already in the file is replaced.
+     *
+     * @param file File the backing file or null to use a temporary file
+     */
+    public MappedStorage(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized ByteBuffer allocate(int size) throws IOException {
+        if (file == null) {
+            file = File.createTempFile("mkvc-model", ".bin");
+            file.deleteOnExit();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            if (position == 0) channel.truncate(0);
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            position = (position + size + 7) & ~7L;
+            return buffer;
+        }
+    }
+
+    @Override
+    public ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        if (position + size > channel.size()) throw new IOException("Model file is truncated");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+}
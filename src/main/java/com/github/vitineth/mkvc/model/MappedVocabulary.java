@@ -0,0 +1,186 @@
+package com.github.vitineth.mkvc.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read only {@link Vocabulary} that reads its tokens out of buffers, usually slices of a memory mapped model file.
+ * Tokens are stored one after another as UTF-8 with an offset column giving where each one starts. A second column
+ * lists the ids sorted by their encoded bytes so that {@link #getId(String)} can binary search without building a hash
+ * map on the heap.
+ */
+public class MappedVocabulary implements Vocabulary {
+
+    /**
+     * The start of each token in the byte data, with a trailing entry for the end of the last token
+     */
+    private final IntBuffer offsets;
+    /**
+     * The token ids in ascending order of their encoded bytes
+     */
+    private final IntBuffer sorted;
+    /**
+     * The UTF-8 bytes of every token
+     */
+    private final ByteBuffer data;
+
+    public MappedVocabulary(IntBuffer offsets, IntBuffer sorted, ByteBuffer data) {
+        this.offsets = offsets;
+        this.sorted = sorted;
+        this.data = data;
+    }
+
+    /**
+     * Encodes every token of the given vocabulary into columns allocated from the storage, keeping the same ids.
+     *
+     * @param vocabulary Vocabulary the vocabulary to encode
+     * @param storage    ModelStorage where to allocate the columns
+     * @return MappedVocabulary the encoded vocabulary
+     * @throws IOException If the storage cannot allocate the columns.
+     */
+    public static MappedVocabulary from(Vocabulary vocabulary, ModelStorage storage) throws IOException {
+        final byte[][] encoded = new byte[vocabulary.size()][];
+        long length = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = vocabulary.getWord(i).getBytes(StandardCharsets.UTF_8);
+            length += encoded[i].length;
+        }
+        Integer[] order = new Integer[encoded.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> compareUnsigned(encoded[a], encoded[b]));
+
+        IntBuffer offsets = storage.allocate(Math.toIntExact(4L * (encoded.length + 1))).asIntBuffer();
+        IntBuffer sorted = storage.allocate(Math.toIntExact(4L * encoded.length)).asIntBuffer();
+        ByteBuffer data = storage.allocate(Math.toIntExact(length));
+        for (int i = 0; i < encoded.length; i++) {
+            offsets.put(i + 1, offsets.get(i) + encoded[i].length);
+            sorted.put(i, order[i]);
+            data.put(encoded[i]);
+        }
+        data.clear();
+        return new MappedVocabulary(offsets, sorted, data);
+    }
+
+    /**
+     * Encodes a vocabulary made up of every token of the given one followed by the given new tokens, which take the ids
+     * after the existing ones. Only the new tokens are sorted, the existing sorted column is merged with them in one
+     * pass so the cost grows with the number of new tokens rather than with the size of the whole vocabulary.
+     *
+     * @param vocabulary MappedVocabulary the existing tokens
+     * @param words      List[String] the tokens to add, none of which may already be part of the vocabulary
+     * @param storage    ModelStorage where to allocate the columns
+     * @return MappedVocabulary the extended vocabulary
+     * @throws IOException If the storage cannot allocate the columns.
+     */
+    public static MappedVocabulary append(MappedVocabulary vocabulary, List<String> words, ModelStorage storage) throws IOException {
+        int existing = vocabulary.size();
+        final byte[][] encoded = new byte[words.size()][];
+        long length = vocabulary.data.limit();
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = words.get(i).getBytes(StandardCharsets.UTF_8);
+            length += encoded[i].length;
+        }
+        Integer[] order = new Integer[encoded.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> compareUnsigned(encoded[a], encoded[b]));
+
+        IntBuffer offsets = storage.allocate(Math.toIntExact(4L * (existing + encoded.length + 1))).asIntBuffer();
+        IntBuffer sorted = storage.allocate(Math.toIntExact(4L * (existing + encoded.length))).asIntBuffer();
+        ByteBuffer data = storage.allocate(Math.toIntExact(length));
+        offsets.put((IntBuffer) vocabulary.offsets.duplicate().clear());
+        data.put((ByteBuffer) vocabulary.data.duplicate().clear());
+        for (int i = 0; i < encoded.length; i++) {
+            offsets.put(existing + i + 1, offsets.get(existing + i) + encoded[i].length);
+            data.put(encoded[i]);
+        }
+        offsets.clear();
+        data.clear();
+
+        int next = 0;
+        int added = 0;
+        for (int i = 0; i < existing + encoded.length; i++) {
+            boolean takeExisting = added == encoded.length
+                    || (next < existing && vocabulary.compare(vocabulary.sorted.get(next), encoded[order[added]]) < 0);
+            sorted.put(i, takeExisting ? vocabulary.sorted.get(next++) : existing + order[added++]);
+        }
+        return new MappedVocabulary(offsets, sorted, data);
+    }
+
+    @Override
+    public int getId(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = sorted.get(mid);
+            int comparison = compare(id, key);
+            if (comparison < 0) low = mid + 1;
+            else if (comparison > 0) high = mid - 1;
+            else return id;
+        }
+        return -1;
+    }
+
+    @Override
+    public String getWord(int id) {
+        int start = offsets.get(id);
+        byte[] bytes = new byte[offsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = data.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return offsets.limit() - 1;
+    }
+
+    /**
+     * Compares the stored bytes of a token against a key using unsigned lexicographic ordering.
+     *
+     * @param id  int the token id
+     * @param key byte[] the encoded key
+     * @return int negative, zero or positive as the token is before, equal to or after the key
+     */
+    private int compare(int id, byte[] key) {
+        int start = offsets.get(id);
+        int length = offsets.get(id + 1) - start;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int difference = (data.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Compares two byte arrays using unsigned lexicographic ordering, the ordering of the sorted id column and of the
+     * vocabulary of a partial count file.
+     *
+     * @param a byte[] the first array
+     * @param b byte[] the second array
+     * @return int negative, zero or positive as a is before, equal to or after b
+     */
+    static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return a.length - b.length;
+    }
+
+    IntBuffer offsets() {
+        return offsets;
+    }
+
+    IntBuffer sorted() {
+        return sorted;
+    }
+
+    ByteBuffer data() {
+        return data;
+    }
+}
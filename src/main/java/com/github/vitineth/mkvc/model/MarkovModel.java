@@ -0,0 +1,238 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A trained markov model made up of the vocabulary of tokens, the trie of states and the table of transitions out of
+ * each state. In an order-k model every state is a tuple of the last k tokens. A model can also carry the
+ * {@link AliasTable} used to sample it and, if sentence parsing was done, the {@link SyntaxTable} and
+ * {@link TypedTransitionTable} used for structured generation.
+ */
+public class MarkovModel {
+
+    /**
+     * The vocabulary that token ids resolve through
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The states of the model
+     */
+    private final StateTrie states;
+    /**
+     * The transitions out of each state
+     */
+    private final TransitionTable transitions;
+    /**
+     * The sampling tables for each state, built on first use if they were not supplied
+     */
+    private AliasTable aliasTable;
+    /**
+     * The sentence structure data or null if the input was not parsed for sentences
+     */
+    private final SyntaxTable syntax;
+    /**
+     * The transitions partitioned by the word type of their follower, built on first use
+     */
+    private TypedTransitionTable typedTransitions;
+
+    public MarkovModel(Vocabulary vocabulary, StateTrie states, TransitionTable transitions) {
+        this(vocabulary, states, transitions, null, null);
+    }
+
+    public MarkovModel(Vocabulary vocabulary, StateTrie states, TransitionTable transitions, AliasTable aliasTable, SyntaxTable syntax) {
+        this.vocabulary = vocabulary;
+        this.states = states;
+        this.transitions = transitions;
+        this.aliasTable = aliasTable;
+        this.syntax = syntax;
+    }
+
+    /**
+     * Returns a copy of this model that carries the given sentence structure data.
+     *
+     * @param syntax SyntaxTable the sentence structure data
+     * @return MarkovModel the new model
+     */
+    public MarkovModel withSyntax(SyntaxTable syntax) {
+        return new MarkovModel(vocabulary, states, transitions, aliasTable, syntax);
+    }
+
+    /**
+     * Returns a copy of this model with every column moved into the given storage, including the vocabulary and the
+     * sampling tables. The copy reads entirely from the storage, so with {@link DirectStorage} or {@link MappedStorage}
+     * nothing but a handful of buffer objects is left on the heap. The typed transitions used for structured
+     * generation are rebuilt on first use as they can be derived from the other columns.
+     *
+     * @param storage ModelStorage where the columns of the copy should live
+     * @return MarkovModel the copy
+     * @throws IOException If the storage cannot allocate the columns.
+     */
+    public MarkovModel copyTo(ModelStorage storage) throws IOException {
+        AliasTable aliasTable = getAliasTable();
+
+        StateTrie copiedStates = new StateTrie(states.getOrder(), copy(states.levelStart(), storage), copy(states.tokens(), storage),
+                copy(states.parents(), storage), copy(states.firstChild(), storage));
+        TransitionTable copiedTransitions = new TransitionTable(copy(transitions.offsets(), storage), copy(transitions.followers(), storage),
+                copy(transitions.successors(), storage), copy(transitions.counts(), storage), copy(transitions.totals(), storage));
+        AliasTable copiedAliasTable = new AliasTable(copiedTransitions, copy(aliasTable.probability(), storage), copy(aliasTable.alias(), storage));
+        SyntaxTable copiedSyntax = null;
+        if (syntax != null) {
+            TemplateTrie templates = syntax.getTemplates();
+            copiedSyntax = new SyntaxTable(copy(syntax.wordTypes(), storage), new TemplateTrie(copy(templates.types(), storage),
+                    copy(templates.firstChild(), storage), copy(templates.counts(), storage), copy(templates.ends(), storage)));
+        }
+
+        return new MarkovModel(MappedVocabulary.from(vocabulary, storage), copiedStates, copiedTransitions, copiedAliasTable, copiedSyntax);
+    }
+
+    /**
+     * Copies a column into a buffer allocated from the storage.
+     *
+     * @param source  IntBuffer the column
+     * @param storage ModelStorage where to allocate the copy
+     * @return IntBuffer the copy
+     * @throws IOException If the storage cannot allocate the buffer.
+     */
+    private static IntBuffer copy(IntBuffer source, ModelStorage storage) throws IOException {
+        IntBuffer target = storage.allocate(Math.toIntExact(4L * source.limit())).asIntBuffer();
+        target.put((IntBuffer) source.duplicate().rewind());
+        return (IntBuffer) target.clear();
+    }
+
+    /**
+     * Copies a column into a buffer allocated from the storage.
+     *
+     * @param source  DoubleBuffer the column
+     * @param storage ModelStorage where to allocate the copy
+     * @return DoubleBuffer the copy
+     * @throws IOException If the storage cannot allocate the buffer.
+     */
+    private static DoubleBuffer copy(DoubleBuffer source, ModelStorage storage) throws IOException {
+        DoubleBuffer target = storage.allocate(Math.toIntExact(8L * source.limit())).asDoubleBuffer();
+        target.put((DoubleBuffer) source.duplicate().rewind());
+        return (DoubleBuffer) target.clear();
+    }
+
+    /**
+     * Copies a column into a buffer allocated from the storage.
+     *
+     * @param source  ByteBuffer the column
+     * @param storage ModelStorage where to allocate the copy
+     * @return ByteBuffer the copy
+     * @throws IOException If the storage cannot allocate the buffer.
+     */
+    private static ByteBuffer copy(ByteBuffer source, ModelStorage storage) throws IOException {
+        ByteBuffer target = storage.allocate(source.limit());
+        target.put((ByteBuffer) source.duplicate().rewind());
+        return (ByteBuffer) target.clear();
+    }
+
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    public StateTrie getStates() {
+        return states;
+    }
+
+    public TransitionTable getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Returns the sampling tables for the model, building them the first time they are needed.
+     *
+     * @return AliasTable the sampling tables
+     */
+    public synchronized AliasTable getAliasTable() {
+        if (aliasTable == null) aliasTable = new AliasTable(transitions);
+        return aliasTable;
+    }
+
+    /**
+     * Returns the sentence structure data of the model.
+     *
+     * @return SyntaxTable the syntax table or null if the input was not parsed for sentences
+     */
+    public SyntaxTable getSyntax() {
+        return syntax;
+    }
+
+    /**
+     * Returns the transitions partitioned by the word type of their follower, building them the first time they are
+     * needed.
+     *
+     * @return TypedTransitionTable the partitioned transitions or null if the model has no sentence structure data
+     */
+    public synchronized TypedTransitionTable getTypedTransitions() {
+        if (typedTransitions == null && syntax != null) typedTransitions = new TypedTransitionTable(transitions, syntax);
+        return typedTransitions;
+    }
+
+    /**
+     * Returns the number of bytes taken up by the columns of the model, which is also the size of its model file give
+     * or take padding. The alias table is always counted, whether or not it has been built yet, and the vocabulary is
+     * counted as its UTF-8 encoding plus two ints per token however it is currently held.
+     *
+     * @return long the size of the model in bytes
+     */
+    public long getSizeInBytes() {
+        long bytes = 4L * (states.levelStart().limit() + states.tokens().limit() + states.parents().limit() + states.firstChild().limit());
+        bytes += 4L * (transitions.offsets().limit() + transitions.totals().limit());
+        bytes += 24L * transitions.getTransitionCount();
+        if (syntax != null) {
+            bytes += syntax.wordTypes().limit() + 13L * syntax.getTemplates().getNodeCount() + 4;
+        }
+
+        if (vocabulary instanceof MappedVocabulary) {
+            MappedVocabulary mapped = (MappedVocabulary) vocabulary;
+            bytes += 4L * (mapped.offsets().limit() + mapped.sorted().limit()) + mapped.data().limit();
+        } else {
+            bytes += 4L * (2 * vocabulary.size() + 1);
+            for (int id = 0; id < vocabulary.size(); id++) bytes += vocabulary.getWord(id).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of tokens that make up each state.
+     *
+     * @return int the order of the model
+     */
+    public int getOrder() {
+        return states.getOrder();
+    }
+
+    /**
+     * Returns the words of the given state joined by single spaces.
+     *
+     * @param state int the state id
+     * @return String the state as text
+     */
+    public String getStateText(int state) {
+        int[] tuple = new int[getOrder()];
+        states.getTuple(state, tuple);
+
+        StringBuilder builder = new StringBuilder(vocabulary.getWord(tuple[0]));
+        for (int i = 1; i < tuple.length; i++) builder.append(" ").append(vocabulary.getWord(tuple[i]));
+        return builder.toString();
+    }
+
+    /**
+     * Returns a view of the model in the {@link WordData} form used before the model was stored in columns. The word of
+     * each entry is the full state text as produced by {@link #getStateText(int)}. The view is lazy, so each entry is
+     * only created when it is read and nothing is held on to.
+     *
+     * @return List[WordData] one entry per distinct transition
+     */
+    public List<WordData> toWordData() {
+        return new WordDataList(this);
+    }
+}
@@ -0,0 +1,267 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Builds a {@link MarkovModel} of a given order from a stream of tokens in a single pass. Each token is interned into
+ * the {@link HashVocabulary}, the window of the last k tokens is resolved to a node in a {@link PrefixTable} and the
+ * transition from that state to the next token is counted in a primitive hash map. Row totals are kept up to date as
+ * tokens arrive so that no second pass over the data is needed.
+ */
+public class ModelBuilder {
+
+    /**
+     * The largest order that a model can be built with
+     */
+    public static final int MAX_ORDER = 5;
+
+    /**
+     * The number of tokens that make up a state
+     */
+    private int order;
+    /**
+     * The vocabulary that tokens are interned into
+     */
+    private HashVocabulary vocabulary;
+    /**
+     * The trie of every state that has been seen
+     */
+    private PrefixTable prefixes;
+    /**
+     * The number of times each (state node, token) pair has been seen, keyed through
+     * {@link LongIntHashMap#key(int, int)}
+     */
+    private LongIntHashMap transitions;
+    /**
+     * The running total of transitions out of each state node
+     */
+    private int[] totals;
+    /**
+     * The last <code>order</code> token ids, oldest first
+     */
+    private int[] window;
+    /**
+     * The number of valid ids in the window
+     */
+    private int filled;
+    /**
+     * The state node for the current window or -1 if the window is not yet full
+     */
+    private int current = -1;
+    /**
+     * The number of tokens that have been added
+     */
+    private long tokenCount;
+    /**
+     * The number of transitions that have been counted, which is the sum of every row total
+     */
+    private long observationCount;
+
+    public ModelBuilder() {
+        this(1);
+    }
+
+    /**
+     * Creates a builder for a model of the given order with a new vocabulary.
+     *
+     * @param order int the number of tokens in each state, between 1 and {@link #MAX_ORDER}
+     */
+    public ModelBuilder(int order) {
+        this(new HashVocabulary(), order);
+    }
+
+    /**
+     * Creates a builder which interns tokens into an existing vocabulary.
+     *
+     * @param vocabulary HashVocabulary the vocabulary to use
+     * @param order      int the number of tokens in each state, between 1 and {@link #MAX_ORDER}
+     */
+    public ModelBuilder(HashVocabulary vocabulary, int order) {
+        if (order < 1 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 1 and " + MAX_ORDER + " but was " + order);
+        }
+        this.order = order;
+        this.vocabulary = vocabulary;
+        this.prefixes = new PrefixTable();
+        this.transitions = new LongIntHashMap(1024);
+        this.totals = new int[1024];
+        this.window = new int[order];
+    }
+
+    /**
+     * Interns the next token in the sequence and adds it through {@link #add(int)}.
+     *
+     * @param token String the token
+     */
+    public void add(String token) {
+        add(vocabulary.intern(token));
+    }
+
+    /**
+     * Adds the next token in the sequence by its id, counting the transition from the current state if the window is
+     * full. The id must have come from this builder's vocabulary, see {@link #getVocabulary()}.
+     *
+     * @param id int the id of the token
+     */
+    public void add(int id) {
+        tokenCount++;
+        if (current != -1) {
+            transitions.addTo(LongIntHashMap.key(current, id), 1);
+            if (current >= totals.length) totals = Arrays.copyOf(totals, Math.max(current + 1, totals.length * 2));
+            totals[current]++;
+            observationCount++;
+        }
+
+        if (filled == order) {
+            System.arraycopy(window, 1, window, 0, order - 1);
+            window[order - 1] = id;
+        } else {
+            window[filled++] = id;
+        }
+        if (filled == order) current = prefixes.insert(window, order);
+    }
+
+    /**
+     * Adds each of the given tokens in order through {@link #add(String)}.
+     *
+     * @param tokens String[] the tokens
+     */
+    public void addAll(String[] tokens) {
+        for (String token : tokens) add(token);
+    }
+
+    /**
+     * Adds every count held by another builder of the same order into this one. The other builder is assumed to have
+     * seen the tokens that come directly after those seen by this one, so words new to this builder are interned in
+     * the order the other builder first saw them and the window is taken from the other builder. This means merging
+     * builders for consecutive pieces of the input in order gives exactly the same model as a single builder that saw
+     * all of it, provided each builder after the first was primed with the last <code>order</code> tokens before its
+     * piece.
+     *
+     * @param other ModelBuilder the builder to merge into this one, which is left unchanged
+     */
+    public void merge(ModelBuilder other) {
+        if (other.order != order) {
+            throw new IllegalArgumentException("Cannot merge a builder of order " + other.order + " into one of order " + order);
+        }
+
+        HashVocabulary otherVocabulary = other.vocabulary;
+        int[] tokenMap = new int[otherVocabulary.size()];
+        for (int id = 0; id < tokenMap.length; id++) tokenMap[id] = vocabulary.intern(otherVocabulary.getWord(id));
+
+        //Translate every state of the other builder, including those with nothing following them yet.
+        PrefixTable otherPrefixes = other.prefixes;
+        int[] nodeMap = new int[otherPrefixes.size()];
+        int[] tuple = new int[order];
+        for (int node = 1; node < nodeMap.length; node++) {
+            if (otherPrefixes.getDepth(node) != order) continue;
+            int walk = node;
+            for (int i = order - 1; i >= 0; i--) {
+                tuple[i] = tokenMap[otherPrefixes.getToken(walk)];
+                walk = otherPrefixes.getParent(walk);
+            }
+            nodeMap[node] = prefixes.insert(tuple, order);
+        }
+
+        other.transitions.forEach((key, value) -> {
+            int node = nodeMap[LongIntHashMap.high(key)];
+            transitions.addTo(LongIntHashMap.key(node, tokenMap[LongIntHashMap.low(key)]), value);
+            if (node >= totals.length) totals = Arrays.copyOf(totals, Math.max(node + 1, totals.length * 2));
+            totals[node] += value;
+        });
+
+        tokenCount += other.tokenCount;
+        observationCount += other.observationCount;
+
+        for (int i = 0; i < other.filled; i++) window[i] = tokenMap[other.window[i]];
+        filled = other.filled;
+        current = filled == order ? prefixes.insert(window, order) : -1;
+    }
+
+    /**
+     * Returns the vocabulary that tokens are being interned into.
+     *
+     * @return HashVocabulary the vocabulary
+     */
+    public HashVocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * Returns the number of tokens that make up each state.
+     *
+     * @return int the order
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the number of tokens that have been added, including those added to any merged builders. Tokens used to
+     * prime a builder with the end of the previous shard are counted again.
+     *
+     * @return long the number of tokens
+     */
+    public long getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Returns the number of transitions that have been counted, including those of any merged builders.
+     *
+     * @return long the number of transitions
+     */
+    public long getObservationCount() {
+        return observationCount;
+    }
+
+    /**
+     * Compacts the counted transitions into a {@link MarkovModel}. Every state that was seen gets a row, even if
+     * nothing was seen to follow it. The builder can keep being used after this is called.
+     *
+     * @return MarkovModel the built model
+     */
+    public MarkovModel build() {
+        int[] remap = new int[prefixes.size()];
+        StateTrie states = prefixes.freeze(order, remap);
+        int stateCount = states.getStateCount();
+        int firstState = states.getNodeCount() - stateCount;
+
+        //Renumber the counted pairs from builder nodes to state ids and sort so that each row is contiguous.
+        final long[] keys = new long[transitions.size()];
+        final int[] index = {0};
+        transitions.forEach((key, value) -> keys[index[0]++] = LongIntHashMap.key(remap[LongIntHashMap.high(key)] - firstState, LongIntHashMap.low(key)));
+        Arrays.sort(keys);
+
+        int[] stateTotals = new int[stateCount];
+        for (int node = 0; node < Math.min(totals.length, remap.length); node++) {
+            if (totals[node] != 0) stateTotals[remap[node] - firstState] = totals[node];
+        }
+
+        int[] offsets = new int[stateCount + 1];
+        int[] followers = new int[keys.length];
+        int[] successors = new int[keys.length];
+        int[] counts = new int[keys.length];
+        int[] tuple = new int[order + 1];
+        int[] reverse = new int[states.getNodeCount()];
+        for (int node = 0; node < remap.length; node++) reverse[remap[node]] = node;
+
+        for (int i = 0; i < keys.length; i++) {
+            int state = LongIntHashMap.high(keys[i]);
+            int follower = LongIntHashMap.low(keys[i]);
+            followers[i] = follower;
+            counts[i] = transitions.get(LongIntHashMap.key(reverse[state + firstState], follower), 0);
+            offsets[state + 1]++;
+
+            //The state after this transition is this state's tuple with the oldest token dropped and the follower added.
+            states.getTuple(state, tuple);
+            tuple[order] = follower;
+            successors[i] = states.getState(tuple, 1);
+        }
+        for (int i = 0; i < stateCount; i++) offsets[i + 1] += offsets[i];
+
+        return new MarkovModel(vocabulary, states, new TransitionTable(offsets, followers, successors, counts, stateTotals));
+    }
+}
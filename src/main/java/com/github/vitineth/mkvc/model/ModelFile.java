@@ -0,0 +1,282 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes trained models in a versioned binary format. The file starts with a fixed size header holding the
+ * sizes of every section and is followed by each column of the model written as raw big endian values, with every
+ * section starting on an 8 byte boundary. Because the layout on disk is the same as the layout the model reads from,
+ * {@link #load(File)} maps each section straight into memory through {@link FileChannel#map} and the model reads from
+ * the mapping directly, so no time is spent deserializing into heap objects. {@link #load(File, ModelStorage)} can read
+ * the sections into heap or direct memory instead.
+ * <br><br>
+ * Sections, in order: vocabulary offsets, vocabulary sorted ids, vocabulary bytes, trie level starts, trie tokens,
+ * trie parents, trie first children, row offsets, followers, successors, counts, row totals, alias probabilities,
+ * aliases and, if the model has sentence data, word types, template trie types, template trie first children, template
+ * trie counts and template trie ends. Version 1 files, which held every template in full, are still read and have their
+ * templates merged into a {@link TemplateTrie} on load.
+ */
+public class ModelFile {
+
+    /**
+     * The bytes 'MKVC' which every model file starts with
+     */
+    public static final int MAGIC = 0x4D4B5643;
+    /**
+     * The version of the format written by this class
+     */
+    public static final int VERSION = 2;
+    /**
+     * The version that stored templates as flat offsets and types rather than a trie
+     */
+    private static final int VERSION_FLAT_TEMPLATES = 1;
+    /**
+     * The size of the header in bytes
+     */
+    private static final int HEADER_SIZE = 64;
+    /**
+     * The header flag set when the file contains a {@link SyntaxTable}
+     */
+    private static final int FLAG_SYNTAX = 1;
+
+    /**
+     * Writes the model to the given file, replacing anything already there. The model is written to a temporary file
+     * next to it which is then moved over the destination, so a model that was loaded from the destination and is
+     * still reading from its mapping can be saved back to it, and a failed write never leaves half a model behind.
+     *
+     * @param model MarkovModel the model to write
+     * @param file  File the destination
+     * @throws IOException If there is an error writing the file.
+     */
+    public static void save(MarkovModel model, File file) throws IOException {
+        Vocabulary vocabulary = model.getVocabulary();
+        StateTrie states = model.getStates();
+        TransitionTable transitions = model.getTransitions();
+        AliasTable aliasTable = model.getAliasTable();
+        SyntaxTable syntax = model.getSyntax();
+
+        MappedVocabulary encoded = vocabulary instanceof MappedVocabulary ? (MappedVocabulary) vocabulary : MappedVocabulary.from(vocabulary, new HeapStorage());
+
+        File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            SectionWriter writer = new SectionWriter(out);
+
+            writer.writeInt(MAGIC);
+            writer.writeInt(VERSION);
+            writer.writeInt(states.getOrder());
+            writer.writeInt(vocabulary.size());
+            writer.writeInt(encoded.data().limit());
+            writer.writeInt(states.getNodeCount());
+            writer.writeInt(states.getNodeCount() - states.getStateCount());
+            writer.writeInt(transitions.getStateCount());
+            writer.writeInt(transitions.getTransitionCount());
+            writer.writeInt(syntax == null ? 0 : FLAG_SYNTAX);
+            writer.writeInt(syntax == null ? 0 : syntax.getTemplates().getNodeCount());
+            writer.pad(HEADER_SIZE);
+
+            writer.writeInts(encoded.offsets());
+            writer.writeInts(encoded.sorted());
+            writer.writeBytes(encoded.data());
+
+            writer.writeInts(states.levelStart());
+            writer.writeInts(states.tokens());
+            writer.writeInts(states.parents());
+            writer.writeInts(states.firstChild());
+
+            writer.writeInts(transitions.offsets());
+            writer.writeInts(transitions.followers());
+            writer.writeInts(transitions.successors());
+            writer.writeInts(transitions.counts());
+            writer.writeInts(transitions.totals());
+
+            writer.writeDoubles(aliasTable.probability());
+            writer.writeInts(aliasTable.alias());
+
+            if (syntax != null) {
+                writer.writeBytes(syntax.wordTypes());
+                TemplateTrie templates = syntax.getTemplates();
+                writer.writeBytes(templates.types());
+                writer.writeInts(templates.firstChild());
+                writer.writeInts(templates.counts());
+                writer.writeInts(templates.ends());
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary.toPath());
+            throw e;
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a model file into memory and returns a model that reads from the mapping. The file can be closed or reused
+     * as soon as this returns as the mappings stay valid until they are garbage collected.
+     *
+     * @param file File the model file
+     * @return MarkovModel the loaded model
+     * @throws IOException If the file cannot be read or is not a supported model file.
+     */
+    public static MarkovModel load(File file) throws IOException {
+        return load(file, new MappedStorage());
+    }
+
+    /**
+     * Reads a model file into the given storage and returns a model that reads from it. With a {@link MappedStorage}
+     * each section is mapped straight from the file, otherwise each section is copied into a buffer of the storage.
+     *
+     * @param file    File the model file
+     * @param storage ModelStorage where the columns of the model should live
+     * @return MarkovModel the loaded model
+     * @throws IOException If the file cannot be read or is not a supported model file.
+     */
+    public static MarkovModel load(File file, ModelStorage storage) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) throw new IOException("File is too short to be a model: " + file);
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) throw new IOException("File is not a model file: " + file);
+            int version = header.getInt();
+            if (version != VERSION && version != VERSION_FLAT_TEMPLATES) throw new IOException("Unsupported model version " + version + " (expected " + VERSION + ")");
+
+            int order = header.getInt();
+            int vocabularySize = header.getInt();
+            int vocabularyBytes = header.getInt();
+            int nodeCount = header.getInt();
+            int internalCount = header.getInt();
+            int stateCount = header.getInt();
+            int transitionCount = header.getInt();
+            int flags = header.getInt();
+            //Version 1 held the template count and total template length here, version 2 holds the trie node count.
+            int templateCount = header.getInt();
+            int templateLength = header.getInt();
+
+            SectionReader reader = new SectionReader(channel, storage, HEADER_SIZE);
+            Vocabulary vocabulary = new MappedVocabulary(reader.ints(vocabularySize + 1), reader.ints(vocabularySize), reader.bytes(vocabularyBytes));
+            StateTrie states = new StateTrie(order, reader.ints(order + 2), reader.ints(nodeCount), reader.ints(nodeCount), reader.ints(internalCount + 1));
+            TransitionTable transitions = new TransitionTable(reader.ints(stateCount + 1), reader.ints(transitionCount), reader.ints(transitionCount), reader.ints(transitionCount), reader.ints(stateCount));
+            AliasTable aliasTable = new AliasTable(transitions, reader.doubles(transitionCount), reader.ints(transitionCount));
+
+            SyntaxTable syntax = null;
+            if ((flags & FLAG_SYNTAX) != 0) {
+                ByteBuffer wordTypes = reader.bytes(vocabularySize);
+                TemplateTrie templates = version == VERSION_FLAT_TEMPLATES ? readFlatTemplates(reader.ints(templateCount + 1), reader.bytes(templateLength))
+                        : new TemplateTrie(reader.bytes(templateCount), reader.ints(templateCount + 1), reader.ints(templateCount), reader.ints(templateCount));
+                syntax = new SyntaxTable(wordTypes, templates);
+            }
+
+            return new MarkovModel(vocabulary, states, transitions, aliasTable, syntax);
+        }
+    }
+
+    /**
+     * Merges the templates of a version 1 file, which were stored one after another with their start offsets, into a
+     * trie.
+     *
+     * @param offsets IntBuffer the start of each template, with a trailing entry for the end of the last
+     * @param types   ByteBuffer the word type ordinals of every template
+     * @return TemplateTrie the merged templates
+     */
+    private static TemplateTrie readFlatTemplates(IntBuffer offsets, ByteBuffer types) {
+        TemplateTrie.Builder builder = new TemplateTrie.Builder();
+        for (int i = 0; i + 1 < offsets.limit(); i++) {
+            WordType[] template = new WordType[offsets.get(i + 1) - offsets.get(i)];
+            for (int j = 0; j < template.length; j++) template[j] = WordType.values()[types.get(offsets.get(i) + j)];
+            builder.add(template);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Writes sections to a stream while tracking the position so each section can be padded to an 8 byte boundary.
+     */
+    private static class SectionWriter {
+
+        private final DataOutputStream out;
+        private long position;
+
+        SectionWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+            position += 4;
+        }
+
+        void writeInts(IntBuffer buffer) throws IOException {
+            for (int i = 0; i < buffer.limit(); i++) out.writeInt(buffer.get(i));
+            position += 4L * buffer.limit();
+            align();
+        }
+
+        void writeDoubles(DoubleBuffer buffer) throws IOException {
+            for (int i = 0; i < buffer.limit(); i++) out.writeDouble(buffer.get(i));
+            position += 8L * buffer.limit();
+            align();
+        }
+
+        void writeBytes(ByteBuffer buffer) throws IOException {
+            for (int i = 0; i < buffer.limit(); i++) out.writeByte(buffer.get(i));
+            position += buffer.limit();
+            align();
+        }
+
+        void align() throws IOException {
+            pad((position + 7) & ~7L);
+        }
+
+        void pad(long target) throws IOException {
+            while (position < target) {
+                out.writeByte(0);
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive sections of a model file into a storage, each starting on an 8 byte boundary. Every section gets
+     * its own buffer so that no single buffer needs to exceed the 2GB limit.
+     */
+    private static class SectionReader {
+
+        private final FileChannel channel;
+        private final ModelStorage storage;
+        private long position;
+
+        SectionReader(FileChannel channel, ModelStorage storage, long position) {
+            this.channel = channel;
+            this.storage = storage;
+            this.position = position;
+        }
+
+        IntBuffer ints(int count) throws IOException {
+            return read(4L * count).asIntBuffer();
+        }
+
+        DoubleBuffer doubles(int count) throws IOException {
+            return read(8L * count).asDoubleBuffer();
+        }
+
+        ByteBuffer bytes(int count) throws IOException {
+            return read(count);
+        }
+
+        private ByteBuffer read(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) throw new IOException("Model section of " + size + " bytes is too large for a buffer");
+            ByteBuffer buffer = storage.read(channel, position, (int) size);
+            position = (position + size + 7) & ~7L;
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compacts a counted model by dropping the long tail of rare transitions, which usually makes up most of a model while
+ * contributing very little to what it generates. Three cutoffs can be combined:
+ * <ul>
+ * <li>a minimum count, below which a transition is dropped</li>
+ * <li>a maximum number of followers per state, keeping only the most frequent</li>
+ * <li>a minimum word frequency, below which a word is dropped from the vocabulary along with every state that contains
+ * it and every transition that leads to it</li>
+ * </ul>
+ * Row totals are recomputed from the transitions that are kept so each state's probabilities still add up to one. The
+ * {@link Result} reports how much smaller the model became and how much probability mass was given up to get there.
+ */
+public class ModelPruner {
+
+    /**
+     * The smallest count a transition needs to be kept
+     */
+    private int minimumCount = 1;
+    /**
+     * The largest number of followers to keep for each state, or 0 to keep them all
+     */
+    private int maximumFollowers = 0;
+    /**
+     * The number of times a word needs to have been seen to be kept
+     */
+    private int minimumWordFrequency = 1;
+
+    /**
+     * Sets the smallest count a transition needs to be kept. 1 keeps every transition.
+     *
+     * @param minimumCount int the minimum count
+     */
+    public void setMinimumCount(int minimumCount) {
+        if (minimumCount < 1) throw new IllegalArgumentException("The minimum count must be at least 1 but was " + minimumCount);
+        this.minimumCount = minimumCount;
+    }
+
+    public int getMinimumCount() {
+        return minimumCount;
+    }
+
+    /**
+     * Sets the largest number of followers to keep for each state. The most frequent are kept and ties go to the lower
+     * token id.
+     *
+     * @param maximumFollowers int the number of followers or 0 to keep them all
+     */
+    public void setMaximumFollowers(int maximumFollowers) {
+        if (maximumFollowers < 0) throw new IllegalArgumentException("The maximum followers cannot be negative but was " + maximumFollowers);
+        this.maximumFollowers = maximumFollowers;
+    }
+
+    public int getMaximumFollowers() {
+        return maximumFollowers;
+    }
+
+    /**
+     * Sets the number of times a word needs to have been seen following a state to stay in the vocabulary. 1 keeps
+     * every word that was ever generated.
+     *
+     * @param minimumWordFrequency int the minimum frequency
+     */
+    public void setMinimumWordFrequency(int minimumWordFrequency) {
+        if (minimumWordFrequency < 1) throw new IllegalArgumentException("The minimum word frequency must be at least 1 but was " + minimumWordFrequency);
+        this.minimumWordFrequency = minimumWordFrequency;
+    }
+
+    public int getMinimumWordFrequency() {
+        return minimumWordFrequency;
+    }
+
+    /**
+     * Returns if any of the cutoffs would drop something, so that pruning can be skipped entirely when they would not.
+     *
+     * @return boolean if pruning is enabled
+     */
+    public boolean isEnabled() {
+        return minimumCount > 1 || maximumFollowers > 0 || minimumWordFrequency > 1;
+    }
+
+    /**
+     * Builds a pruned copy of the model. The given model is left unchanged. Words are renumbered in their original
+     * order, so the ordering of states and of followers within each row is the same as in the original.
+     *
+     * @param model MarkovModel the model to prune
+     * @return Result the pruned model and what was lost to get it
+     */
+    public Result prune(MarkovModel model) {
+        Vocabulary vocabulary = model.getVocabulary();
+        StateTrie states = model.getStates();
+        TransitionTable table = model.getTransitions();
+        int order = states.getOrder();
+
+        //Drop words that were not generated often enough, and every state made up of one of them.
+        long[] frequency = new long[vocabulary.size()];
+        for (int i = 0; i < table.getTransitionCount(); i++) frequency[table.getFollower(i)] += table.getCount(i);
+        HashVocabulary prunedVocabulary = new HashVocabulary();
+        int[] wordMap = new int[vocabulary.size()];
+        for (int id = 0; id < wordMap.length; id++) {
+            wordMap[id] = frequency[id] >= minimumWordFrequency ? prunedVocabulary.intern(vocabulary.getWord(id)) : -1;
+        }
+
+        PrefixTable prefixes = new PrefixTable();
+        int[] stateNodes = new int[table.getStateCount()];
+        int[] tuple = new int[order];
+        for (int state = 0; state < stateNodes.length; state++) {
+            states.getTuple(state, tuple);
+            stateNodes[state] = -1;
+            boolean kept = true;
+            for (int i = 0; i < order && kept; i++) kept = (tuple[i] = wordMap[tuple[i]]) != -1;
+            if (kept) stateNodes[state] = prefixes.insert(tuple, order);
+        }
+        int[] remap = new int[prefixes.size()];
+        StateTrie prunedStates = prefixes.freeze(order, remap);
+        int firstState = prunedStates.getNodeCount() - prunedStates.getStateCount();
+        int[] stateMap = new int[stateNodes.length];
+        for (int state = 0; state < stateMap.length; state++) {
+            stateMap[state] = stateNodes[state] == -1 ? -1 : remap[stateNodes[state]] - firstState;
+        }
+
+        //Choose the transitions to keep row by row. Renumbering keeps the original order of both states and words, so
+        //the kept rows come out already sorted.
+        boolean[] keep = new boolean[table.getTransitionCount()];
+        int[] offsets = new int[prunedStates.getStateCount() + 1];
+        int[] totals = new int[prunedStates.getStateCount()];
+        long totalCount = 0;
+        long keptCount = 0;
+        double worstLoss = 0;
+        for (int state = 0; state < stateMap.length; state++) {
+            int start = table.getRowStart(state);
+            int end = table.getRowEnd(state);
+            long rowTotal = 0;
+            for (int i = start; i < end; i++) rowTotal += table.getCount(i);
+            totalCount += rowTotal;
+            if (stateMap[state] == -1) {
+                if (rowTotal > 0) worstLoss = 1;
+                continue;
+            }
+
+            int candidates = 0;
+            for (int i = start; i < end; i++) {
+                keep[i] = table.getCount(i) >= minimumCount && stateMap[table.getSuccessor(i)] != -1;
+                if (keep[i]) candidates++;
+            }
+            if (maximumFollowers > 0 && candidates > maximumFollowers) keepMostFrequent(table, start, end, keep, maximumFollowers);
+
+            int rowKept = 0;
+            for (int i = start; i < end; i++) {
+                if (!keep[i]) continue;
+                offsets[stateMap[state] + 1]++;
+                rowKept += table.getCount(i);
+            }
+            totals[stateMap[state]] = rowKept;
+            keptCount += rowKept;
+            if (rowTotal > 0) worstLoss = Math.max(worstLoss, 1 - (double) rowKept / rowTotal);
+        }
+        for (int i = 0; i < totals.length; i++) offsets[i + 1] += offsets[i];
+
+        int transitionCount = offsets[totals.length];
+        int[] followers = new int[transitionCount];
+        int[] successors = new int[transitionCount];
+        int[] counts = new int[transitionCount];
+        int next = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (!keep[i]) continue;
+            followers[next] = wordMap[table.getFollower(i)];
+            successors[next] = stateMap[table.getSuccessor(i)];
+            counts[next] = table.getCount(i);
+            next++;
+        }
+
+        TransitionTable prunedTable = new TransitionTable(offsets, followers, successors, counts, totals);
+        MarkovModel pruned = new MarkovModel(prunedVocabulary, prunedStates, prunedTable, null, pruneSyntax(model.getSyntax(), wordMap, prunedVocabulary.size()));
+
+        double massLost = totalCount == 0 ? 0 : 1 - (double) keptCount / totalCount;
+        return new Result(pruned, model.getSizeInBytes(), pruned.getSizeInBytes(), vocabulary.size(), prunedVocabulary.size(),
+                table.getStateCount(), prunedTable.getStateCount(), table.getTransitionCount(), transitionCount, massLost, worstLoss);
+    }
+
+    /**
+     * Clears the keep flag of every transition in the row except the most frequent ones that are still kept.
+     *
+     * @param table   TransitionTable the transitions
+     * @param start   int the start of the row
+     * @param end     int the end of the row
+     * @param keep    boolean[] the keep flag of each transition, updated in place
+     * @param maximum int the number of transitions to keep
+     */
+    private static void keepMostFrequent(TransitionTable table, int start, int end, boolean[] keep, int maximum) {
+        //Sort on descending count then ascending index by packing both into a long.
+        long[] ranked = new long[end - start];
+        int size = 0;
+        for (int i = start; i < end; i++) {
+            if (keep[i]) ranked[size++] = ((long) (Integer.MAX_VALUE - table.getCount(i)) << 32) | (i - start);
+        }
+        Arrays.sort(ranked, 0, size);
+        for (int i = maximum; i < size; i++) keep[start + (int) ranked[i]] = false;
+    }
+
+    /**
+     * Renumbers the word types of a syntax table to the pruned vocabulary. The sentence templates are unchanged.
+     *
+     * @param syntax         SyntaxTable the syntax table or null
+     * @param wordMap        int[] the new id of each old word or -1 if it was dropped
+     * @param vocabularySize int the size of the pruned vocabulary
+     * @return SyntaxTable the renumbered table or null if there was none
+     */
+    private static SyntaxTable pruneSyntax(SyntaxTable syntax, int[] wordMap, int vocabularySize) {
+        if (syntax == null) return null;
+        ByteBuffer wordTypes = ByteBuffer.allocate(vocabularySize);
+        for (int id = 0; id < wordMap.length; id++) {
+            if (wordMap[id] != -1) wordTypes.put(wordMap[id], syntax.wordTypes().get(id));
+        }
+        return new SyntaxTable(wordTypes, syntax.getTemplates());
+    }
+
+    /**
+     * The outcome of pruning a model: the pruned model and how it compares to the original.
+     */
+    public static class Result {
+
+        /**
+         * The pruned model
+         */
+        private final MarkovModel model;
+        /**
+         * The size of the original model in bytes
+         */
+        private final long bytesBefore;
+        /**
+         * The size of the pruned model in bytes
+         */
+        private final long bytesAfter;
+        /**
+         * The number of words in the original vocabulary
+         */
+        private final int wordsBefore;
+        /**
+         * The number of words in the pruned vocabulary
+         */
+        private final int wordsAfter;
+        /**
+         * The number of states in the original model
+         */
+        private final int statesBefore;
+        /**
+         * The number of states in the pruned model
+         */
+        private final int statesAfter;
+        /**
+         * The number of transitions in the original model
+         */
+        private final int transitionsBefore;
+        /**
+         * The number of transitions in the pruned model
+         */
+        private final int transitionsAfter;
+        /**
+         * The fraction of all observed transitions that were dropped
+         */
+        private final double massLost;
+        /**
+         * The largest fraction of a single state's probability mass that was dropped
+         */
+        private final double worstStateMassLost;
+
+        Result(MarkovModel model, long bytesBefore, long bytesAfter, int wordsBefore, int wordsAfter, int statesBefore, int statesAfter,
+               int transitionsBefore, int transitionsAfter, double massLost, double worstStateMassLost) {
+            this.model = model;
+            this.bytesBefore = bytesBefore;
+            this.bytesAfter = bytesAfter;
+            this.wordsBefore = wordsBefore;
+            this.wordsAfter = wordsAfter;
+            this.statesBefore = statesBefore;
+            this.statesAfter = statesAfter;
+            this.transitionsBefore = transitionsBefore;
+            this.transitionsAfter = transitionsAfter;
+            this.massLost = massLost;
+            this.worstStateMassLost = worstStateMassLost;
+        }
+
+        public MarkovModel getModel() {
+            return model;
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        /**
+         * Returns how many bytes smaller the pruned model is, as measured by {@link MarkovModel#getSizeInBytes()}.
+         *
+         * @return long the bytes saved
+         */
+        public long getBytesSaved() {
+            return bytesBefore - bytesAfter;
+        }
+
+        public int getWordsBefore() {
+            return wordsBefore;
+        }
+
+        public int getWordsAfter() {
+            return wordsAfter;
+        }
+
+        public int getStatesBefore() {
+            return statesBefore;
+        }
+
+        public int getStatesAfter() {
+            return statesAfter;
+        }
+
+        public int getTransitionsBefore() {
+            return transitionsBefore;
+        }
+
+        public int getTransitionsAfter() {
+            return transitionsAfter;
+        }
+
+        /**
+         * Returns the fraction of the probability mass of the whole model that was dropped, which is the share of all
+         * observed transitions that the pruned model no longer has. Each state is weighted by how often it was seen.
+         *
+         * @return double the mass lost between 0 and 1
+         */
+        public double getMassLost() {
+            return massLost;
+        }
+
+        /**
+         * Returns the largest fraction of a single state's probability mass that was dropped. A state that was dropped
+         * entirely lost all of it.
+         *
+         * @return double the mass lost between 0 and 1
+         */
+        public double getWorstStateMassLost() {
+            return worstStateMassLost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pruned %,d -> %,d bytes (saved %,d), %,d -> %,d words, %,d -> %,d states, %,d -> %,d transitions, "
+                            + "%.2f%% of probability mass lost (at most %.2f%% of a state)",
+                    bytesBefore, bytesAfter, getBytesSaved(), wordsBefore, wordsAfter, statesBefore, statesAfter,
+                    transitionsBefore, transitionsAfter, massLost * 100, worstStateMassLost * 100);
+        }
+    }
+}
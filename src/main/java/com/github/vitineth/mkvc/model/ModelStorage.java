@@ -0,0 +1,57 @@
+package com.github.vitineth.mkvc.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decides where the columns of a model live. Every part of a model reads its columns through buffers, so the same
+ * model can be held in heap arrays, in direct memory outside of the heap or in a memory mapped file without any other
+ * code knowing the difference. Off heap storage keeps multi-gigabyte models out of the way of the garbage collector.
+ * <br><br>
+ * A model is moved into a storage with {@link MarkovModel#copyTo(ModelStorage)} or read into one with
+ * {@link ModelFile#load(java.io.File, ModelStorage)}.
+ */
+public interface ModelStorage {
+
+    /**
+     * Allocates a zeroed buffer of the given size in this storage.
+     *
+     * @param size int the size in bytes
+     * @return ByteBuffer the buffer, in big endian order
+     * @throws IOException If the storage is backed by a file which cannot be grown.
+     */
+    ByteBuffer allocate(int size) throws IOException;
+
+    /**
+     * Reads a section of a file into this storage. By default this allocates a buffer and reads the section into it.
+     *
+     * @param channel  FileChannel the file to read from
+     * @param position long the start of the section
+     * @param size     int the size of the section in bytes
+     * @return ByteBuffer the section, in big endian order
+     * @throws IOException If there is an error reading the file or it ends before the section does.
+     */
+    default ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Model file is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the storage with the given name: heap, direct or mapped. Mapped storage spills to a temporary file.
+     *
+     * @param name String the name, in any case
+     * @return ModelStorage the storage or null if the name is not known
+     */
+    static ModelStorage fromName(String name) {
+        if (name.equalsIgnoreCase("heap")) return new HeapStorage();
+        if (name.equalsIgnoreCase("direct")) return new DirectStorage();
+        if (name.equalsIgnoreCase("mapped")) return new MappedStorage();
+        return null;
+    }
+}
@@ -0,0 +1,435 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges a model trained on a batch of new text into an existing model, so a model that is kept up to date by regular
+ * batches never has to be retrained from its whole history. The result is the model that would have been built by
+ * counting the existing input and the new batch as separate pieces, with no transition counted across the gap between
+ * them.
+ * <br><br>
+ * The expensive work only touches the delta. Existing words keep their ids and new words are appended after them in
+ * the order the batch first saw them, so the existing vocabulary is merged with just the new words rather than sorted
+ * again. The state trie is merged level by level with the sorted new states in one pass over the existing nodes with no
+ * hashing. Each row of the transition table that the batch did not touch is copied across along with its sampling
+ * table, only having its successor states renumbered, and only the rows the batch added to are merged and have their
+ * {@link AliasTable} rows rebuilt. Sentence templates are merged with their counts and the word types of the batch
+ * replace those of existing words, as they would when the whole input is parsed.
+ */
+public class ModelUpdater {
+
+    /**
+     * Merges the delta into the model. Both models are left unchanged.
+     *
+     * @param model MarkovModel the existing model
+     * @param delta MarkovModel the model trained on the new text, which must be of the same order
+     * @return Result the merged model and what the delta added to it
+     * @throws IOException If the vocabulary cannot be allocated.
+     */
+    public Result update(MarkovModel model, MarkovModel delta) throws IOException {
+        int order = model.getOrder();
+        if (delta.getOrder() != order) {
+            throw new IllegalArgumentException("Cannot merge a model of order " + delta.getOrder() + " into one of order " + order);
+        }
+
+        //Existing words keep their ids, new words are appended in the order the delta assigned them.
+        Vocabulary vocabulary = model.getVocabulary();
+        Vocabulary deltaVocabulary = delta.getVocabulary();
+        int[] tokenMap = new int[deltaVocabulary.size()];
+        List<String> addedWords = new ArrayList<>();
+        for (int id = 0; id < tokenMap.length; id++) {
+            String word = deltaVocabulary.getWord(id);
+            int existing = vocabulary.getId(word);
+            if (existing == -1) {
+                existing = vocabulary.size() + addedWords.size();
+                addedWords.add(word);
+            }
+            tokenMap[id] = existing;
+        }
+        MappedVocabulary encoded = vocabulary instanceof MappedVocabulary ? (MappedVocabulary) vocabulary : MappedVocabulary.from(vocabulary, new HeapStorage());
+        MappedVocabulary mergedVocabulary = MappedVocabulary.append(encoded, addedWords, new HeapStorage());
+
+        //Find the states of the delta that the model does not have yet. Each is stored as its tuple followed by its
+        //state in the delta so that they can be sorted into trie order.
+        StateTrie states = model.getStates();
+        StateTrie deltaStates = delta.getStates();
+        int[] deltaStateMap = new int[deltaStates.getStateCount()];
+        List<int[]> added = new ArrayList<>();
+        int[] tuple = new int[order];
+        for (int state = 0; state < deltaStateMap.length; state++) {
+            deltaStates.getTuple(state, tuple);
+            for (int i = 0; i < order; i++) tuple[i] = tokenMap[tuple[i]];
+            deltaStateMap[state] = states.getState(tuple, 0);
+            if (deltaStateMap[state] == -1) {
+                int[] entry = Arrays.copyOf(tuple, order + 1);
+                entry[order] = state;
+                added.add(entry);
+            }
+        }
+        int[][] addedStates = added.toArray(new int[added.size()][]);
+        Arrays.sort(addedStates, (a, b) -> {
+            for (int i = 0; i < order; i++) {
+                if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+            }
+            return 0;
+        });
+
+        int[] nodeMap = new int[states.getNodeCount()];
+        StateTrie mergedStates = mergeStates(states, addedStates, nodeMap);
+        int firstState = states.getNodeCount() - states.getStateCount();
+        int mergedFirstState = mergedStates.getNodeCount() - mergedStates.getStateCount();
+        int[] stateMap = new int[states.getStateCount()];
+        for (int state = 0; state < stateMap.length; state++) stateMap[state] = nodeMap[firstState + state] - mergedFirstState;
+        for (int state = 0; state < deltaStateMap.length; state++) {
+            if (deltaStateMap[state] != -1) deltaStateMap[state] = stateMap[deltaStateMap[state]];
+        }
+        for (int[] entry : addedStates) deltaStateMap[entry[order]] = entry[order + 1] - mergedFirstState;
+
+        MergedRows rows = mergeRows(model, delta, tokenMap, stateMap, deltaStateMap, mergedStates.getStateCount());
+        SyntaxTable syntax = mergeSyntax(model.getSyntax(), delta.getSyntax(), tokenMap, mergedVocabulary.size());
+
+        MarkovModel merged = new MarkovModel(mergedVocabulary, mergedStates, rows.table, rows.aliasTable, syntax);
+        return new Result(merged, addedWords.size(), addedStates.length,
+                rows.table.getTransitionCount() - model.getTransitions().getTransitionCount(), rows.rebuilt, rows.table.getStateCount());
+    }
+
+    /**
+     * Merges the nodes of the new states into the trie one level at a time. Both the existing nodes of a level and the
+     * new ones are already in order of their renumbered parent and then their token, so each level is a single merge of
+     * two sorted lists. The merged node of each new state is written after its delta state in its entry.
+     *
+     * @param states      StateTrie the existing states
+     * @param addedStates int[][] the tuple and delta state of each new state, sorted by tuple, which gain the merged node
+     * @param nodeMap     int[] filled with the merged node of each existing node
+     * @return StateTrie the merged trie
+     */
+    private static StateTrie mergeStates(StateTrie states, int[][] addedStates, int[] nodeMap) {
+        int order = states.getOrder();
+        IntBuffer levelStart = states.levelStart();
+        IntBuffer tokens = states.tokens();
+        IntBuffer parents = states.parents();
+
+        //Track where each new tuple's prefix is as the levels are walked: the existing node while the prefix is part
+        //of the trie, then -1, and the merged node once the level has been merged.
+        int count = addedStates.length;
+        int[] existing = new int[count];
+        int[] merged = new int[count];
+
+        int capacity = states.getNodeCount() + count * order;
+        int[] mergedTokens = new int[capacity];
+        int[] mergedParents = new int[capacity];
+        int[] mergedLevelStart = new int[order + 2];
+        mergedTokens[0] = -1;
+        mergedParents[0] = -1;
+        mergedLevelStart[1] = 1;
+        int next = 1;
+        for (int depth = 1; depth <= order; depth++) {
+            for (int i = 0; i < count; i++) {
+                if (existing[i] != -1) existing[i] = states.findChild(existing[i], addedStates[i][depth - 1]);
+            }
+
+            int node = levelStart.get(depth);
+            int end = levelStart.get(depth + 1);
+            int added = firstNew(existing, 0);
+            while (node < end || added < count) {
+                long oldKey = node < end ? LongIntHashMap.key(nodeMap[parents.get(node)], tokens.get(node)) : Long.MAX_VALUE;
+                long newKey = added < count ? LongIntHashMap.key(merged[added], addedStates[added][depth - 1]) : Long.MAX_VALUE;
+                if (oldKey < newKey) {
+                    nodeMap[node++] = next;
+                } else {
+                    //Tuples sharing this prefix are next to each other, so they all move onto the same new node.
+                    while (added < count && existing[added] == -1
+                            && LongIntHashMap.key(merged[added], addedStates[added][depth - 1]) == newKey) {
+                        merged[added++] = next;
+                    }
+                    added = firstNew(existing, added);
+                }
+                mergedParents[next] = LongIntHashMap.high(Math.min(oldKey, newKey));
+                mergedTokens[next] = LongIntHashMap.low(Math.min(oldKey, newKey));
+                next++;
+            }
+            for (int i = 0; i < count; i++) {
+                if (existing[i] != -1) merged[i] = nodeMap[existing[i]];
+            }
+            mergedLevelStart[depth + 1] = next;
+        }
+
+        int[] firstChild = new int[mergedLevelStart[order] + 1];
+        firstChild[0] = 1;
+        for (int node = 1; node < next; node++) firstChild[mergedParents[node] + 1]++;
+        for (int node = 0; node < mergedLevelStart[order]; node++) firstChild[node + 1] += firstChild[node];
+
+        for (int i = 0; i < count; i++) {
+            addedStates[i] = Arrays.copyOf(addedStates[i], order + 2);
+            addedStates[i][order + 1] = merged[i];
+        }
+        return new StateTrie(order, mergedLevelStart, Arrays.copyOf(mergedTokens, next), Arrays.copyOf(mergedParents, next), firstChild);
+    }
+
+    /**
+     * Returns the first new tuple from the given index whose prefix is not part of the existing trie.
+     *
+     * @param existing int[] the existing node of each tuple's prefix or -1
+     * @param from     int the index to start from
+     * @return int the index of the tuple or the number of tuples if there are none left
+     */
+    private static int firstNew(int[] existing, int from) {
+        while (from < existing.length && existing[from] != -1) from++;
+        return from;
+    }
+
+    /**
+     * Builds the merged transition table. Rows only the model has are copied with their sampling tables and rows the
+     * delta added to are merged by follower and have their sampling tables rebuilt.
+     *
+     * @param model         MarkovModel the existing model
+     * @param delta         MarkovModel the model of the new text
+     * @param tokenMap      int[] the merged id of each delta token
+     * @param stateMap      int[] the merged state of each existing state
+     * @param deltaStateMap int[] the merged state of each delta state
+     * @param stateCount    int the number of merged states
+     * @return MergedRows the merged table and its sampling tables
+     */
+    private static MergedRows mergeRows(MarkovModel model, MarkovModel delta, int[] tokenMap, int[] stateMap, int[] deltaStateMap, int stateCount) {
+        TransitionTable table = model.getTransitions();
+        AliasTable aliasTable = model.getAliasTable();
+        DoubleBuffer probability = aliasTable.probability();
+        IntBuffer alias = aliasTable.alias();
+        TransitionTable deltaTable = delta.getTransitions();
+
+        int[] source = new int[stateCount];
+        int[] deltaSource = new int[stateCount];
+        Arrays.fill(source, -1);
+        Arrays.fill(deltaSource, -1);
+        for (int state = 0; state < stateMap.length; state++) source[stateMap[state]] = state;
+        for (int state = 0; state < deltaStateMap.length; state++) deltaSource[deltaStateMap[state]] = state;
+
+        int capacity = table.getTransitionCount() + deltaTable.getTransitionCount();
+        int[] offsets = new int[stateCount + 1];
+        int[] followers = new int[capacity];
+        int[] successors = new int[capacity];
+        int[] counts = new int[capacity];
+        int[] totals = new int[stateCount];
+        DoubleBuffer mergedProbability = DoubleBuffer.allocate(capacity);
+        IntBuffer mergedAlias = IntBuffer.allocate(capacity);
+
+        //Scratch space for the delta row being merged and for rebuilding sampling tables, grown as wider rows are met.
+        long[] deltaRow = new long[16];
+        int[] weights = new int[16];
+        double[] scaled = new double[16];
+        int[] small = new int[16];
+        int[] large = new int[16];
+
+        int next = 0;
+        int rebuilt = 0;
+        for (int state = 0; state < stateCount; state++) {
+            offsets[state] = next;
+            int start = source[state] == -1 ? 0 : table.getRowStart(source[state]);
+            int end = source[state] == -1 ? 0 : table.getRowEnd(source[state]);
+            int deltaStart = deltaSource[state] == -1 ? 0 : deltaTable.getRowStart(deltaSource[state]);
+            int deltaEnd = deltaSource[state] == -1 ? 0 : deltaTable.getRowEnd(deltaSource[state]);
+
+            if (deltaStart == deltaEnd) {
+                //Untouched by the delta, so the row and its sampling table only need their indexes moved.
+                for (int i = start; i < end; i++, next++) {
+                    followers[next] = table.getFollower(i);
+                    successors[next] = stateMap[table.getSuccessor(i)];
+                    counts[next] = table.getCount(i);
+                    mergedProbability.put(next, probability.get(i));
+                    mergedAlias.put(next, alias.get(i) - start + offsets[state]);
+                }
+                if (source[state] != -1) totals[state] = table.getTotal(source[state]);
+                continue;
+            }
+
+            //The delta row is sorted by delta token ids, so sort it again by merged id before merging it in.
+            int deltaSize = deltaEnd - deltaStart;
+            if (deltaSize > deltaRow.length) deltaRow = new long[Math.max(deltaSize, deltaRow.length * 2)];
+            for (int i = 0; i < deltaSize; i++) deltaRow[i] = LongIntHashMap.key(tokenMap[deltaTable.getFollower(deltaStart + i)], i);
+            Arrays.sort(deltaRow, 0, deltaSize);
+
+            int i = start;
+            int j = 0;
+            while (i < end || j < deltaSize) {
+                int follower = i < end ? table.getFollower(i) : Integer.MAX_VALUE;
+                int deltaFollower = j < deltaSize ? LongIntHashMap.high(deltaRow[j]) : Integer.MAX_VALUE;
+                int count = 0;
+                if (follower <= deltaFollower) {
+                    successors[next] = stateMap[table.getSuccessor(i)];
+                    count += table.getCount(i++);
+                }
+                if (deltaFollower <= follower) {
+                    int transition = deltaStart + LongIntHashMap.low(deltaRow[j++]);
+                    successors[next] = deltaStateMap[deltaTable.getSuccessor(transition)];
+                    count += deltaTable.getCount(transition);
+                }
+                followers[next] = Math.min(follower, deltaFollower);
+                counts[next++] = count;
+            }
+            totals[state] = (source[state] == -1 ? 0 : table.getTotal(source[state])) + deltaTable.getTotal(deltaSource[state]);
+
+            int size = next - offsets[state];
+            if (size > weights.length) {
+                int length = Math.max(size, weights.length * 2);
+                weights = new int[length];
+                scaled = new double[length];
+                small = new int[length];
+                large = new int[length];
+            }
+            System.arraycopy(counts, offsets[state], weights, 0, size);
+            AliasTable.buildRow(weights, size, totals[state], scaled, small, large, mergedProbability, mergedAlias, offsets[state]);
+            rebuilt++;
+        }
+        offsets[stateCount] = next;
+
+        TransitionTable merged = new TransitionTable(offsets, Arrays.copyOf(followers, next), Arrays.copyOf(successors, next), Arrays.copyOf(counts, next), totals);
+        DoubleBuffer trimmedProbability = DoubleBuffer.allocate(next);
+        IntBuffer trimmedAlias = IntBuffer.allocate(next);
+        trimmedProbability.put((DoubleBuffer) mergedProbability.limit(next)).clear();
+        trimmedAlias.put((IntBuffer) mergedAlias.limit(next)).clear();
+        return new MergedRows(merged, new AliasTable(merged, trimmedProbability, trimmedAlias), rebuilt);
+    }
+
+    /**
+     * Merges the sentence structure data of the two models. Words the delta tagged take its word type, other existing
+     * words keep theirs and new words it did not tag are left unmapped.
+     *
+     * @param syntax         SyntaxTable the syntax table of the existing model or null
+     * @param deltaSyntax    SyntaxTable the syntax table of the delta or null
+     * @param tokenMap       int[] the merged id of each delta token
+     * @param vocabularySize int the size of the merged vocabulary
+     * @return SyntaxTable the merged table or null if neither model has one
+     */
+    private static SyntaxTable mergeSyntax(SyntaxTable syntax, SyntaxTable deltaSyntax, int[] tokenMap, int vocabularySize) {
+        if (syntax == null && deltaSyntax == null) return null;
+
+        ByteBuffer wordTypes = ByteBuffer.allocate(vocabularySize);
+        int copied = 0;
+        if (syntax != null) {
+            ByteBuffer existing = syntax.wordTypes();
+            copied = existing.limit();
+            wordTypes.put((ByteBuffer) existing.clear());
+        }
+        for (int id = copied; id < vocabularySize; id++) wordTypes.put(id, SyntaxTable.UNMAPPED);
+        wordTypes.clear();
+
+        TemplateTrie.Builder templates = new TemplateTrie.Builder();
+        if (syntax != null) syntax.getTemplates().forEach(templates::add);
+        if (deltaSyntax != null) {
+            ByteBuffer deltaTypes = deltaSyntax.wordTypes();
+            for (int id = 0; id < deltaTypes.limit(); id++) {
+                if (deltaTypes.get(id) != SyntaxTable.UNMAPPED) wordTypes.put(tokenMap[id], deltaTypes.get(id));
+            }
+            deltaSyntax.getTemplates().forEach(templates::add);
+        }
+        return new SyntaxTable(wordTypes, templates.build());
+    }
+
+    /**
+     * The merged transition table along with its sampling tables and the number of rows that were rebuilt.
+     */
+    private static class MergedRows {
+
+        /**
+         * The merged transitions
+         */
+        private final TransitionTable table;
+        /**
+         * The sampling tables of the merged transitions
+         */
+        private final AliasTable aliasTable;
+        /**
+         * The number of rows the delta added to
+         */
+        private final int rebuilt;
+
+        MergedRows(TransitionTable table, AliasTable aliasTable, int rebuilt) {
+            this.table = table;
+            this.aliasTable = aliasTable;
+            this.rebuilt = rebuilt;
+        }
+    }
+
+    /**
+     * The outcome of merging a delta into a model: the merged model and how much the delta changed.
+     */
+    public static class Result {
+
+        /**
+         * The merged model
+         */
+        private final MarkovModel model;
+        /**
+         * The number of words the delta added to the vocabulary
+         */
+        private final int wordsAdded;
+        /**
+         * The number of states the delta added
+         */
+        private final int statesAdded;
+        /**
+         * The number of distinct transitions the delta added
+         */
+        private final int transitionsAdded;
+        /**
+         * The number of rows whose sampling tables were rebuilt
+         */
+        private final int rowsRebuilt;
+        /**
+         * The number of rows in the merged model
+         */
+        private final int rows;
+
+        Result(MarkovModel model, int wordsAdded, int statesAdded, int transitionsAdded, int rowsRebuilt, int rows) {
+            this.model = model;
+            this.wordsAdded = wordsAdded;
+            this.statesAdded = statesAdded;
+            this.transitionsAdded = transitionsAdded;
+            this.rowsRebuilt = rowsRebuilt;
+            this.rows = rows;
+        }
+
+        public MarkovModel getModel() {
+            return model;
+        }
+
+        public int getWordsAdded() {
+            return wordsAdded;
+        }
+
+        public int getStatesAdded() {
+            return statesAdded;
+        }
+
+        public int getTransitionsAdded() {
+            return transitionsAdded;
+        }
+
+        public int getRowsRebuilt() {
+            return rowsRebuilt;
+        }
+
+        /**
+         * Returns the number of rows that were copied across unchanged along with their sampling tables.
+         *
+         * @return int the rows copied
+         */
+        public int getRowsCopied() {
+            return rows - rowsRebuilt;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Merged delta: %,d new words, %,d new states, %,d new transitions, %,d rows rebuilt, %,d rows copied",
+                    wordsAdded, statesAdded, transitionsAdded, rowsRebuilt, getRowsCopied());
+        }
+    }
+}
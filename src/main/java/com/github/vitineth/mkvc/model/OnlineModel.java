@@ -0,0 +1,454 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.token.Tokenizer;
+import com.github.vitineth.mkvc.util.collection.AppendOnlyList;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A markov model that keeps learning from new text while other threads generate from it. Any number of threads can
+ * call {@link #learn(String)} and read the model at the same time.
+ * <br><br>
+ * Every transition is counted in a striped {@link LongAdder}, so learners never wait on each other or on readers.
+ * Readers never see the counters directly. They sample through an immutable {@link StateSnapshot} of each state which
+ * holds the followers, their successor states and an alias table. A snapshot is rebuilt copy-on-write by the first
+ * reader to find it out of date and is published with a compare and set. To stop a state that is being learned heavily
+ * from being rebuilt on every read, a snapshot is only considered out of date once the state has gained a new follower or
+ * its total count has grown by more than {@link #REFRESH_FRACTION} of the total the snapshot was built from.
+ * <br><br>
+ * Only the first sighting of a word or state takes a lock, to give it an id. Each call to {@link #learn(String)} is
+ * treated as a separate piece of text, so no transition is counted across two calls.
+ */
+public class OnlineModel {
+
+    /**
+     * The fraction of a state's total count that it must grow by before its snapshot is rebuilt
+     */
+    public static final double REFRESH_FRACTION = 1d / 32d;
+    /**
+     * The number of random states tried when picking a seed before giving up
+     */
+    private static final int SEED_ATTEMPTS = 64;
+
+    /**
+     * The number of tokens that make up a state
+     */
+    private final int order;
+    /**
+     * The id of each word
+     */
+    private final ConcurrentHashMap<String, Integer> wordIds = new ConcurrentHashMap<>();
+    /**
+     * The word of each id
+     */
+    private final AppendOnlyList<String> words = new AppendOnlyList<>(1024);
+    /**
+     * The state for each tuple of token ids
+     */
+    private final ConcurrentHashMap<Tuple, State> stateIds = new ConcurrentHashMap<>();
+    /**
+     * Every state in the order it was first seen, so a state's id is its index
+     */
+    private final AppendOnlyList<State> states = new AppendOnlyList<>(1024);
+
+    /**
+     * A tuple of token ids usable as a hash key.
+     */
+    private static final class Tuple {
+        /**
+         * The token ids, oldest first
+         */
+        private final int[] tokens;
+        /**
+         * The cached hash of the tokens
+         */
+        private final int hash;
+
+        private Tuple(int[] tokens) {
+            this.tokens = tokens;
+            this.hash = Arrays.hashCode(tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Tuple && Arrays.equals(tokens, ((Tuple) other).tokens);
+        }
+    }
+
+    /**
+     * The live counts of a single state and its latest published snapshot.
+     */
+    private static final class State {
+        /**
+         * The id of the state
+         */
+        private final int id;
+        /**
+         * The token ids of the state, oldest first
+         */
+        private final int[] tokens;
+        /**
+         * The number of times each follower token id has been seen
+         */
+        private final ConcurrentHashMap<Integer, LongAdder> counts = new ConcurrentHashMap<>();
+        /**
+         * The successor state of each follower token id
+         */
+        private final ConcurrentHashMap<Integer, State> successors = new ConcurrentHashMap<>();
+        /**
+         * The total number of transitions counted out of the state
+         */
+        private final AtomicLong total = new AtomicLong();
+        /**
+         * The latest snapshot of the state
+         */
+        private final AtomicReference<StateSnapshot> snapshot = new AtomicReference<>(StateSnapshot.EMPTY);
+
+        private State(int id, int[] tokens) {
+            this.id = id;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * An immutable view of the transitions out of a state at one point in time, with an alias table to sample them.
+     */
+    public static final class StateSnapshot {
+
+        /**
+         * The snapshot of a state which nothing has followed yet
+         */
+        private static final StateSnapshot EMPTY = new StateSnapshot(new int[0], new int[0], new double[0], new int[0], 0, 0);
+
+        /**
+         * The token id of each follower
+         */
+        private final int[] followers;
+        /**
+         * The id of the state reached through each follower
+         */
+        private final int[] successors;
+        /**
+         * The probability of keeping each column rather than taking its alias
+         */
+        private final double[] probability;
+        /**
+         * The column that each column falls back to
+         */
+        private final int[] alias;
+        /**
+         * The total count of the state when the snapshot was built
+         */
+        private final long total;
+        /**
+         * The number of distinct followers of the state when the snapshot was built
+         */
+        private final int width;
+
+        private StateSnapshot(int[] followers, int[] successors, double[] probability, int[] alias, long total, int width) {
+            this.followers = followers;
+            this.successors = successors;
+            this.probability = probability;
+            this.alias = alias;
+            this.total = total;
+            this.width = width;
+        }
+
+        /**
+         * Picks a follower with the probability of each being proportional to its count.
+         *
+         * @param random SplittableRandom the random source
+         * @return int the index of the selected follower or -1 if nothing follows the state
+         */
+        public int sample(SplittableRandom random) {
+            if (followers.length == 0) return -1;
+            int column = random.nextInt(followers.length);
+            return random.nextDouble() < probability[column] ? column : alias[column];
+        }
+
+        /**
+         * Returns the number of followers in the snapshot.
+         *
+         * @return int the number of followers
+         */
+        public int size() {
+            return followers.length;
+        }
+
+        public int getFollower(int index) {
+            return followers[index];
+        }
+
+        public int getSuccessor(int index) {
+            return successors[index];
+        }
+    }
+
+    /**
+     * Creates an empty model of the given order.
+     *
+     * @param order int the number of tokens in each state, between 1 and {@link ModelBuilder#MAX_ORDER}
+     */
+    public OnlineModel(int order) {
+        if (order < 1 || order > ModelBuilder.MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 1 and " + ModelBuilder.MAX_ORDER + " but was " + order);
+        }
+        this.order = order;
+    }
+
+    /**
+     * Creates an online model that starts with every count of a trained model.
+     *
+     * @param model MarkovModel the trained model
+     * @return OnlineModel the online model
+     */
+    public static OnlineModel from(MarkovModel model) {
+        OnlineModel online = new OnlineModel(model.getOrder());
+        Vocabulary vocabulary = model.getVocabulary();
+        StateTrie trie = model.getStates();
+        TransitionTable table = model.getTransitions();
+
+        int[] ids = new int[vocabulary.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = online.intern(vocabulary.getWord(i));
+
+        int[] tuple = new int[online.order];
+        int[] next = new int[online.order];
+        for (int state = 0; state < table.getStateCount(); state++) {
+            trie.getTuple(state, tuple);
+            for (int i = 0; i < tuple.length; i++) tuple[i] = ids[tuple[i]];
+            State from = online.getOrCreate(tuple);
+            System.arraycopy(tuple, 1, next, 0, tuple.length - 1);
+            for (int i = table.getRowStart(state); i < table.getRowEnd(state); i++) {
+                next[next.length - 1] = ids[table.getFollower(i)];
+                online.count(from, next[next.length - 1], online.getOrCreate(next), table.getCount(i));
+            }
+        }
+        return online;
+    }
+
+    /**
+     * Tokenizes the given text and counts every transition in it.
+     *
+     * @param text String the text to learn from
+     */
+    public void learn(String text) {
+        List<String> tokens = new ArrayList<>();
+        char[] chars = text.toCharArray();
+        Tokenizer.tokenize(chars, 0, chars.length, tokens::add);
+        learn(tokens.toArray(new String[tokens.size()]));
+    }
+
+    /**
+     * Counts every transition in the given sequence of tokens.
+     *
+     * @param tokens String[] the tokens in order
+     */
+    public void learn(String[] tokens) {
+        if (tokens.length <= order) return;
+
+        int[] window = new int[order];
+        for (int i = 0; i < order; i++) window[i] = intern(tokens[i]);
+        State current = getOrCreate(window);
+        for (int i = order; i < tokens.length; i++) {
+            int id = intern(tokens[i]);
+            System.arraycopy(window, 1, window, 0, order - 1);
+            window[order - 1] = id;
+            State next = getOrCreate(window);
+            count(current, id, next, 1);
+            current = next;
+        }
+    }
+
+    /**
+     * Returns the current snapshot of a state, rebuilding it first if it has fallen too far behind the counts.
+     *
+     * @param state int the state id
+     * @return StateSnapshot the snapshot
+     */
+    public StateSnapshot getSnapshot(int state) {
+        State live = states.get(state);
+        StateSnapshot snapshot = live.snapshot.get();
+        long total = live.total.get();
+        boolean stale = live.successors.size() != snapshot.width || total - snapshot.total > snapshot.total * REFRESH_FRACTION;
+        if (!stale || total == snapshot.total) return snapshot;
+
+        StateSnapshot rebuilt = build(live);
+        //Another reader may have published a newer snapshot in the meantime, in which case that one is kept.
+        if (live.snapshot.compareAndSet(snapshot, rebuilt)) return rebuilt;
+        return live.snapshot.get();
+    }
+
+    /**
+     * Returns a random state to start a chain from. Only states that have been followed by something are picked and
+     * a state starting with a single non-alphabetic character is avoided if possible.
+     *
+     * @param random SplittableRandom the random source
+     * @return int the state id or -1 if nothing has been learned yet
+     */
+    public int getSeed(SplittableRandom random) {
+        int fallback = -1;
+        for (int attempt = 0; attempt < SEED_ATTEMPTS; attempt++) {
+            int size = states.size();
+            if (size == 0) return -1;
+            State state = states.get(random.nextInt(size));
+            if (state.total.get() == 0) continue;
+
+            String first = words.get(state.tokens[0]).trim();
+            if (first.length() == 1 && !Character.isAlphabetic(first.charAt(0))) {
+                fallback = state.id;
+                continue;
+            }
+            return state.id;
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns the words of the given state joined by single spaces.
+     *
+     * @param state int the state id
+     * @return String the state as text
+     */
+    public String getStateText(int state) {
+        int[] tokens = states.get(state).tokens;
+        StringBuilder builder = new StringBuilder(words.get(tokens[0]));
+        for (int i = 1; i < tokens.length; i++) builder.append(" ").append(words.get(tokens[i]));
+        return builder.toString();
+    }
+
+    /**
+     * Returns the word with the given id.
+     *
+     * @param id int the token id
+     * @return String the word
+     */
+    public String getWord(int id) {
+        return words.get(id);
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the number of distinct words learned so far.
+     *
+     * @return int the vocabulary size
+     */
+    public int getVocabularySize() {
+        return words.size();
+    }
+
+    /**
+     * Returns the number of distinct states learned so far.
+     *
+     * @return int the state count
+     */
+    public int getStateCount() {
+        return states.size();
+    }
+
+    /**
+     * Adds to the count of a transition, recording its successor state before the count so that a snapshot never
+     * holds a follower without a successor.
+     *
+     * @param from      State the state being left
+     * @param follower  int the token id that followed
+     * @param successor State the state reached
+     * @param amount    long the amount to add
+     */
+    private void count(State from, int follower, State successor, long amount) {
+        from.successors.putIfAbsent(follower, successor);
+        from.counts.computeIfAbsent(follower, key -> new LongAdder()).add(amount);
+        from.total.addAndGet(amount);
+    }
+
+    /**
+     * Builds a new snapshot from the live counts of a state.
+     *
+     * @param state State the state
+     * @return StateSnapshot the snapshot
+     */
+    private static StateSnapshot build(State state) {
+        //The total is read first so the snapshot never claims to be newer than the counts it holds.
+        long total = state.total.get();
+        int width = state.counts.size();
+        int[] followers = new int[width];
+        int[] successors = new int[width];
+        int[] weights = new int[width];
+        int size = 0;
+        long sum = 0;
+        for (Map.Entry<Integer, LongAdder> entry : state.counts.entrySet()) {
+            if (size == width) break;
+            followers[size] = entry.getKey();
+            successors[size] = state.successors.get(entry.getKey()).id;
+            weights[size] = (int) Math.min(Integer.MAX_VALUE, entry.getValue().sum());
+            sum += weights[size++];
+        }
+        if (size < width) {
+            followers = Arrays.copyOf(followers, size);
+            successors = Arrays.copyOf(successors, size);
+        }
+
+        double[] probability = new double[size];
+        int[] alias = new int[size];
+        AliasTable.buildRow(weights, size, sum, new double[size], new int[size], new int[size], DoubleBuffer.wrap(probability), IntBuffer.wrap(alias), 0);
+        return new StateSnapshot(followers, successors, probability, alias, total, size);
+    }
+
+    /**
+     * Returns the id of a word, giving it a new one if it has not been seen before.
+     *
+     * @param word String the word
+     * @return int the id
+     */
+    private int intern(String word) {
+        Integer id = wordIds.get(word);
+        if (id != null) return id;
+        synchronized (words) {
+            id = wordIds.get(word);
+            if (id == null) {
+                id = words.add(word);
+                wordIds.put(word, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Returns the state for a tuple of token ids, creating it if it has not been seen before.
+     *
+     * @param tokens int[] the token ids, which are copied if a new state is made
+     * @return State the state
+     */
+    private State getOrCreate(int[] tokens) {
+        Tuple key = new Tuple(tokens);
+        State state = stateIds.get(key);
+        if (state != null) return state;
+        synchronized (states) {
+            state = stateIds.get(key);
+            if (state == null) {
+                int[] copy = tokens.clone();
+                state = new State(states.size(), copy);
+                states.add(state);
+                stateIds.put(new Tuple(copy), state);
+            }
+            return state;
+        }
+    }
+}
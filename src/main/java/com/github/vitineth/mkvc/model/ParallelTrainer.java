@@ -0,0 +1,141 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.token.Tokenizer;
+import com.github.vitineth.mkvc.util.collection.IntArrayList;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the transitions of a piece of text across several threads. The text is cut into shards at token separators so
+ * no token is split, each shard is tokenized straight into its own {@link ModelBuilder} through
+ * {@link Tokenizer#tokenize(char[], int, int, HashVocabulary, Tokenizer.IdSink)} and the builders are then combined
+ * through {@link ModelBuilder#merge(ModelBuilder)} in a tree so that the merges run in parallel as well. Every shard is
+ * primed with the last tokens of the text before it and merges always keep shards in input order, so the result is
+ * identical to counting the same tokens on a single thread. Apart from one copy of the text, which is lower cased in
+ * place, no token is held as anything but an id.
+ */
+public class ParallelTrainer {
+
+    /**
+     * The number of shards made per thread so that uneven shards still keep every thread busy
+     */
+    private static final int SHARDS_PER_THREAD = 4;
+
+    /**
+     * The number of tokens in each state of the model being built
+     */
+    private final int order;
+    /**
+     * The pool that shards are counted and merged on
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a trainer that counts on the given number of threads.
+     *
+     * @param order   int the order of the model to build
+     * @param threads int the number of threads to use
+     */
+    public ParallelTrainer(int order, int threads) {
+        if (order < 1 || order > ModelBuilder.MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 1 and " + ModelBuilder.MAX_ORDER + " but was " + order);
+        }
+        this.order = order;
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    /**
+     * Tokenizes and counts the given text, returning a builder holding every count which can be built into a model or
+     * merged with further input.
+     *
+     * @param text String the text to train from
+     * @return ModelBuilder the builder holding the counts
+     */
+    public ModelBuilder count(String text) {
+        char[] chars = text.toCharArray();
+        int[] cuts = split(chars, pool.getParallelism() * SHARDS_PER_THREAD);
+
+        //Copy the tokens before each shard up front, as the shards are lower cased in place once counting starts.
+        char[][] contexts = new char[cuts.length - 1][];
+        for (int shard = 0; shard < contexts.length; shard++) {
+            contexts[shard] = Arrays.copyOfRange(chars, Tokenizer.previousTokens(chars, 0, cuts[shard], order), cuts[shard]);
+        }
+        return pool.invoke(new CountTask(chars, cuts, contexts, 0, contexts.length));
+    }
+
+    /**
+     * Shuts down the threads used by the trainer.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Cuts the text into roughly equal pieces, moving each cut forward to just after the next token separator.
+     *
+     * @param chars  char[] the text
+     * @param shards int the number of pieces to aim for
+     * @return int[] the start of each piece in order, with a trailing entry for the end of the text
+     */
+    private static int[] split(char[] chars, int shards) {
+        IntArrayList cuts = new IntArrayList(shards + 1);
+        cuts.add(0);
+        int start = 0;
+        for (int i = 1; i < shards && start < chars.length; i++) {
+            int cut = Math.max(start, (int) ((long) chars.length * i / shards));
+            while (cut < chars.length && !Tokenizer.isSeparator(chars[cut])) cut++;
+            if (cut < chars.length) cut++;
+            if (cut > start && cut < chars.length) {
+                cuts.add(cut);
+                start = cut;
+            }
+        }
+        cuts.add(chars.length);
+        return cuts.toArray();
+    }
+
+    /**
+     * Counts a range of shards, splitting in half until a single shard is left and merging the halves on the way back.
+     */
+    private class CountTask extends RecursiveTask<ModelBuilder> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final char[] chars;
+        private final int[] cuts;
+        private final char[][] contexts;
+        private final int start;
+        private final int end;
+
+        CountTask(char[] chars, int[] cuts, char[][] contexts, int start, int end) {
+            this.chars = chars;
+            this.cuts = cuts;
+            this.contexts = contexts;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected ModelBuilder compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                CountTask left = new CountTask(chars, cuts, contexts, start, middle);
+                left.fork();
+                ModelBuilder right = new CountTask(chars, cuts, contexts, middle, end).compute();
+                ModelBuilder merged = left.join();
+                merged.merge(right);
+                return merged;
+            }
+
+            //Up to `order` tokens from directly before the shard prime the window, so the first transitions of the
+            //shard are counted from the right state.
+            ModelBuilder builder = new ModelBuilder(order);
+            char[] context = contexts[start];
+            Tokenizer.tokenize(context, 0, context.length, builder.getVocabulary(), builder::add);
+            Tokenizer.tokenize(chars, cuts[start], cuts[start + 1] - cuts[start], builder.getVocabulary(), builder::add);
+            return builder;
+        }
+    }
+}
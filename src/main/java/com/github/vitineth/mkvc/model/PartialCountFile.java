@@ -0,0 +1,577 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.IntArrayList;
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads and writes the partial counts of a slice of the input, so that training can be spread across processes or
+ * machines which only share files. Each worker counts its own slice and writes what it counted with
+ * {@link #write(MarkovModel, File)}, then {@link #merge(List)} combines any number of partial files into one model.
+ * <br><br>
+ * Partial files do not share token ids, so everything in them is ordered by the words themselves. The vocabulary is
+ * written in ascending order of its UTF-8 bytes and a token is referred to by its position in that order. The states
+ * follow in ascending order of their tuples, each with its row of (follower, count) pairs in ascending order of
+ * follower. Mapping the positions of every file onto a shared vocabulary keeps that order, so the vocabularies, and then
+ * the states along with their rows, can each be combined by a k-way merge that reads every file once from start to end.
+ * Only the merged model, the mapping of each file's words and its current entry are held in memory, never the counts of
+ * a whole file.
+ * <br><br>
+ * Layout, big endian: the header (magic, version, order, flags, vocabulary size, state count, transition count and
+ * distinct template count), then for each word its byte length, its UTF-8 bytes and, if the file has sentence data, its
+ * word type ordinal or {@link SyntaxTable#UNMAPPED}, then for each state its tuple, its row length and its row, and
+ * finally for each distinct sentence template its length, its word type ordinals and its count.
+ * <br><br>
+ * Slices are counted separately, so no transition is counted across the cut between two slices. The merged model is
+ * the same as the one built from counting each slice into its own {@link ModelBuilder} and merging them unprimed, apart
+ * from token ids, which are handed out in word order rather than in the order words were first seen.
+ */
+public class PartialCountFile {
+
+    /**
+     * The bytes 'MKPT' which every partial count file starts with
+     */
+    public static final int MAGIC = 0x4D4B5054;
+    /**
+     * The version of the format written by this class
+     */
+    public static final int VERSION = 1;
+    /**
+     * The header flag set when the file contains word types and sentence templates
+     */
+    private static final int FLAG_SYNTAX = 1;
+
+    /**
+     * Writes the counts of a model to the given file, replacing anything already there. The model should not have
+     * been pruned, as anything pruned from one slice may have made the cutoff once merged with the others.
+     *
+     * @param model MarkovModel the counted model of a slice
+     * @param file  File the destination
+     * @throws IOException If there is an error writing the file.
+     */
+    public static void write(MarkovModel model, File file) throws IOException {
+        Vocabulary vocabulary = model.getVocabulary();
+        StateTrie states = model.getStates();
+        TransitionTable table = model.getTransitions();
+        SyntaxTable syntax = model.getSyntax();
+        int order = states.getOrder();
+
+        //The position of each token in word order, which is the id written for it.
+        MappedVocabulary encoded = vocabulary instanceof MappedVocabulary ? (MappedVocabulary) vocabulary : MappedVocabulary.from(vocabulary, new HeapStorage());
+        int[] rank = new int[vocabulary.size()];
+        for (int i = 0; i < rank.length; i++) rank[encoded.sorted().get(i)] = i;
+
+        //States are in trie order of the original ids, so sort them again by their tuples in word order.
+        int stateCount = states.getStateCount();
+        final int[] tuples = new int[stateCount * order];
+        int[] tuple = new int[order];
+        Integer[] stateOrder = new Integer[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            states.getTuple(state, tuple);
+            for (int i = 0; i < order; i++) tuples[state * order + i] = rank[tuple[i]];
+            stateOrder[state] = state;
+        }
+        Arrays.sort(stateOrder, (a, b) -> {
+            for (int i = 0; i < order; i++) {
+                int difference = Integer.compare(tuples[a * order + i], tuples[b * order + i]);
+                if (difference != 0) return difference;
+            }
+            return 0;
+        });
+
+        final List<WordType[]> templates = new ArrayList<>();
+        final IntArrayList templateCounts = new IntArrayList();
+        if (syntax != null) {
+            syntax.getTemplates().forEach((template, count) -> {
+                templates.add(template);
+                templateCounts.add(count);
+            });
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(order);
+            out.writeInt(syntax == null ? 0 : FLAG_SYNTAX);
+            out.writeInt(vocabulary.size());
+            out.writeInt(stateCount);
+            out.writeInt(table.getTransitionCount());
+            out.writeInt(templates.size());
+
+            for (int i = 0; i < rank.length; i++) {
+                int id = encoded.sorted().get(i);
+                byte[] word = encoded.getWord(id).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(word.length);
+                out.write(word);
+                if (syntax != null) out.writeByte(syntax.wordTypes().get(id));
+            }
+
+            long[] row = new long[16];
+            for (int state : stateOrder) {
+                for (int i = 0; i < order; i++) out.writeInt(tuples[state * order + i]);
+                int start = table.getRowStart(state);
+                int size = table.getRowEnd(state) - start;
+                if (size > row.length) row = new long[Math.max(size, row.length * 2)];
+                for (int i = 0; i < size; i++) row[i] = LongIntHashMap.key(rank[table.getFollower(start + i)], table.getCount(start + i));
+                Arrays.sort(row, 0, size);
+
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(LongIntHashMap.high(row[i]));
+                    out.writeInt(LongIntHashMap.low(row[i]));
+                }
+            }
+
+            for (int i = 0; i < templates.size(); i++) {
+                WordType[] template = templates.get(i);
+                out.writeInt(template.length);
+                for (WordType type : template) out.writeByte(type.ordinal());
+                out.writeInt(templateCounts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Merges any number of partial count files of the same order into a model. Counts of the same transition are
+     * summed, and where files disagree on the word type of a word the type from the file given last wins, as it would
+     * if the slices had been parsed in that order.
+     *
+     * @param files List[File] the partial count files
+     * @return MarkovModel the merged model, carrying a {@link SyntaxTable} if any of the files had sentence data
+     * @throws IOException If a file cannot be read or is not a partial count file of the same order as the others.
+     */
+    public static MarkovModel merge(List<File> files) throws IOException {
+        if (files.isEmpty()) throw new IllegalArgumentException("At least one partial count file is needed");
+
+        List<PartialReader> readers = new ArrayList<>();
+        try {
+            for (File file : files) {
+                PartialReader reader = new PartialReader(file, readers.size());
+                readers.add(reader);
+                if (reader.order != readers.get(0).order) {
+                    throw new IOException("Partial count file " + file + " is of order " + reader.order + " but " + files.get(0) + " is of order " + readers.get(0).order);
+                }
+            }
+            int order = readers.get(0).order;
+            boolean hasSyntax = false;
+            for (PartialReader reader : readers) hasSyntax |= reader.hasSyntax;
+
+            HashVocabulary vocabulary = new HashVocabulary();
+            IntArrayList wordTypes = new IntArrayList();
+            mergeVocabularies(readers, vocabulary, wordTypes);
+
+            MergedStates merged = mergeStates(readers, order);
+            StateTrie states = merged.buildTrie(order);
+
+            //Every successor is a state of the same file, so it is part of the trie now that every state is known.
+            int[] followers = merged.followers.toArray();
+            int[] successors = new int[followers.length];
+            int[] offsets = merged.offsets.toArray();
+            int[] tuple = new int[order + 1];
+            for (int state = 0; state < states.getStateCount(); state++) {
+                states.getTuple(state, tuple);
+                for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+                    tuple[order] = followers[i];
+                    successors[i] = states.getState(tuple, 1);
+                }
+            }
+            TransitionTable table = new TransitionTable(offsets, followers, successors, merged.counts.toArray(), merged.totals.toArray());
+
+            SyntaxTable syntax = null;
+            if (hasSyntax) {
+                TemplateTrie.Builder templates = new TemplateTrie.Builder();
+                for (PartialReader reader : readers) reader.readTemplates(templates);
+                ByteBuffer types = ByteBuffer.allocate(vocabulary.size());
+                for (int id = 0; id < vocabulary.size(); id++) types.put(id, (byte) wordTypes.get(id));
+                syntax = new SyntaxTable(types, templates.build());
+            }
+            return new MarkovModel(vocabulary, states, table, null, syntax);
+        } finally {
+            for (PartialReader reader : readers) reader.close();
+        }
+    }
+
+    /**
+     * Merges the sorted vocabularies of every file, interning each distinct word in word order and filling in the
+     * mapping from each file's positions to the merged ids.
+     *
+     * @param readers    List[PartialReader] the files, positioned at the start of their vocabularies
+     * @param vocabulary HashVocabulary the vocabulary to intern the merged words into
+     * @param wordTypes  IntArrayList filled with the word type ordinal of each merged word or UNMAPPED
+     * @throws IOException If a file cannot be read.
+     */
+    private static void mergeVocabularies(List<PartialReader> readers, HashVocabulary vocabulary, IntArrayList wordTypes) throws IOException {
+        PriorityQueue<PartialReader> queue = new PriorityQueue<>((a, b) -> {
+            int difference = MappedVocabulary.compareUnsigned(a.word, b.word);
+            return difference != 0 ? difference : Integer.compare(a.index, b.index);
+        });
+        for (PartialReader reader : readers) {
+            if (reader.nextWord()) queue.add(reader);
+        }
+
+        byte[] last = null;
+        while (!queue.isEmpty()) {
+            PartialReader reader = queue.poll();
+            if (last == null || MappedVocabulary.compareUnsigned(last, reader.word) != 0) {
+                last = reader.word;
+                vocabulary.intern(new String(last, StandardCharsets.UTF_8));
+                wordTypes.add(SyntaxTable.UNMAPPED);
+            }
+            int id = vocabulary.size() - 1;
+            reader.globalIds[reader.wordsRead - 1] = id;
+            //Equal words come off the queue in file order, so a later file overwrites the type from an earlier one.
+            if (reader.wordType != SyntaxTable.UNMAPPED) wordTypes.set(id, reader.wordType);
+            if (reader.nextWord()) queue.add(reader);
+        }
+    }
+
+    /**
+     * Merges the states of every file in tuple order, summing the rows of states found in more than one file.
+     *
+     * @param readers List[PartialReader] the files, positioned at the start of their states
+     * @param order   int the order of the files
+     * @return MergedStates the merged states and rows
+     * @throws IOException If a file cannot be read.
+     */
+    private static MergedStates mergeStates(List<PartialReader> readers, int order) throws IOException {
+        PriorityQueue<PartialReader> queue = new PriorityQueue<>((a, b) -> compareTuples(a.tuple, b.tuple, order));
+        for (PartialReader reader : readers) {
+            if (reader.nextState()) queue.add(reader);
+        }
+
+        MergedStates merged = new MergedStates(order);
+        List<PartialReader> matching = new ArrayList<>();
+        long[] row = new long[16];
+        while (!queue.isEmpty()) {
+            matching.clear();
+            matching.add(queue.poll());
+            while (!queue.isEmpty() && compareTuples(queue.peek().tuple, matching.get(0).tuple, order) == 0) matching.add(queue.poll());
+
+            //Gather the rows of the state from every file holding it, then sort and sum followers seen in several.
+            int size = 0;
+            for (PartialReader reader : matching) {
+                if (size + reader.rowSize > row.length) row = Arrays.copyOf(row, Math.max(size + reader.rowSize, row.length * 2));
+                for (int i = 0; i < reader.rowSize; i++) row[size++] = LongIntHashMap.key(reader.followers[i], reader.counts[i]);
+            }
+            if (matching.size() > 1) Arrays.sort(row, 0, size);
+            merged.addState(matching.get(0).tuple, row, size);
+
+            for (PartialReader reader : matching) {
+                if (reader.nextState()) queue.add(reader);
+            }
+        }
+        merged.offsets.add(merged.followers.size());
+        return merged;
+    }
+
+    /**
+     * Compares two tuples of token ids element by element.
+     *
+     * @param a     int[] the first tuple
+     * @param b     int[] the second tuple
+     * @param order int the length of the tuples
+     * @return int negative, zero or positive as a is before, equal to or after b
+     */
+    private static int compareTuples(int[] a, int[] b, int order) {
+        for (int i = 0; i < order; i++) {
+            if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+        }
+        return 0;
+    }
+
+    /**
+     * The states and rows of the merged model, collected in tuple order as they come out of the merge. Tuple order is
+     * the order of the state level of a {@link StateTrie}, so the trie can be built level by level as states arrive.
+     */
+    private static class MergedStates {
+
+        /**
+         * The last token of each node on each level, indexed by depth minus one
+         */
+        private final IntArrayList[] levelTokens;
+        /**
+         * The position of each node's parent on the level above, indexed by depth minus one
+         */
+        private final IntArrayList[] levelParents;
+        /**
+         * The tuple of the previous state
+         */
+        private final int[] previous;
+        /**
+         * The start of each state's row, with a trailing entry added once the merge is done
+         */
+        private final IntArrayList offsets = new IntArrayList();
+        /**
+         * The follower of each transition
+         */
+        private final IntArrayList followers = new IntArrayList();
+        /**
+         * The count of each transition
+         */
+        private final IntArrayList counts = new IntArrayList();
+        /**
+         * The total count of each state's row
+         */
+        private final IntArrayList totals = new IntArrayList();
+
+        MergedStates(int order) {
+            levelTokens = new IntArrayList[order];
+            levelParents = new IntArrayList[order];
+            for (int depth = 0; depth < order; depth++) {
+                levelTokens[depth] = new IntArrayList();
+                levelParents[depth] = new IntArrayList();
+            }
+            previous = new int[order];
+        }
+
+        /**
+         * Adds the next state in tuple order along with its row.
+         *
+         * @param tuple int[] the merged token ids of the state
+         * @param row   long[] the (follower, count) pairs of the row sorted by follower, with repeated followers
+         * @param size  int the number of pairs
+         */
+        void addState(int[] tuple, long[] row, int size) {
+            int order = previous.length;
+            //Only the nodes from the first token that differs from the previous state are new.
+            int shared = 0;
+            if (levelTokens[order - 1].size() > 0) {
+                while (shared < order && tuple[shared] == previous[shared]) shared++;
+            }
+            for (int depth = shared; depth < order; depth++) {
+                levelTokens[depth].add(tuple[depth]);
+                levelParents[depth].add(depth == 0 ? 0 : levelTokens[depth - 1].size() - 1);
+            }
+            System.arraycopy(tuple, 0, previous, 0, order);
+
+            offsets.add(followers.size());
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                int follower = LongIntHashMap.high(row[i]);
+                int count = LongIntHashMap.low(row[i]);
+                total += count;
+                if (i > 0 && LongIntHashMap.high(row[i - 1]) == follower) {
+                    counts.set(counts.size() - 1, counts.get(counts.size() - 1) + count);
+                } else {
+                    followers.add(follower);
+                    counts.add(count);
+                }
+            }
+            totals.add(total);
+        }
+
+        /**
+         * Numbers the collected nodes level by level from the root and builds the trie.
+         *
+         * @param order int the order of the model
+         * @return StateTrie the trie of every merged state
+         */
+        StateTrie buildTrie(int order) {
+            int[] levelStart = new int[order + 2];
+            levelStart[1] = 1;
+            for (int depth = 1; depth <= order; depth++) levelStart[depth + 1] = levelStart[depth] + levelTokens[depth - 1].size();
+
+            int count = levelStart[order + 1];
+            int[] tokens = new int[count];
+            int[] parents = new int[count];
+            tokens[0] = -1;
+            parents[0] = -1;
+            for (int depth = 1; depth <= order; depth++) {
+                for (int i = 0; i < levelTokens[depth - 1].size(); i++) {
+                    tokens[levelStart[depth] + i] = levelTokens[depth - 1].get(i);
+                    parents[levelStart[depth] + i] = levelStart[depth - 1] + levelParents[depth - 1].get(i);
+                }
+            }
+
+            int[] firstChild = new int[levelStart[order] + 1];
+            firstChild[0] = 1;
+            for (int node = 1; node < count; node++) firstChild[parents[node] + 1]++;
+            for (int node = 0; node < levelStart[order]; node++) firstChild[node + 1] += firstChild[node];
+            return new StateTrie(order, levelStart, tokens, parents, firstChild);
+        }
+    }
+
+    /**
+     * Reads one partial count file from start to end during a merge, holding only the entry it is currently on.
+     */
+    private static class PartialReader implements Closeable {
+
+        /**
+         * The file being read
+         */
+        private final File file;
+        /**
+         * The position of the file among those being merged
+         */
+        private final int index;
+        /**
+         * The stream the file is read through
+         */
+        private final DataInputStream in;
+        /**
+         * The order of the counts in the file
+         */
+        private final int order;
+        /**
+         * Whether the file holds word types and templates
+         */
+        private final boolean hasSyntax;
+        /**
+         * The number of words in the file's vocabulary
+         */
+        private final int wordCount;
+        /**
+         * The number of states in the file
+         */
+        private final int stateCount;
+        /**
+         * The number of distinct templates in the file
+         */
+        private final int templateCount;
+        /**
+         * The merged id of each of the file's word positions
+         */
+        private final int[] globalIds;
+        /**
+         * The number of words read so far
+         */
+        private int wordsRead;
+        /**
+         * The UTF-8 bytes of the current word
+         */
+        private byte[] word;
+        /**
+         * The word type ordinal of the current word or UNMAPPED
+         */
+        private byte wordType = SyntaxTable.UNMAPPED;
+        /**
+         * The number of states read so far
+         */
+        private int statesRead;
+        /**
+         * The merged token ids of the current state
+         */
+        private final int[] tuple;
+        /**
+         * The merged follower ids of the current state's row
+         */
+        private int[] followers = new int[16];
+        /**
+         * The counts of the current state's row
+         */
+        private int[] counts = new int[16];
+        /**
+         * The number of transitions in the current state's row
+         */
+        private int rowSize;
+
+        PartialReader(File file, int index) throws IOException {
+            this.file = file;
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC) throw new IOException("File is not a partial count file: " + file);
+                int version = in.readInt();
+                if (version != VERSION) throw new IOException("Unsupported partial count version " + version + " (expected " + VERSION + ")");
+                order = in.readInt();
+                if (order < 1 || order > ModelBuilder.MAX_ORDER) throw new IOException("Partial count file " + file + " has an invalid order of " + order);
+                hasSyntax = (in.readInt() & FLAG_SYNTAX) != 0;
+                wordCount = in.readInt();
+                stateCount = in.readInt();
+                //The transition count is only there for tools inspecting the file, the rows carry their own lengths.
+                in.readInt();
+                templateCount = in.readInt();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            globalIds = new int[wordCount];
+            tuple = new int[order];
+        }
+
+        /**
+         * Moves on to the next word of the vocabulary.
+         *
+         * @return boolean false if every word has been read
+         * @throws IOException If the file cannot be read.
+         */
+        boolean nextWord() throws IOException {
+            if (wordsRead == wordCount) return false;
+            word = new byte[in.readInt()];
+            in.readFully(word);
+            if (hasSyntax) wordType = in.readByte();
+            wordsRead++;
+            return true;
+        }
+
+        /**
+         * Moves on to the next state and reads its row, translating every token to its merged id.
+         *
+         * @return boolean false if every state has been read
+         * @throws IOException If the file cannot be read or refers to a word it does not have.
+         */
+        boolean nextState() throws IOException {
+            if (statesRead == stateCount) return false;
+            for (int i = 0; i < order; i++) tuple[i] = globalId(in.readInt());
+            rowSize = in.readInt();
+            if (rowSize > followers.length) {
+                followers = new int[Math.max(rowSize, followers.length * 2)];
+                counts = new int[followers.length];
+            }
+            for (int i = 0; i < rowSize; i++) {
+                followers[i] = globalId(in.readInt());
+                counts[i] = in.readInt();
+            }
+            statesRead++;
+            return true;
+        }
+
+        /**
+         * Adds every template of the file to the builder. Every state must have been read first.
+         *
+         * @param templates TemplateTrie.Builder the builder to add to
+         * @throws IOException If the file cannot be read.
+         */
+        void readTemplates(TemplateTrie.Builder templates) throws IOException {
+            WordType[] values = WordType.values();
+            for (int i = 0; i < templateCount; i++) {
+                WordType[] template = new WordType[in.readInt()];
+                for (int j = 0; j < template.length; j++) template[j] = values[in.readByte()];
+                templates.add(template, in.readInt());
+            }
+        }
+
+        /**
+         * Returns the merged id of one of the file's word positions.
+         *
+         * @param position int the position of the word in the file's vocabulary
+         * @return int the merged id
+         * @throws IOException If the file does not have that many words.
+         */
+        private int globalId(int position) throws IOException {
+            if (position < 0 || position >= wordCount) throw new IOException("Partial count file " + file + " refers to word " + position + " of " + wordCount);
+            return globalIds[position];
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
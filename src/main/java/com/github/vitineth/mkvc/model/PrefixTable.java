@@ -0,0 +1,184 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.IntArrayList;
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A growable trie of token id tuples stored as a hashed prefix table. Each node is identified by an int and is found
+ * through a single hash lookup on its parent node and its token, so tuples that share a prefix share the nodes for that
+ * prefix. Node 0 is the root and represents the empty tuple. Once counting has finished the table is compacted into a
+ * {@link StateTrie} through {@link #freeze(int, int[])}.
+ */
+public class PrefixTable {
+
+    /**
+     * The child node of each (parent, token) pair, keyed through {@link LongIntHashMap#key(int, int)}
+     */
+    private LongIntHashMap children;
+    /**
+     * The parent of each node
+     */
+    private IntArrayList parents;
+    /**
+     * The token id of the last element of each node's tuple
+     */
+    private IntArrayList tokens;
+    /**
+     * The length of each node's tuple
+     */
+    private IntArrayList depths;
+
+    public PrefixTable() {
+        children = new LongIntHashMap(1024);
+        parents = new IntArrayList(1024);
+        tokens = new IntArrayList(1024);
+        depths = new IntArrayList(1024);
+
+        parents.add(-1);
+        tokens.add(-1);
+        depths.add(0);
+    }
+
+    /**
+     * Returns the child of the given node for the token, creating it if it does not yet exist.
+     *
+     * @param parent int the parent node
+     * @param token  int the token id
+     * @return int the child node
+     */
+    public int child(int parent, int token) {
+        long key = LongIntHashMap.key(parent, token);
+        int node = children.get(key, -1);
+        if (node == -1) {
+            node = parents.size();
+            children.put(key, node);
+            parents.add(parent);
+            tokens.add(token);
+            depths.add(depths.get(parent) + 1);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the child of the given node for the token or -1 if it does not exist.
+     *
+     * @param parent int the parent node
+     * @param token  int the token id
+     * @return int the child node or -1
+     */
+    public int find(int parent, int token) {
+        return children.get(LongIntHashMap.key(parent, token), -1);
+    }
+
+    /**
+     * Returns the node for the given tuple, creating any missing nodes along the way.
+     *
+     * @param tuple  int[] the token ids
+     * @param length int the number of ids from the start of the array that make up the tuple
+     * @return int the node for the tuple
+     */
+    public int insert(int[] tuple, int length) {
+        int node = 0;
+        for (int i = 0; i < length; i++) node = child(node, tuple[i]);
+        return node;
+    }
+
+    /**
+     * Returns the parent of the given node.
+     *
+     * @param node int the node
+     * @return int the parent node or -1 for the root
+     */
+    public int getParent(int node) {
+        return parents.get(node);
+    }
+
+    /**
+     * Returns the last token of the given node's tuple.
+     *
+     * @param node int the node
+     * @return int the token id or -1 for the root
+     */
+    public int getToken(int node) {
+        return tokens.get(node);
+    }
+
+    /**
+     * Returns the length of the given node's tuple.
+     *
+     * @param node int the node
+     * @return int the depth of the node
+     */
+    public int getDepth(int node) {
+        return depths.get(node);
+    }
+
+    /**
+     * Returns the number of nodes in the table including the root.
+     *
+     * @return int the node count
+     */
+    public int size() {
+        return parents.size();
+    }
+
+    /**
+     * Compacts the table into a {@link StateTrie} with nodes laid out level by level and each node's children
+     * contiguous and sorted by token.
+     *
+     * @param order int the depth of the nodes that represent states
+     * @param remap int[] an array at least {@link #size()} long which is filled with the new id of every node
+     * @return StateTrie the compacted trie
+     */
+    public StateTrie freeze(int order, int[] remap) {
+        int count = size();
+        int[] levelStart = new int[order + 2];
+        int[] newTokens = new int[count];
+        int[] newParents = new int[count];
+        int[] original = new int[count];
+
+        //Bucket the nodes by depth so each level can be sorted on its own.
+        int[] levelSize = new int[order + 1];
+        for (int node = 0; node < count; node++) levelSize[depths.get(node)]++;
+        long[][] levels = new long[order + 1][];
+        for (int depth = 1; depth <= order; depth++) levels[depth] = new long[levelSize[depth]];
+        int[] filled = new int[order + 1];
+
+        remap[0] = 0;
+        newParents[0] = -1;
+        newTokens[0] = -1;
+        levelStart[1] = 1;
+        int next = 1;
+        for (int depth = 1; depth <= order; depth++) {
+            //Parents have already been renumbered, so sorting on (new parent, token) keeps siblings together.
+            for (int node = 1; node < count; node++) {
+                if (depths.get(node) == depth) {
+                    levels[depth][filled[depth]++] = LongIntHashMap.key(remap[parents.get(node)], tokens.get(node));
+                }
+            }
+            Arrays.sort(levels[depth]);
+
+            for (long key : levels[depth]) {
+                int parent = LongIntHashMap.high(key);
+                int token = LongIntHashMap.low(key);
+                int node = find(original[parent], token);
+                remap[node] = next;
+                original[next] = node;
+                newParents[next] = parent;
+                newTokens[next] = token;
+                next++;
+            }
+            levels[depth] = null;
+            levelStart[depth + 1] = next;
+        }
+
+        int[] firstChild = new int[levelStart[order] + 1];
+        firstChild[0] = 1;
+        for (int node = 1; node < count; node++) firstChild[newParents[node] + 1]++;
+        for (int node = 0; node < levelStart[order]; node++) firstChild[node + 1] += firstChild[node];
+
+        return new StateTrie(order, levelStart, newTokens, newParents, firstChild);
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.IntBuffer;
+
+/**
+ * An immutable trie over the token id tuples that make up the states of an order-k model. Nodes are numbered level
+ * by level from the root (node 0, the empty tuple) and the children of every node are stored contiguously and sorted by
+ * token, so a child is found with a binary search and no per-node objects are needed. The nodes on the deepest level
+ * are the model's states and a state's id is its position within that level. Tuples sharing a prefix share its nodes,
+ * so memory grows with the number of distinct prefixes rather than with <code>order * states</code>.
+ * <br><br>
+ * Like {@link TransitionTable} the arrays are held in {@link IntBuffer}s so they can come from the heap or from a
+ * memory mapped model file.
+ */
+public class StateTrie {
+
+    /**
+     * The length of the tuple that makes up a state
+     */
+    private final int order;
+    /**
+     * The first node of each depth, with a trailing entry holding the total node count
+     */
+    private final IntBuffer levelStart;
+    /**
+     * The last token of each node's tuple
+     */
+    private final IntBuffer tokens;
+    /**
+     * The parent of each node
+     */
+    private final IntBuffer parents;
+    /**
+     * The first child of each node above the state level, with a trailing entry for the end of the last node's children
+     */
+    private final IntBuffer firstChild;
+
+    public StateTrie(int order, int[] levelStart, int[] tokens, int[] parents, int[] firstChild) {
+        this(order, IntBuffer.wrap(levelStart), IntBuffer.wrap(tokens), IntBuffer.wrap(parents), IntBuffer.wrap(firstChild));
+    }
+
+    public StateTrie(int order, IntBuffer levelStart, IntBuffer tokens, IntBuffer parents, IntBuffer firstChild) {
+        this.order = order;
+        this.levelStart = levelStart;
+        this.tokens = tokens;
+        this.parents = parents;
+        this.firstChild = firstChild;
+    }
+
+    /**
+     * Returns the number of tokens in each state.
+     *
+     * @return int the order of the model
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the number of states, which are the nodes on the deepest level of the trie.
+     *
+     * @return int the state count
+     */
+    public int getStateCount() {
+        return levelStart.get(order + 1) - levelStart.get(order);
+    }
+
+    /**
+     * Returns the total number of nodes in the trie including the root.
+     *
+     * @return int the node count
+     */
+    public int getNodeCount() {
+        return levelStart.get(order + 1);
+    }
+
+    /**
+     * Fills the given array with the token ids that make up a state, oldest first.
+     *
+     * @param state int the state id
+     * @param tuple int[] an array at least {@link #getOrder()} long to write the ids into
+     */
+    public void getTuple(int state, int[] tuple) {
+        int node = levelStart.get(order) + state;
+        for (int i = order - 1; i >= 0; i--) {
+            tuple[i] = tokens.get(node);
+            node = parents.get(node);
+        }
+    }
+
+    /**
+     * Returns the most recent token of a state.
+     *
+     * @param state int the state id
+     * @return int the last token id of the state's tuple
+     */
+    public int getLastToken(int state) {
+        return tokens.get(levelStart.get(order) + state);
+    }
+
+    /**
+     * Returns the child of a node for the given token through a binary search of the node's children.
+     *
+     * @param node  int the parent node, which must be above the state level
+     * @param token int the token id
+     * @return int the child node or -1 if it does not exist
+     */
+    public int findChild(int node, int token) {
+        int low = firstChild.get(node);
+        int high = firstChild.get(node + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = tokens.get(mid);
+            if (value < token) low = mid + 1;
+            else if (value > token) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node for the given tuple, which can be any length up to the order of the trie.
+     *
+     * @param tuple  int[] the token ids
+     * @param offset int the index of the first id of the tuple
+     * @param length int the number of ids in the tuple
+     * @return int the node or -1 if the tuple was never seen
+     */
+    public int findNode(int[] tuple, int offset, int length) {
+        int node = 0;
+        for (int i = 0; i < length && node != -1; i++) node = findChild(node, tuple[offset + i]);
+        return node;
+    }
+
+    /**
+     * Returns the state made up of the given tuple.
+     *
+     * @param tuple  int[] the token ids
+     * @param offset int the index of the first id of the tuple, which must be {@link #getOrder()} ids long
+     * @return int the state id or -1 if the tuple was never seen
+     */
+    public int getState(int[] tuple, int offset) {
+        int node = findNode(tuple, offset, order);
+        return node == -1 ? -1 : node - levelStart.get(order);
+    }
+
+    /**
+     * Returns the first child of a node, or the first state if the node is on the level above the states.
+     *
+     * @param node int a node above the state level
+     * @return int the first child node
+     */
+    public int getChildStart(int node) {
+        return firstChild.get(node);
+    }
+
+    /**
+     * Returns the node after the last child of a node.
+     *
+     * @param node int a node above the state level
+     * @return int the exclusive end of the node's children
+     */
+    public int getChildEnd(int node) {
+        return firstChild.get(node + 1);
+    }
+
+    /**
+     * Returns if the given node is on the deepest level and so represents a state.
+     *
+     * @param node int the node
+     * @return boolean if the node is a state
+     */
+    public boolean isState(int node) {
+        return node >= levelStart.get(order);
+    }
+
+    /**
+     * Converts a node on the deepest level into its state id.
+     *
+     * @param node int the node
+     * @return int the state id
+     */
+    public int toState(int node) {
+        return node - levelStart.get(order);
+    }
+
+    IntBuffer levelStart() {
+        return levelStart.duplicate();
+    }
+
+    IntBuffer tokens() {
+        return tokens.duplicate();
+    }
+
+    IntBuffer parents() {
+        return parents.duplicate();
+    }
+
+    IntBuffer firstChild() {
+        return firstChild.duplicate();
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sentence structure data used for structured generation: the {@link WordType} of each token in the vocabulary and
+ * the word type sequence of every sentence in the input, merged into a {@link TemplateTrie}. Word types are stored as
+ * their ordinal in a single byte with {@link #UNMAPPED} marking tokens that were never tagged.
+ */
+public class SyntaxTable {
+
+    /**
+     * The byte stored for a token that has no word type
+     */
+    public static final byte UNMAPPED = -1;
+    /**
+     * Every word type by ordinal, cached as {@link WordType#values()} copies the array on every call
+     */
+    private static final WordType[] TYPES = WordType.values();
+
+    /**
+     * The ordinal of the word type of each token id
+     */
+    private final ByteBuffer wordTypes;
+    /**
+     * The word type sequence of every sentence, merged into a trie with counts
+     */
+    private final TemplateTrie templates;
+
+    public SyntaxTable(ByteBuffer wordTypes, TemplateTrie templates) {
+        this.wordTypes = wordTypes;
+        this.templates = templates;
+    }
+
+    /**
+     * Builds a syntax table from the word type map and sentence list produced by the sentence parser. Words that are not
+     * part of the vocabulary are dropped as they can never be generated.
+     *
+     * @param vocabulary Vocabulary the vocabulary of the model
+     * @param wordMap    Map[String, WordType] the word type of each tagged word
+     * @param sentences  List[WordType[]] the word type sequence of each sentence
+     * @return SyntaxTable the built table
+     */
+    public static SyntaxTable from(Vocabulary vocabulary, Map<String, WordType> wordMap, List<WordType[]> sentences) {
+        return from(vocabulary, wordMap, TemplateTrie.from(sentences));
+    }
+
+    /**
+     * Builds a syntax table from the word type map produced by the sentence parser and the templates it collected.
+     * Words that are not part of the vocabulary are dropped as they can never be generated.
+     *
+     * @param vocabulary Vocabulary the vocabulary of the model
+     * @param wordMap    Map[String, WordType] the word type of each tagged word
+     * @param templates  TemplateTrie the word type sequence of each sentence
+     * @return SyntaxTable the built table
+     */
+    public static SyntaxTable from(Vocabulary vocabulary, Map<String, WordType> wordMap, TemplateTrie templates) {
+        ByteBuffer wordTypes = ByteBuffer.allocate(vocabulary.size());
+        for (int i = 0; i < vocabulary.size(); i++) wordTypes.put(i, UNMAPPED);
+        for (Map.Entry<String, WordType> entry : wordMap.entrySet()) {
+            int id = vocabulary.getId(entry.getKey());
+            if (id != -1) wordTypes.put(id, (byte) entry.getValue().ordinal());
+        }
+        return new SyntaxTable(wordTypes, templates);
+    }
+
+    /**
+     * Returns the word type of the given token.
+     *
+     * @param token int the token id
+     * @return WordType the word type or null if the token was never tagged
+     */
+    public WordType getWordType(int token) {
+        if (token >= wordTypes.limit()) return null;
+        byte type = wordTypes.get(token);
+        return type == UNMAPPED ? null : TYPES[type];
+    }
+
+    /**
+     * Returns the number of sentences the templates were taken from, counting every duplicate.
+     *
+     * @return int the template count
+     */
+    public int getTemplateCount() {
+        return templates.getTemplateCount();
+    }
+
+    /**
+     * Returns the sentence templates with how often each was seen.
+     *
+     * @return TemplateTrie the templates
+     */
+    public TemplateTrie getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Expands the word types back into the map form used by the structured generator.
+     *
+     * @param vocabulary Vocabulary the vocabulary the table was built with
+     * @return HashMap[String, WordType] the word type of each tagged token
+     */
+    public HashMap<String, WordType> toWordTypeMap(Vocabulary vocabulary) {
+        HashMap<String, WordType> wordMap = new HashMap<>();
+        for (int i = 0; i < wordTypes.limit(); i++) {
+            WordType type = getWordType(i);
+            if (type != null) wordMap.put(vocabulary.getWord(i), type);
+        }
+        return wordMap;
+    }
+
+    /**
+     * Expands the templates back into a list with one entry per sentence, duplicates included.
+     *
+     * @return List[WordType[]] the word type sequence of each sentence
+     */
+    public List<WordType[]> toTemplateList() {
+        List<WordType[]> sentences = new ArrayList<>(getTemplateCount());
+        templates.forEach((template, count) -> {
+            for (int i = 0; i < count; i++) sentences.add(template);
+        });
+        return sentences;
+    }
+
+    ByteBuffer wordTypes() {
+        return wordTypes.duplicate();
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.IntArrayList;
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The sentence templates of a model, which are the {@link WordType} sequences of every parsed sentence, held as a
+ * prefix trie with counts. Sentences with the same sequence share one path through the trie and templates sharing a
+ * prefix share its nodes, so memory grows with the number of distinct sequences rather than with the number of
+ * sentences, while the count on each node keeps how often every template was seen.
+ * <br><br>
+ * Like {@link StateTrie} the nodes are numbered level by level from the root (node 0, the empty sequence) and the
+ * children of every node are stored contiguously and sorted by word type. Each node records how many sentences pass
+ * through it and how many end on it, so {@link #sample(SplittableRandom)} can pick a template with probability
+ * proportional to its count using a single random number and one walk from the root, which is
+ * <code>O(depth)</code> as a node has at most one child per word type.
+ */
+public class TemplateTrie {
+
+    /**
+     * The word type ordinal of the last word of each node's sequence, 0 for the root
+     */
+    private final ByteBuffer types;
+    /**
+     * The first child of each node, with a trailing entry for the end of the last node's children
+     */
+    private final IntBuffer firstChild;
+    /**
+     * The number of sentences whose template starts with each node's sequence
+     */
+    private final IntBuffer counts;
+    /**
+     * The number of sentences whose template is exactly each node's sequence
+     */
+    private final IntBuffer ends;
+
+    public TemplateTrie(ByteBuffer types, IntBuffer firstChild, IntBuffer counts, IntBuffer ends) {
+        this.types = types;
+        this.firstChild = firstChild;
+        this.counts = counts;
+        this.ends = ends;
+    }
+
+    /**
+     * Builds a trie from a list of templates, which may contain duplicates.
+     *
+     * @param templates List[WordType[]] the word type sequence of each sentence
+     * @return TemplateTrie the built trie
+     */
+    public static TemplateTrie from(List<WordType[]> templates) {
+        Builder builder = new Builder();
+        for (WordType[] template : templates) builder.add(template);
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of sentences the templates were taken from, counting every duplicate.
+     *
+     * @return int the template count
+     */
+    public int getTemplateCount() {
+        return counts.get(0);
+    }
+
+    /**
+     * Returns the number of distinct templates.
+     *
+     * @return int the distinct template count
+     */
+    public int getDistinctTemplateCount() {
+        int distinct = 0;
+        for (int node = 0; node < getNodeCount(); node++) {
+            if (ends.get(node) > 0) distinct++;
+        }
+        return distinct;
+    }
+
+    /**
+     * Returns the total number of nodes in the trie including the root.
+     *
+     * @return int the node count
+     */
+    public int getNodeCount() {
+        return counts.limit();
+    }
+
+    /**
+     * Picks a template with the probability of each being proportional to the number of sentences it was seen in.
+     *
+     * @param random SplittableRandom the random source
+     * @return WordType[] the word types of the template or null if there are no templates
+     */
+    public WordType[] sample(SplittableRandom random) {
+        if (getTemplateCount() == 0) return null;
+
+        //The pick is a position among every sentence. At each node it either lands on the sentences ending there or is
+        //carried into the child whose range of sentences holds it.
+        int pick = random.nextInt(getTemplateCount());
+        WordType[] values = WordType.values();
+        WordType[] template = new WordType[16];
+        int depth = 0;
+        int node = 0;
+        while (pick >= ends.get(node)) {
+            pick -= ends.get(node);
+            int child = firstChild.get(node);
+            while (pick >= counts.get(child)) pick -= counts.get(child++);
+
+            if (depth == template.length) template = Arrays.copyOf(template, depth * 2);
+            template[depth++] = values[types.get(child)];
+            node = child;
+        }
+        return Arrays.copyOf(template, depth);
+    }
+
+    /**
+     * Passes every distinct template to the consumer along with the number of sentences it was seen in, in no
+     * particular order.
+     *
+     * @param consumer TemplateConsumer the callback to receive the templates
+     */
+    public void forEach(TemplateConsumer consumer) {
+        forEach(0, new WordType[0], consumer);
+    }
+
+    /**
+     * Passes every distinct template below the given node to the consumer.
+     *
+     * @param node     int the node
+     * @param prefix   WordType[] the sequence of the node
+     * @param consumer TemplateConsumer the callback to receive the templates
+     */
+    private void forEach(int node, WordType[] prefix, TemplateConsumer consumer) {
+        if (ends.get(node) > 0) consumer.accept(prefix, ends.get(node));
+        for (int child = firstChild.get(node); child < firstChild.get(node + 1); child++) {
+            WordType[] sequence = Arrays.copyOf(prefix, prefix.length + 1);
+            sequence[prefix.length] = WordType.values()[types.get(child)];
+            forEach(child, sequence, consumer);
+        }
+    }
+
+    ByteBuffer types() {
+        return types.duplicate();
+    }
+
+    IntBuffer firstChild() {
+        return firstChild.duplicate();
+    }
+
+    IntBuffer counts() {
+        return counts.duplicate();
+    }
+
+    IntBuffer ends() {
+        return ends.duplicate();
+    }
+
+    /**
+     * A callback which receives distinct templates and their counts.
+     */
+    public interface TemplateConsumer {
+        void accept(WordType[] template, int count);
+    }
+
+    /**
+     * Collects templates one at a time, merging duplicates as they are added, and freezes them into a
+     * {@link TemplateTrie}. Builders are not thread safe.
+     */
+    public static class Builder {
+
+        /**
+         * The child of each node keyed by the parent's id and the child's word type ordinal
+         */
+        private final LongIntHashMap children = new LongIntHashMap();
+        /**
+         * The word type ordinal of each node, in the order nodes were created
+         */
+        private final IntArrayList types = new IntArrayList();
+        /**
+         * The number of sentences passing through each node
+         */
+        private final IntArrayList counts = new IntArrayList();
+        /**
+         * The number of sentences ending on each node
+         */
+        private final IntArrayList ends = new IntArrayList();
+
+        public Builder() {
+            addNode(0);
+        }
+
+        /**
+         * Adds the template of one sentence.
+         *
+         * @param template WordType[] the word types of the sentence
+         */
+        public void add(WordType[] template) {
+            add(template, 1);
+        }
+
+        /**
+         * Adds the template of a number of sentences at once, such as when merging the templates of another trie.
+         *
+         * @param template WordType[] the word types of the sentences
+         * @param count    int the number of sentences with this template
+         */
+        public void add(WordType[] template, int count) {
+            int node = 0;
+            counts.set(0, counts.get(0) + count);
+            for (WordType type : template) {
+                long key = LongIntHashMap.key(node, type.ordinal());
+                int child = children.get(key, -1);
+                if (child == -1) {
+                    child = addNode(type.ordinal());
+                    children.put(key, child);
+                }
+                counts.set(child, counts.get(child) + count);
+                node = child;
+            }
+            ends.set(node, ends.get(node) + count);
+        }
+
+        /**
+         * Creates a node with no sentences through it.
+         *
+         * @param type int the word type ordinal of the node
+         * @return int the id of the node
+         */
+        private int addNode(int type) {
+            types.add(type);
+            counts.add(0);
+            ends.add(0);
+            return types.size() - 1;
+        }
+
+        /**
+         * Renumbers the nodes level by level so that the children of each node are contiguous and sorted by word type,
+         * and copies them into a trie.
+         *
+         * @return TemplateTrie the built trie
+         */
+        public TemplateTrie build() {
+            int nodeCount = types.size();
+
+            //Sorted keys group the children of each parent together in word type order.
+            long[] keys = children.sortedKeys();
+            int[] childStart = new int[nodeCount + 1];
+            for (long key : keys) childStart[LongIntHashMap.high(key) + 1]++;
+            for (int node = 0; node < nodeCount; node++) childStart[node + 1] += childStart[node];
+
+            //Breadth first order, where order[id] is the builder node given that id.
+            int[] order = new int[nodeCount];
+            int added = 1;
+            ByteBuffer frozenTypes = ByteBuffer.allocate(nodeCount);
+            IntBuffer frozenFirstChild = IntBuffer.allocate(nodeCount + 1);
+            IntBuffer frozenCounts = IntBuffer.allocate(nodeCount);
+            IntBuffer frozenEnds = IntBuffer.allocate(nodeCount);
+            for (int id = 0; id < nodeCount; id++) {
+                int node = order[id];
+                frozenTypes.put(id, (byte) types.get(node));
+                frozenCounts.put(id, counts.get(node));
+                frozenEnds.put(id, ends.get(node));
+                frozenFirstChild.put(id, added);
+                for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+                    order[added++] = children.get(keys[i], -1);
+                }
+            }
+            frozenFirstChild.put(nodeCount, added);
+
+            return new TemplateTrie(frozenTypes, frozenFirstChild, frozenCounts, frozenEnds);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.vitineth.mkvc.model;
+
+import java.nio.IntBuffer;
+
+/**
+ * An immutable table of every observed transition stored in compressed sparse row form. The followers of state
+ * <code>s</code> occupy the index range <code>[getRowStart(s), getRowEnd(s))</code> of the follower and count
+ * columns, sorted by follower id. Only transitions that were actually seen are stored so the size of the table grows
+ * with the number of distinct bigrams rather than the square of the vocabulary. Alongside each follower the table
+ * stores the state that the chain moves into once that follower has been emitted.
+ * <br><br>
+ * Each transition costs four ints, its follower, successor and count columns plus its share of the row offsets, with
+ * no per-transition object. The source state of a transition is implied by the row it sits in rather than stored, and
+ * probabilities are not stored at all but derived from the counts and totals when asked for.
+ * <br><br>
+ * The columns are held in {@link IntBuffer}s so that a table can be backed by heap arrays or read straight out of a
+ * memory mapped model file without being copied.
+ */
+public class TransitionTable {
+
+    /**
+     * The start index of each state's row, with one extra trailing entry holding the total number of transitions
+     */
+    private final IntBuffer offsets;
+    /**
+     * The token id of the follower for each transition
+     */
+    private final IntBuffer followers;
+    /**
+     * The state reached after taking each transition
+     */
+    private final IntBuffer successors;
+    /**
+     * The number of times each transition was observed
+     */
+    private final IntBuffer counts;
+    /**
+     * The total number of transitions observed out of each state
+     */
+    private final IntBuffer totals;
+
+    public TransitionTable(int[] offsets, int[] followers, int[] successors, int[] counts, int[] totals) {
+        this(IntBuffer.wrap(offsets), IntBuffer.wrap(followers), IntBuffer.wrap(successors), IntBuffer.wrap(counts), IntBuffer.wrap(totals));
+    }
+
+    public TransitionTable(IntBuffer offsets, IntBuffer followers, IntBuffer successors, IntBuffer counts, IntBuffer totals) {
+        this.offsets = offsets;
+        this.followers = followers;
+        this.successors = successors;
+        this.counts = counts;
+        this.totals = totals;
+    }
+
+    /**
+     * Returns the number of states which have a row in the table, including those with no followers.
+     *
+     * @return int the number of states
+     */
+    public int getStateCount() {
+        return offsets.limit() - 1;
+    }
+
+    /**
+     * Returns the total number of distinct transitions in the table.
+     *
+     * @return int the number of transitions
+     */
+    public int getTransitionCount() {
+        return followers.limit();
+    }
+
+    /**
+     * Returns the first transition index of the given state's row.
+     *
+     * @param state int the state id
+     * @return int the inclusive start of the row
+     */
+    public int getRowStart(int state) {
+        return offsets.get(state);
+    }
+
+    /**
+     * Returns the index after the last transition of the given state's row.
+     *
+     * @param state int the state id
+     * @return int the exclusive end of the row
+     */
+    public int getRowEnd(int state) {
+        return offsets.get(state + 1);
+    }
+
+    /**
+     * Returns the state whose row contains the given transition index through a binary search of the row offsets.
+     *
+     * @param transition int the transition index
+     * @return int the state id the transition leads out of
+     */
+    public int getState(int transition) {
+        int low = 0;
+        int high = getStateCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets.get(mid) <= transition) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the probability of the given transition being taken out of its state, derived from its count and the
+     * total of its state.
+     *
+     * @param transition int the transition index
+     * @return double the probability
+     */
+    public double getProbability(int transition) {
+        return (double) counts.get(transition) / (double) totals.get(getState(transition));
+    }
+
+    /**
+     * Returns the token id which the given transition leads to.
+     *
+     * @param transition int the transition index
+     * @return int the follower token id
+     */
+    public int getFollower(int transition) {
+        return followers.get(transition);
+    }
+
+    /**
+     * Returns the state that the chain is in after the given transition has been taken.
+     *
+     * @param transition int the transition index
+     * @return int the successor state id
+     */
+    public int getSuccessor(int transition) {
+        return successors.get(transition);
+    }
+
+    /**
+     * Returns the number of times the given transition was observed.
+     *
+     * @param transition int the transition index
+     * @return int the count
+     */
+    public int getCount(int transition) {
+        return counts.get(transition);
+    }
+
+    /**
+     * Returns the total number of transitions observed out of the given state.
+     *
+     * @param state int the state id
+     * @return int the row total
+     */
+    public int getTotal(int state) {
+        return totals.get(state);
+    }
+
+    IntBuffer offsets() {
+        return offsets.duplicate();
+    }
+
+    IntBuffer followers() {
+        return followers.duplicate();
+    }
+
+    IntBuffer successors() {
+        return successors.duplicate();
+    }
+
+    IntBuffer counts() {
+        return counts.duplicate();
+    }
+
+    IntBuffer totals() {
+        return totals.duplicate();
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.util.collection.IntLruCache;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A {@link TypedSampler} that partitions the transitions of a state by the word type of their follower only when the
+ * state is first sampled, holding on to the partitions of at most a fixed number of states. Unlike the
+ * {@link TypedTransitionTable}, which is built for every state of the model up front, this keeps the states that are
+ * generated from often fully prepared while states that are rarely reached are built on demand and evicted again,
+ * bounding the memory used for large models. The buckets and alias tables of a state are built by the same code as the
+ * {@link TypedTransitionTable} uses, so both pick the same transitions for the same random source.
+ */
+public class TypedOptionCache implements TypedSampler {
+
+    /**
+     * The number of distinct bucket keys, one per word type plus one for untagged followers
+     */
+    private static final int KEYS = WordType.values().length + 1;
+
+    /**
+     * The transitions out of each state
+     */
+    private final TransitionTable table;
+    /**
+     * The word type of each token
+     */
+    private final SyntaxTable syntax;
+    /**
+     * The partitioned transitions of the most recently used states
+     */
+    private final IntLruCache<Options> cache;
+
+    /**
+     * The transitions out of a single state partitioned by the word type of their follower.
+     */
+    private static class Options {
+        /**
+         * The word type ordinal of each bucket, or {@link SyntaxTable#UNMAPPED}
+         */
+        private final byte[] bucketTypes;
+        /**
+         * The first entry of each bucket, with a trailing entry for the end of the last
+         */
+        private final int[] bucketStart;
+        /**
+         * The transition index of each entry, grouped by bucket
+         */
+        private final int[] entries;
+        /**
+         * The probability of keeping each entry rather than taking its alias
+         */
+        private final double[] probability;
+        /**
+         * The entry that each entry falls back to
+         */
+        private final int[] alias;
+
+        private Options(byte[] bucketTypes, int[] bucketStart, int[] entries, double[] probability, int[] alias) {
+            this.bucketTypes = bucketTypes;
+            this.bucketStart = bucketStart;
+            this.entries = entries;
+            this.probability = probability;
+            this.alias = alias;
+        }
+    }
+
+    /**
+     * Creates a cache over the given model which holds the partitioned transitions of at most <code>capacity</code>
+     * states at once.
+     *
+     * @param model    MarkovModel the trained model, which must carry sentence structure data
+     * @param capacity int the largest number of states to hold, at least 1
+     */
+    public TypedOptionCache(MarkovModel model, int capacity) {
+        if (model.getSyntax() == null) throw new IllegalArgumentException("The model has no sentence structure data");
+        this.table = model.getTransitions();
+        this.syntax = model.getSyntax();
+        this.cache = new IntLruCache<>(capacity);
+    }
+
+    @Override
+    public int sample(int state, WordType type, SplittableRandom random) {
+        Options options = cache.get(state, this::build);
+        byte key = type == null ? SyntaxTable.UNMAPPED : (byte) type.ordinal();
+        for (int bucket = 0; bucket < options.bucketTypes.length; bucket++) {
+            if (options.bucketTypes[bucket] != key) continue;
+
+            int from = options.bucketStart[bucket];
+            int column = from + random.nextInt(options.bucketStart[bucket + 1] - from);
+            return options.entries[random.nextDouble() < options.probability[column] ? column : options.alias[column]];
+        }
+        return -1;
+    }
+
+    /**
+     * Partitions the transitions out of a state by the word type of each follower and builds the alias table of each
+     * partition.
+     *
+     * @param state int the state
+     * @return Options the partitioned transitions
+     */
+    private Options build(int state) {
+        int size = table.getRowEnd(state) - table.getRowStart(state);
+        byte[] bucketTypes = new byte[Math.min(size, KEYS)];
+        int[] bucketStart = new int[bucketTypes.length + 1];
+        int[] entries = new int[size];
+        double[] probability = new double[size];
+        int[] alias = new int[size];
+        int bucketCount = TypedTransitionTable.bucketRow(table, syntax, state, new TypedTransitionTable.RowScratch(size), 0,
+                ByteBuffer.wrap(bucketTypes), IntBuffer.wrap(bucketStart), 0, IntBuffer.wrap(entries), DoubleBuffer.wrap(probability),
+                IntBuffer.wrap(alias));
+        bucketStart[bucketCount] = size;
+        return new Options(Arrays.copyOf(bucketTypes, bucketCount), Arrays.copyOf(bucketStart, bucketCount + 1), entries, probability, alias);
+    }
+
+    /**
+     * Returns the cache of partitioned states, through which its size and hit rate can be read.
+     *
+     * @return IntLruCache[?] the cache
+     */
+    public IntLruCache<?> getCache() {
+        return cache;
+    }
+}
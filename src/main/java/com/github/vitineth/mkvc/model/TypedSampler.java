@@ -0,0 +1,23 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks transitions out of a state whose follower has a given {@link WordType}. Implemented by the eagerly built
+ * {@link TypedTransitionTable} and by the lazily built, bounded {@link TypedOptionCache}, which sample identically.
+ */
+public interface TypedSampler {
+
+    /**
+     * Picks a transition out of the given state whose follower has the given word type, with the probability of each
+     * being proportional to its count.
+     *
+     * @param state  int the state to leave
+     * @param type   WordType the word type of the follower or null for untagged followers
+     * @param random SplittableRandom the random source
+     * @return int the selected transition index or -1 if no follower of the state has the type
+     */
+    int sample(int state, WordType type, SplittableRandom random);
+}
@@ -0,0 +1,250 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * The transitions out of each state partitioned into buckets by the {@link WordType} of the word that follows. Each
+ * state only holds buckets for the word types that actually follow it, ordered by word type, and every bucket has its
+ * own alias table so that picking the next word of a given type is a bucket lookup and a single weighted pick no
+ * matter how many other words can follow the state. Followers that were never tagged are kept in a bucket of their
+ * own under {@link SyntaxTable#UNMAPPED}.
+ */
+public class TypedTransitionTable implements TypedSampler {
+
+    /**
+     * The number of distinct bucket keys, one per word type plus one for untagged followers
+     */
+    private static final int KEYS = WordType.values().length + 1;
+
+    /**
+     * Working arrays for {@link #bucketRow}, which can be reused from row to row.
+     */
+    static class RowScratch {
+        /**
+         * The bucket key of each transition in the row
+         */
+        private final byte[] keys;
+        /**
+         * The number of transitions with each bucket key
+         */
+        private final int[] counts = new int[KEYS];
+        /**
+         * The next entry to write for each bucket key
+         */
+        private final int[] positions = new int[KEYS];
+        /**
+         * The counts of the bucket being built
+         */
+        private final int[] weights;
+        /**
+         * The scaled weights of the bucket being built
+         */
+        private final double[] scaled;
+        /**
+         * The work list of underfull columns
+         */
+        private final int[] small;
+        /**
+         * The work list of overfull columns
+         */
+        private final int[] large;
+
+        /**
+         * Creates working arrays for rows of up to the given number of transitions.
+         *
+         * @param width int the widest row
+         */
+        RowScratch(int width) {
+            this.keys = new byte[width];
+            this.weights = new int[width];
+            this.scaled = new double[width];
+            this.small = new int[width];
+            this.large = new int[width];
+        }
+    }
+
+    /**
+     * The first bucket of each state, with a trailing entry for the end of the last
+     */
+    private final IntBuffer stateBuckets;
+    /**
+     * The word type ordinal of each bucket, or {@link SyntaxTable#UNMAPPED}
+     */
+    private final ByteBuffer bucketTypes;
+    /**
+     * The first entry of each bucket, with a trailing entry for the end of the last
+     */
+    private final IntBuffer bucketStart;
+    /**
+     * The transition index of each entry, grouped by state then bucket
+     */
+    private final IntBuffer entries;
+    /**
+     * The probability of keeping each entry rather than taking its alias
+     */
+    private final DoubleBuffer probability;
+    /**
+     * The entry that each entry falls back to
+     */
+    private final IntBuffer alias;
+
+    /**
+     * Partitions every row of the transition table by the word type of each follower.
+     *
+     * @param table  TransitionTable the counted transitions
+     * @param syntax SyntaxTable the word type of each token
+     */
+    public TypedTransitionTable(TransitionTable table, SyntaxTable syntax) {
+        int stateCount = table.getStateCount();
+        int transitionCount = table.getTransitionCount();
+
+        int bucketCount = 0;
+        int widest = 0;
+        boolean[] seen = new boolean[KEYS];
+        for (int state = 0; state < stateCount; state++) {
+            int start = table.getRowStart(state);
+            int end = table.getRowEnd(state);
+            for (int i = start; i < end; i++) {
+                byte key = bucketKey(syntax, table.getFollower(i));
+                if (!seen[key]) bucketCount++;
+                seen[key] = true;
+            }
+            widest = Math.max(widest, end - start);
+            for (int key = 0; key < KEYS; key++) seen[key] = false;
+        }
+
+        stateBuckets = IntBuffer.allocate(stateCount + 1);
+        bucketTypes = ByteBuffer.allocate(bucketCount);
+        bucketStart = IntBuffer.allocate(bucketCount + 1);
+        entries = IntBuffer.allocate(transitionCount);
+        probability = DoubleBuffer.allocate(transitionCount);
+        alias = IntBuffer.allocate(transitionCount);
+
+        RowScratch scratch = new RowScratch(widest);
+        int bucket = 0;
+        for (int state = 0; state < stateCount; state++) {
+            stateBuckets.put(state, bucket);
+            bucket = bucketRow(table, syntax, state, scratch, table.getRowStart(state), bucketTypes, bucketStart, bucket, entries, probability,
+                    alias);
+        }
+        stateBuckets.put(stateCount, bucket);
+        bucketStart.put(bucketCount, transitionCount);
+    }
+
+    /**
+     * Returns the bucket key of a follower, which is its word type ordinal shifted up by one so that untagged is 0.
+     *
+     * @param syntax   SyntaxTable the word type of each token
+     * @param follower int the token id of the follower
+     * @return byte the bucket key
+     */
+    static byte bucketKey(SyntaxTable syntax, int follower) {
+        WordType type = syntax.getWordType(follower);
+        return (byte) (type == null ? 0 : type.ordinal() + 1);
+    }
+
+    /**
+     * Partitions the transitions out of a single state into buckets by the word type of each follower, ordered by word
+     * type and keeping the follower order within each bucket, and builds the alias table of each bucket. The entries of
+     * the row are written from <code>offset</code> and its buckets from <code>bucket</code>, with the start of each
+     * bucket given as a position in the entries. The end of the last bucket is left for the caller to write.
+     *
+     * @param table       TransitionTable the counted transitions
+     * @param syntax      SyntaxTable the word type of each token
+     * @param state       int the state whose row to partition
+     * @param scratch     RowScratch working arrays at least as wide as the row
+     * @param offset      int where to write the first entry of the row
+     * @param bucketTypes ByteBuffer receives the word type ordinal of each bucket, or {@link SyntaxTable#UNMAPPED}
+     * @param bucketStart IntBuffer receives the first entry of each bucket
+     * @param bucket      int where to write the first bucket of the row
+     * @param entries     IntBuffer receives the transition index of each entry
+     * @param probability DoubleBuffer receives the probability of keeping each entry
+     * @param alias       IntBuffer receives the entry that each entry falls back to
+     * @return int the index after the last bucket written
+     */
+    static int bucketRow(TransitionTable table, SyntaxTable syntax, int state, RowScratch scratch, int offset, ByteBuffer bucketTypes,
+                         IntBuffer bucketStart, int bucket, IntBuffer entries, DoubleBuffer probability, IntBuffer alias) {
+        int start = table.getRowStart(state);
+        int size = table.getRowEnd(state) - start;
+        byte[] keys = scratch.keys;
+        int[] counts = scratch.counts;
+        int[] positions = scratch.positions;
+        for (int i = 0; i < size; i++) {
+            keys[i] = bucketKey(syntax, table.getFollower(start + i));
+            counts[keys[i]]++;
+        }
+
+        //Counting sort of the row by bucket key, keeping the follower order within each bucket.
+        int first = bucket;
+        int position = offset;
+        for (int key = 0; key < KEYS; key++) {
+            if (counts[key] == 0) continue;
+            bucketTypes.put(bucket, key == 0 ? SyntaxTable.UNMAPPED : (byte) (key - 1));
+            bucketStart.put(bucket++, position);
+            positions[key] = position;
+            position += counts[key];
+            counts[key] = 0;
+        }
+        for (int i = 0; i < size; i++) entries.put(positions[keys[i]]++, start + i);
+
+        for (int b = first; b < bucket; b++) {
+            int from = bucketStart.get(b);
+            int width = (b + 1 < bucket ? bucketStart.get(b + 1) : offset + size) - from;
+            long total = 0;
+            for (int i = 0; i < width; i++) {
+                scratch.weights[i] = table.getCount(entries.get(from + i));
+                total += scratch.weights[i];
+            }
+            AliasTable.buildRow(scratch.weights, width, total, scratch.scaled, scratch.small, scratch.large, probability, alias, from);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the bucket of transitions out of the given state whose followers have the given word type.
+     *
+     * @param state int the state to leave
+     * @param type  WordType the word type of the follower or null for untagged followers
+     * @return int the bucket index or -1 if no follower of the state has the type
+     */
+    public int getBucket(int state, WordType type) {
+        byte key = type == null ? SyntaxTable.UNMAPPED : (byte) type.ordinal();
+        for (int bucket = stateBuckets.get(state); bucket < stateBuckets.get(state + 1); bucket++) {
+            if (bucketTypes.get(bucket) == key) return bucket;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of transitions in the given bucket.
+     *
+     * @param bucket int the bucket index
+     * @return int the number of transitions
+     */
+    public int getBucketSize(int bucket) {
+        return bucketStart.get(bucket + 1) - bucketStart.get(bucket);
+    }
+
+    /**
+     * Picks a transition out of the given state whose follower has the given word type, with the probability of each
+     * being proportional to its count.
+     *
+     * @param state  int the state to leave
+     * @param type   WordType the word type of the follower or null for untagged followers
+     * @param random SplittableRandom the random source
+     * @return int the selected transition index or -1 if no follower of the state has the type
+     */
+    @Override
+    public int sample(int state, WordType type, SplittableRandom random) {
+        int bucket = getBucket(state, type);
+        if (bucket == -1) return -1;
+
+        int column = bucketStart.get(bucket) + random.nextInt(getBucketSize(bucket));
+        return entries.get(random.nextDouble() < probability.get(column) ? column : alias.get(column));
+    }
+}
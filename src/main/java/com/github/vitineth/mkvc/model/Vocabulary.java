@@ -0,0 +1,31 @@
+package com.github.vitineth.mkvc.model;
+
+/**
+ * A two way mapping between tokens and the dense integer ids used for them throughout the model. Ids run from 0 to
+ * <code>size() - 1</code>.
+ */
+public interface Vocabulary {
+
+    /**
+     * Returns the id of the given token or -1 if it is not part of the vocabulary.
+     *
+     * @param word String the token
+     * @return int the id or -1
+     */
+    int getId(String word);
+
+    /**
+     * Returns the token with the given id.
+     *
+     * @param id int the id
+     * @return String the token
+     */
+    String getWord(int id);
+
+    /**
+     * Returns the number of distinct tokens in the vocabulary.
+     *
+     * @return int the number of tokens
+     */
+    int size();
+}
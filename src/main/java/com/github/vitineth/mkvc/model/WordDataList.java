@@ -0,0 +1,91 @@
+package com.github.vitineth.mkvc.model;
+
+import com.github.vitineth.mkvc.word.WordData;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A read only {@link WordData} view over the columns of a {@link MarkovModel}. Nothing is copied when the view is made;
+ * each {@link WordData} is created from the columns when it is asked for, so code written against the old list of
+ * word data keeps working without the model paying for an object per transition. Entries are in transition order,
+ * which groups them by state.
+ */
+class WordDataList extends AbstractList<WordData> implements RandomAccess {
+
+    /**
+     * The model being viewed
+     */
+    private final MarkovModel model;
+    /**
+     * The transitions of the model
+     */
+    private final TransitionTable table;
+
+    WordDataList(MarkovModel model) {
+        this.model = model;
+        this.table = model.getTransitions();
+    }
+
+    /**
+     * Creates the word data for the given transition.
+     *
+     * @param index int the transition index
+     * @return WordData the word data
+     */
+    @Override
+    public WordData get(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + " out of " + size());
+        return create(table.getState(index), index);
+    }
+
+    @Override
+    public int size() {
+        return table.getTransitionCount();
+    }
+
+    /**
+     * Returns an iterator which walks the rows in order, so that the state of each entry does not need to be searched
+     * for and the text of each state is only built once.
+     *
+     * @return Iterator[WordData] the iterator
+     */
+    @Override
+    public Iterator<WordData> iterator() {
+        return new Iterator<WordData>() {
+            private int state = -1;
+            private int transition = 0;
+            private String word;
+
+            @Override
+            public boolean hasNext() {
+                return transition < size();
+            }
+
+            @Override
+            public WordData next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (state == -1 || transition >= table.getRowEnd(state)) {
+                    do state++; while (table.getRowEnd(state) <= transition);
+                    word = model.getStateText(state);
+                }
+                WordData data = new WordData(word, model.getVocabulary().getWord(table.getFollower(transition)), table.getCount(transition), table.getTotal(state));
+                transition++;
+                return data;
+            }
+        };
+    }
+
+    /**
+     * Creates the word data for a transition of the given state.
+     *
+     * @param state      int the state the transition leaves
+     * @param transition int the transition index
+     * @return WordData the word data
+     */
+    private WordData create(int state, int transition) {
+        return new WordData(model.getStateText(state), model.getVocabulary().getWord(table.getFollower(transition)), table.getCount(transition), table.getTotal(state));
+    }
+}
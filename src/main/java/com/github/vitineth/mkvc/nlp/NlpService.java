@@ -0,0 +1,470 @@
+package com.github.vitineth.mkvc.nlp;
+
+import com.github.vitineth.mkvc.word.WordType;
+import opennlp.tools.cmdline.parser.ParserTool;
+import opennlp.tools.parser.Parse;
+import opennlp.tools.parser.Parser;
+import opennlp.tools.parser.ParserFactory;
+import opennlp.tools.parser.ParserModel;
+import opennlp.tools.postag.POSModel;
+import opennlp.tools.postag.POSTaggerME;
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.tokenize.SimpleTokenizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Access to the OpenNLP sentence detector, parser and part of speech tagger. Each model is read from the classpath once,
+ * the first time it is needed, and shared for the life of the service. The {@link SentenceDetectorME}, {@link Parser}
+ * and {@link POSTaggerME} instances built from them are not thread safe, so every thread that uses the service gets its
+ * own instances which it keeps for later calls. Tagging is spread across a fixed pool of worker threads.
+ * <br><br>
+ * Sentences are tagged according to the service's {@link TaggingMode}. With {@link TaggingMode#PARSER} the tags are
+ * read straight off the leaves of the parse tree and with {@link TaggingMode#POS_TAGGER} the parser is skipped
+ * entirely. Either way each tag is turned into a {@link WordType} through {@link WordType#fromTag(String)}.
+ * <br><br>
+ * Identical sentences given in one call are only tagged once. If a {@link ParseCache} is set, sentences found in it are
+ * not tagged at all and every sentence that is tagged is added to it, so retraining on a corpus that has barely changed
+ * only tags what is new.
+ */
+public class NlpService implements Closeable {
+
+    /**
+     * The classpath location of the sentence detection model
+     */
+    private static final String SENTENCE_MODEL = "/opennlp/en-sent.bin";
+    /**
+     * The classpath location of the chunking parser model
+     */
+    private static final String PARSER_MODEL = "/opennlp/en-parser-chunking.bin";
+    /**
+     * The classpath location of the part of speech tagger model
+     */
+    private static final String POS_MODEL = "/opennlp/en-pos-maxent.bin";
+    /**
+     * The number of blocks of sentences made per worker so uneven sentences still keep every worker busy
+     */
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    /**
+     * The number of worker threads used for parsing
+     */
+    private final int threads;
+    /**
+     * How sentences are tagged
+     */
+    private final TaggingMode mode;
+    /**
+     * The pool of workers that sentences are parsed on, created when first needed
+     */
+    private ExecutorService executor;
+    /**
+     * The shared sentence model, loaded when first needed
+     */
+    private volatile SentenceModel sentenceModel;
+    /**
+     * The shared parser model, loaded when first needed
+     */
+    private volatile ParserModel parserModel;
+    /**
+     * The shared part of speech model, loaded when first needed
+     */
+    private volatile POSModel posModel;
+    /**
+     * The sentence detector belonging to each thread
+     */
+    private final ThreadLocal<SentenceDetectorME> sentenceDetectors = new ThreadLocal<>();
+    /**
+     * The parser belonging to each thread
+     */
+    private final ThreadLocal<Parser> parsers = new ThreadLocal<>();
+    /**
+     * The part of speech tagger belonging to each thread
+     */
+    private final ThreadLocal<POSTaggerME> taggers = new ThreadLocal<>();
+    /**
+     * The persistent cache of tagged sentences or null if there is none
+     */
+    private volatile ParseCache cache;
+    /**
+     * The sentences that were left untagged because an identical sentence was given in the same call
+     */
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Tags a batch of sentences.
+     */
+    private interface Tagger {
+        ParsedSentence[] tag(String[] sentences) throws IOException;
+    }
+
+    /**
+     * Creates a service which tags with the full parser on the given number of threads.
+     *
+     * @param threads int the number of worker threads
+     */
+    public NlpService(int threads) {
+        this(threads, TaggingMode.PARSER);
+    }
+
+    /**
+     * Creates a service which tags in the given mode on the given number of threads.
+     *
+     * @param threads int the number of worker threads
+     * @param mode    TaggingMode how sentences should be tagged
+     */
+    public NlpService(int threads, TaggingMode mode) {
+        this.threads = Math.max(1, threads);
+        this.mode = mode;
+    }
+
+    /**
+     * Splits the given data into sentences using the calling thread's {@link SentenceDetectorME}.
+     *
+     * @param data String the input data
+     * @return String[] the sentences
+     * @throws IOException If there was an error reading the model.
+     */
+    public String[] detectSentences(String data) throws IOException {
+        return getSentenceDetector().sentDetect(data);
+    }
+
+    /**
+     * Sets the persistent cache that tagged sentences are looked up in and added to.
+     *
+     * @param cache ParseCache the cache or null to tag every sentence
+     * @throws IllegalArgumentException If the cache was opened for a different tagging mode.
+     */
+    public void setCache(ParseCache cache) {
+        if (cache != null && cache.getMode() != mode) {
+            throw new IllegalArgumentException("The cache holds sentences tagged by " + cache.getMode() + " but the service tags by " + mode);
+        }
+        this.cache = cache;
+    }
+
+    public ParseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the number of sentences that were not tagged because an identical sentence was given in the same call.
+     *
+     * @return long the number of duplicate sentences
+     */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Tags every given sentence according to the tagging mode, spreading the sentences over the worker threads.
+     *
+     * @param sentences String[] the sentences to tag
+     * @return ParsedSentence[] the tagged words of each sentence, in the same order as the sentences
+     * @throws IOException If there was an error reading the model.
+     */
+    public ParsedSentence[] parse(String[] sentences) throws IOException {
+        return resolve(sentences, this::parseAll);
+    }
+
+    /**
+     * Tags every given sentence according to the tagging mode on the calling thread, for callers that already spread
+     * their work over threads of their own.
+     *
+     * @param sentences String[] the sentences to tag
+     * @return ParsedSentence[] the tagged words of each sentence, in the same order as the sentences
+     * @throws IOException If there was an error reading the model.
+     */
+    public ParsedSentence[] parseOnCurrentThread(String[] sentences) throws IOException {
+        return resolve(sentences, unique -> {
+            ParsedSentence[] parsed = new ParsedSentence[unique.length];
+            parseRange(unique, parsed, 0, unique.length);
+            return parsed;
+        });
+    }
+
+    /**
+     * Tags a batch of sentences through the given tagger, passing it each distinct sentence that is not in the cache
+     * once and adding what it returns to the cache.
+     *
+     * @param sentences String[] the sentences to tag
+     * @param tagger    Tagger tags the sentences still needed
+     * @return ParsedSentence[] the tagged words of each sentence, in the same order as the sentences
+     * @throws IOException If there was an error reading the model or the cache.
+     */
+    private ParsedSentence[] resolve(String[] sentences, Tagger tagger) throws IOException {
+        ParseCache cache = this.cache;
+        ParsedSentence[] parsed = new ParsedSentence[sentences.length];
+        Map<String, Integer> first = new HashMap<>();
+        int[] source = new int[sentences.length];
+        List<String> missing = new ArrayList<>();
+        List<Integer> missingAt = new ArrayList<>();
+        for (int i = 0; i < sentences.length; i++) {
+            Integer earlier = first.putIfAbsent(sentences[i], i);
+            source[i] = earlier == null ? i : earlier;
+            if (earlier != null) {
+                duplicates.increment();
+                continue;
+            }
+            if (cache != null) parsed[i] = cache.get(sentences[i]);
+            if (parsed[i] == null) {
+                missing.add(sentences[i]);
+                missingAt.add(i);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            ParsedSentence[] tagged = tagger.tag(missing.toArray(new String[missing.size()]));
+            for (int i = 0; i < tagged.length; i++) {
+                parsed[missingAt.get(i)] = tagged[i];
+                if (cache != null) cache.put(missing.get(i), tagged[i]);
+            }
+        }
+        for (int i = 0; i < sentences.length; i++) parsed[i] = parsed[source[i]];
+        return parsed;
+    }
+
+    /**
+     * Tags every given sentence, spreading the sentences over the worker threads.
+     *
+     * @param sentences String[] the sentences to tag
+     * @return ParsedSentence[] the tagged words of each sentence, in the same order as the sentences
+     * @throws IOException If there was an error reading the model.
+     */
+    private ParsedSentence[] parseAll(String[] sentences) throws IOException {
+        if (mode == TaggingMode.PARSER) getParserModel();
+        else getPosModel();
+        ParsedSentence[] parsed = new ParsedSentence[sentences.length];
+        if (threads == 1 || sentences.length < 2) {
+            parseRange(sentences, parsed, 0, sentences.length);
+            return parsed;
+        }
+
+        int blockSize = Math.max(1, (sentences.length + threads * BLOCKS_PER_THREAD - 1) / (threads * BLOCKS_PER_THREAD));
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int start = 0; start < sentences.length; start += blockSize) {
+            final int from = start;
+            final int to = Math.min(sentences.length, start + blockSize);
+            futures.add(getExecutor().submit(() -> {
+                parseRange(sentences, parsed, from, to);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing sentences", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Failed to parse sentences", e.getCause());
+        }
+        return parsed;
+    }
+
+    /**
+     * Tags a range of sentences on the calling thread.
+     *
+     * @param sentences String[] all sentences
+     * @param parsed    ParsedSentence[] the array to write each result into
+     * @param from      int the first sentence to tag
+     * @param to        int the index after the last sentence to tag
+     * @throws IOException If there was an error reading the model.
+     */
+    private void parseRange(String[] sentences, ParsedSentence[] parsed, int from, int to) throws IOException {
+        if (mode == TaggingMode.PARSER) {
+            Parser parser = getParser();
+            for (int i = from; i < to; i++) parsed[i] = parse(parser, sentences[i]);
+        } else {
+            POSTaggerME tagger = getTagger();
+            for (int i = from; i < to; i++) parsed[i] = tag(tagger, sentences[i]);
+        }
+    }
+
+    /**
+     * Tags a single sentence by parsing it and walking the part of speech nodes at the leaves of the tree.
+     *
+     * @param parser   Parser the parser to use
+     * @param sentence String the sentence
+     * @return ParsedSentence the tagged words
+     */
+    private ParsedSentence parse(Parser parser, String sentence) {
+        Parse[] tagNodes = ParserTool.parseLine(sentence, parser, 1)[0].getTagNodes();
+        String[] words = new String[tagNodes.length];
+        String[] tags = new String[tagNodes.length];
+        for (int i = 0; i < tagNodes.length; i++) {
+            words[i] = tagNodes[i].getCoveredText();
+            tags[i] = tagNodes[i].getType();
+        }
+        return toParsedSentence(words, tags);
+    }
+
+    /**
+     * Tags a single sentence with the part of speech tagger alone.
+     *
+     * @param tagger   POSTaggerME the tagger to use
+     * @param sentence String the sentence
+     * @return ParsedSentence the tagged words
+     */
+    private ParsedSentence tag(POSTaggerME tagger, String sentence) {
+        String[] words = SimpleTokenizer.INSTANCE.tokenize(sentence);
+        return toParsedSentence(words, tagger.tag(words));
+    }
+
+    /**
+     * Pairs up words and their tags, keeping only those whose tag maps onto a {@link WordType}.
+     *
+     * @param words String[] the words of the sentence
+     * @param tags  String[] the tag of each word
+     * @return ParsedSentence the tagged words
+     */
+    private static ParsedSentence toParsedSentence(String[] words, String[] tags) {
+        List<String> keptWords = new ArrayList<>(words.length);
+        List<WordType> keptTypes = new ArrayList<>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            WordType type = WordType.fromTag(tags[i]);
+            if (type == null) continue;
+            keptWords.add(words[i]);
+            keptTypes.add(type);
+        }
+        return new ParsedSentence(keptWords.toArray(new String[keptWords.size()]), keptTypes.toArray(new WordType[keptTypes.size()]));
+    }
+
+    /**
+     * Returns the calling thread's sentence detector, creating it from the shared model if needed.
+     *
+     * @return SentenceDetectorME the sentence detector
+     * @throws IOException If there was an error reading the model.
+     */
+    private SentenceDetectorME getSentenceDetector() throws IOException {
+        SentenceDetectorME detector = sentenceDetectors.get();
+        if (detector == null) {
+            detector = new SentenceDetectorME(getSentenceModel());
+            sentenceDetectors.set(detector);
+        }
+        return detector;
+    }
+
+    /**
+     * Returns the calling thread's parser, creating it from the shared model if needed.
+     *
+     * @return Parser the parser
+     * @throws IOException If there was an error reading the model.
+     */
+    private Parser getParser() throws IOException {
+        Parser parser = parsers.get();
+        if (parser == null) {
+            parser = ParserFactory.create(getParserModel());
+            parsers.set(parser);
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the calling thread's part of speech tagger, creating it from the shared model if needed.
+     *
+     * @return POSTaggerME the tagger
+     * @throws IOException If there was an error reading the model.
+     */
+    private POSTaggerME getTagger() throws IOException {
+        POSTaggerME tagger = taggers.get();
+        if (tagger == null) {
+            tagger = new POSTaggerME(getPosModel());
+            taggers.set(tagger);
+        }
+        return tagger;
+    }
+
+    private SentenceModel getSentenceModel() throws IOException {
+        if (sentenceModel == null) {
+            synchronized (this) {
+                if (sentenceModel == null) {
+                    try (InputStream input = openModel(SENTENCE_MODEL)) {
+                        sentenceModel = new SentenceModel(input);
+                    }
+                }
+            }
+        }
+        return sentenceModel;
+    }
+
+    private ParserModel getParserModel() throws IOException {
+        if (parserModel == null) {
+            synchronized (this) {
+                if (parserModel == null) {
+                    try (InputStream input = openModel(PARSER_MODEL)) {
+                        parserModel = new ParserModel(input);
+                    }
+                }
+            }
+        }
+        return parserModel;
+    }
+
+    private POSModel getPosModel() throws IOException {
+        if (posModel == null) {
+            synchronized (this) {
+                if (posModel == null) {
+                    try (InputStream input = openModel(POS_MODEL)) {
+                        posModel = new POSModel(input);
+                    }
+                }
+            }
+        }
+        return posModel;
+    }
+
+    /**
+     * Opens a model from the classpath.
+     *
+     * @param location String the classpath location of the model
+     * @return InputStream the stream of the model
+     * @throws IOException If the model cannot be found.
+     */
+    private InputStream openModel(String location) throws IOException {
+        InputStream input = getClass().getResourceAsStream(location);
+        if (input == null) throw new IOException("Could not find the OpenNLP model " + location + " on the classpath");
+        return input;
+    }
+
+    /**
+     * Returns the worker pool, creating it if needed. The workers are daemon threads so an unclosed service never
+     * keeps the JVM alive.
+     *
+     * @return ExecutorService the worker pool
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "nlp-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the worker threads. The loaded models are kept and a later call to {@link #parse(String[])} starts new
+     * workers.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
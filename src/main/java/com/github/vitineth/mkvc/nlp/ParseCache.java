@@ -0,0 +1,390 @@
+package com.github.vitineth.mkvc.nlp;
+
+import com.github.vitineth.mkvc.util.collection.LongIntHashMap;
+import com.github.vitineth.mkvc.word.WordType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A persistent cache of tagged sentences so that retraining on a corpus that has barely changed only parses the
+ * sentences that are new. Each entry is keyed by a 63 bit hash of the {@link TaggingMode} and the sentence text and
+ * holds the sentence's {@link ParsedSentence}, which is both its word type sequence and the word type of each word.
+ * <br><br>
+ * Entries live in two append-only files. The data file holds a short header, which records the number of word types so
+ * that a cache written before {@link WordType} changed is rejected rather than misread, followed by one record per
+ * entry: the hash, the length of the payload and the payload of the sentence itself, the word count then each word and
+ * its word type ordinal. The sentence is checked on every lookup, so two sentences that share a hash never return each
+ * other's tagging. The index file next to it, named after the data file with <code>.idx</code> appended, holds the hash and data file offset of
+ * each record. The index is read into memory on opening, and any records that were written to the data file without
+ * making it into the index, for example because the process was killed, are recovered by scanning the data file from
+ * the end of the last indexed record. A partial record at the end of the data file is cut off. Records are only ever
+ * appended, so a later entry for the same hash replaces an earlier one.
+ * <br><br>
+ * Every method is thread safe.
+ */
+public class ParseCache implements Closeable {
+
+    /**
+     * The bytes 'MKPC' which every data file starts with
+     */
+    public static final int MAGIC = 0x4D4B5043;
+    /**
+     * The version of the format written by this class
+     */
+    public static final int VERSION = 2;
+    /**
+     * The size of the data file header in bytes
+     */
+    private static final int HEADER_SIZE = 12;
+    /**
+     * The size of a record header, which is the hash and the payload length, in bytes
+     */
+    private static final int RECORD_HEADER_SIZE = 12;
+    /**
+     * The size of an index entry, which is the hash and the record offset, in bytes
+     */
+    private static final int INDEX_ENTRY_SIZE = 16;
+    /**
+     * Every word type by ordinal
+     */
+    private static final WordType[] TYPES = WordType.values();
+
+    /**
+     * How sentences in this cache were tagged, which is mixed into every hash
+     */
+    private final TaggingMode mode;
+    /**
+     * The data file
+     */
+    private final FileChannel data;
+    /**
+     * The index file
+     */
+    private final FileChannel index;
+    /**
+     * The record number of each hash
+     */
+    private final LongIntHashMap records = new LongIntHashMap();
+    /**
+     * The data file offset of each record number
+     */
+    private long[] offsets = new long[64];
+    /**
+     * The number of records
+     */
+    private int recordCount;
+    /**
+     * The lookups that found an entry
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * The lookups that found nothing
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens the cache stored in the given data file and its index, creating both if they do not exist.
+     *
+     * @param file File the data file
+     * @param mode TaggingMode how the sentences being cached are tagged
+     * @throws IOException If either file cannot be opened or the data file is not a parse cache.
+     */
+    public ParseCache(File file, TaggingMode mode) throws IOException {
+        this.mode = mode;
+        this.data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(new File(file.getPath() + ".idx").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            open();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the header of the data file, writing it if the file is new, then loads the index and recovers any records
+     * missing from it.
+     *
+     * @throws IOException If the files cannot be read or the data file is not a parse cache.
+     */
+    private void open() throws IOException {
+        if (data.size() < HEADER_SIZE) {
+            data.truncate(0);
+            index.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(TYPES.length);
+            writeFully(data, (ByteBuffer) header.flip(), 0);
+        } else {
+            ByteBuffer header = readFully(data, HEADER_SIZE, 0);
+            if (header.getInt() != MAGIC) throw new IOException("File is not a parse cache");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported parse cache version " + version + " (expected " + VERSION + ")");
+            int types = header.getInt();
+            if (types != TYPES.length) throw new IOException("Parse cache was written with " + types + " word types but there are " + TYPES.length);
+        }
+
+        //Load index entries while each points at a complete record straight after the previous one, stopping at the
+        //first that does not.
+        long dataSize = data.size();
+        long entries = index.size() / INDEX_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+        long position = 0;
+        long end = HEADER_SIZE;
+        boolean valid = true;
+        while (valid && position < entries * INDEX_ENTRY_SIZE) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), entries * INDEX_ENTRY_SIZE - position));
+            readFully(index, buffer, position);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                long hash = buffer.getLong();
+                long offset = buffer.getLong();
+                long recordEnd = offset != end || offset + RECORD_HEADER_SIZE > dataSize ? -1 : recordEnd(offset, hash, dataSize);
+                if (recordEnd == -1) {
+                    valid = false;
+                    break;
+                }
+                add(hash, offset);
+                end = recordEnd;
+                position += INDEX_ENTRY_SIZE;
+            }
+        }
+        index.truncate(position);
+
+        //Anything after the last indexed record was appended without being indexed, so scan it back in.
+        while (end + RECORD_HEADER_SIZE <= dataSize) {
+            ByteBuffer header = readFully(data, RECORD_HEADER_SIZE, end);
+            long hash = header.getLong();
+            long recordEnd = recordEnd(end, hash, dataSize);
+            if (recordEnd == -1) break;
+            add(hash, end);
+            appendIndex(hash, end);
+            end = recordEnd;
+        }
+        data.truncate(end);
+    }
+
+    /**
+     * Returns where the record at the given offset ends if it is complete and has the expected hash.
+     *
+     * @param offset   long the offset of the record
+     * @param hash     long the hash the record should have
+     * @param dataSize long the size of the data file
+     * @return long the offset after the record or -1 if it is not a complete record with that hash
+     * @throws IOException If the data file cannot be read.
+     */
+    private long recordEnd(long offset, long hash, long dataSize) throws IOException {
+        ByteBuffer header = readFully(data, RECORD_HEADER_SIZE, offset);
+        if (header.getLong() != hash) return -1;
+        int length = header.getInt();
+        long end = offset + RECORD_HEADER_SIZE + length;
+        return length < 0 || end > dataSize ? -1 : end;
+    }
+
+    /**
+     * Returns the cached tagging of a sentence.
+     *
+     * @param sentence String the sentence
+     * @return ParsedSentence the tagged words or null if the sentence is not cached
+     * @throws IOException If the data file cannot be read.
+     */
+    public synchronized ParsedSentence get(String sentence) throws IOException {
+        int record = records.get(hash(sentence), -1);
+        ParsedSentence parsed = record == -1 ? null : read(offsets[record], sentence.getBytes(StandardCharsets.UTF_8));
+        if (parsed == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return parsed;
+    }
+
+    /**
+     * Reads the tagging stored in a record if the record is for the given sentence.
+     *
+     * @param offset   long the offset of the record
+     * @param sentence byte[] the UTF-8 bytes of the sentence
+     * @return ParsedSentence the tagged words or null if the record is for another sentence with the same hash
+     * @throws IOException If the data file cannot be read.
+     */
+    private ParsedSentence read(long offset, byte[] sentence) throws IOException {
+        int length = readFully(data, RECORD_HEADER_SIZE, offset).getInt(8);
+        ByteBuffer payload = readFully(data, length, offset + RECORD_HEADER_SIZE);
+        byte[] stored = new byte[payload.getInt()];
+        payload.get(stored);
+        if (!Arrays.equals(stored, sentence)) return null;
+
+        int count = payload.getShort() & 0xFFFF;
+        String[] words = new String[count];
+        WordType[] types = new WordType[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[payload.getShort() & 0xFFFF];
+            payload.get(bytes);
+            words[i] = new String(bytes, StandardCharsets.UTF_8);
+            types[i] = TYPES[payload.get()];
+        }
+        return new ParsedSentence(words, types);
+    }
+
+    /**
+     * Adds the tagging of a sentence to the cache, writing it to disk straight away.
+     *
+     * @param sentence String the sentence
+     * @param parsed   ParsedSentence the tagged words
+     * @throws IOException If the files cannot be written.
+     */
+    public synchronized void put(String sentence, ParsedSentence parsed) throws IOException {
+        //Sentences too long to store are rare and just get parsed again next time.
+        if (parsed.size() > 0xFFFF) return;
+        byte[] text = sentence.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER_SIZE + 4 + text.length + 16 * parsed.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        long hash = hash(sentence);
+        out.writeLong(hash);
+        out.writeInt(0);
+        out.writeInt(text.length);
+        out.write(text);
+        out.writeShort(parsed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            byte[] word = parsed.getWords()[i].getBytes(StandardCharsets.UTF_8);
+            if (word.length > 0xFFFF) return;
+            out.writeShort(word.length);
+            out.write(word);
+            out.writeByte(parsed.getTypes()[i].ordinal());
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(8, record.limit() - RECORD_HEADER_SIZE);
+        long offset = data.size();
+        writeFully(data, record, offset);
+        appendIndex(hash, offset);
+        add(hash, offset);
+    }
+
+    /**
+     * Returns the number of sentences in the cache.
+     *
+     * @return int the number of entries
+     */
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public TaggingMode getMode() {
+        return mode;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Records the offset of a record in memory.
+     *
+     * @param hash   long the hash of the record
+     * @param offset long the offset of the record in the data file
+     */
+    private void add(long hash, long offset) {
+        if (recordCount == offsets.length) offsets = Arrays.copyOf(offsets, recordCount * 2);
+        offsets[recordCount] = offset;
+        records.put(hash, recordCount++);
+    }
+
+    /**
+     * Appends an entry to the index file.
+     *
+     * @param hash   long the hash of the record
+     * @param offset long the offset of the record in the data file
+     * @throws IOException If the index cannot be written.
+     */
+    private void appendIndex(long hash, long offset) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putLong(hash).putLong(offset);
+        writeFully(index, (ByteBuffer) entry.flip(), index.size());
+    }
+
+    /**
+     * Hashes a sentence together with the tagging mode into 63 bits, using 64 bit FNV-1a over the characters followed by
+     * a finalising mix so that similar sentences do not get similar hashes.
+     *
+     * @param sentence String the sentence
+     * @return long the non-negative hash
+     */
+    long hash(String sentence) {
+        long hash = 0xcbf29ce484222325L ^ mode.ordinal();
+        for (int i = 0; i < sentence.length(); i++) {
+            hash ^= sentence.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash & Long.MAX_VALUE;
+    }
+
+    /**
+     * Reads the given number of bytes from a channel at the given position.
+     *
+     * @param channel  FileChannel the channel
+     * @param size     int the number of bytes
+     * @param position long where to read from
+     * @return ByteBuffer the bytes, ready to read
+     * @throws IOException If the bytes cannot be read.
+     */
+    private static ByteBuffer readFully(FileChannel channel, int size, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        readFully(channel, buffer, position);
+        return (ByteBuffer) buffer.flip();
+    }
+
+    /**
+     * Fills the buffer from a channel at the given position.
+     *
+     * @param channel  FileChannel the channel
+     * @param buffer   ByteBuffer the buffer to fill up to its limit
+     * @param position long where to read from
+     * @throws IOException If the bytes cannot be read.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) throw new EOFException("Parse cache ended early");
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the whole buffer to a channel at the given position.
+     *
+     * @param channel  FileChannel the channel
+     * @param buffer   ByteBuffer the bytes to write
+     * @param position long where to write to
+     * @throws IOException If the bytes cannot be written.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+}
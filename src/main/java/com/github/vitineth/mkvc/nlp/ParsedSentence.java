@@ -0,0 +1,40 @@
+package com.github.vitineth.mkvc.nlp;
+
+import com.github.vitineth.mkvc.word.WordType;
+
+/**
+ * The result of tagging a single sentence: each tagged word alongside its {@link WordType}, in sentence order.
+ */
+public class ParsedSentence {
+
+    /**
+     * The tagged words of the sentence
+     */
+    private final String[] words;
+    /**
+     * The word type of each tagged word
+     */
+    private final WordType[] types;
+
+    public ParsedSentence(String[] words, WordType[] types) {
+        this.words = words;
+        this.types = types;
+    }
+
+    public String[] getWords() {
+        return words;
+    }
+
+    public WordType[] getTypes() {
+        return types;
+    }
+
+    /**
+     * Returns the number of tagged words in the sentence.
+     *
+     * @return int the number of words
+     */
+    public int size() {
+        return words.length;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.vitineth.mkvc.nlp;
+
+/**
+ * The ways that {@link NlpService} can find the word types of a sentence.
+ */
+public enum TaggingMode {
+    /**
+     * Runs the full chunking parser and reads the tags from the leaves of the parse tree
+     */
+    PARSER,
+    /**
+     * Runs only the maximum entropy part of speech tagger, which is much cheaper than a full parse
+     */
+    POS_TAGGER;
+
+    /**
+     * Returns the mode with the given name, ignoring case and accepting 'pos' for {@link #POS_TAGGER}.
+     *
+     * @param name String the name of the mode
+     * @return TaggingMode the mode or null if the name is not recognised
+     */
+    public static TaggingMode fromName(String name) {
+        if (name.equalsIgnoreCase("parser")) return PARSER;
+        if (name.equalsIgnoreCase("pos") || name.equalsIgnoreCase("pos_tagger")) return POS_TAGGER;
+        return null;
+    }
+}
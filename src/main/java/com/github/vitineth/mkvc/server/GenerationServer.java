@@ -0,0 +1,590 @@
+package com.github.vitineth.mkvc.server;
+
+import com.github.vitineth.mkvc.chain.BatchGenerator;
+import com.github.vitineth.mkvc.chain.ChainGenerator;
+import com.github.vitineth.mkvc.chain.OnlineGenerator;
+import com.github.vitineth.mkvc.chain.StructuredGenerator;
+import com.github.vitineth.mkvc.model.MarkovModel;
+import com.github.vitineth.mkvc.model.OnlineModel;
+import com.github.vitineth.mkvc.model.TypedOptionCache;
+import com.github.vitineth.mkvc.model.TypedSampler;
+import com.github.vitineth.mkvc.util.metrics.LatencyHistogram;
+import com.github.vitineth.mkvc.util.metrics.Metrics;
+import com.github.vitineth.mkvc.util.output.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long running HTTP server that holds one or more trained models in memory and generates chains from them on
+ * request, so that nothing is retrained or reloaded between requests. The server only listens on the loopback address.
+ * <br><br>
+ * <code>GET /generate</code> generates chains and returns them as plain text, one per line. It takes the query
+ * parameters:
+ * <ul>
+ * <li><code>model</code> the name of the model to use, defaulting to the first model given</li>
+ * <li><code>count</code> the number of chains to generate, defaulting to 10</li>
+ * <li><code>length</code> the maximum number of words in a regular chain, defaulting to 100</li>
+ * <li><code>seed</code> the seed to generate with, defaulting to a new random seed which is returned in the
+ * <code>X-Seed</code> header</li>
+ * <li><code>structured</code> whether to generate chains that follow the sentence structures of the model</li>
+ * <li><code>sentences</code> the number of sentences in a structured chain, defaulting to 3</li>
+ * </ul>
+ * A request can ask for at most 10000 chains of at most 10000 words or 100 sentences each, and at most 1000000 words
+ * or 10000 sentences in total. Chains are streamed to the client as they are generated rather than held until the
+ * whole reply is ready.
+ * <br><br>
+ * <code>GET /models</code> lists the names of the loaded models, one per line.
+ * <br><br>
+ * If the server is started with online learning then every model is turned into an {@link OnlineModel} and
+ * <code>POST /learn?model=name</code> adds the text in the request body to the model while it keeps serving. Online
+ * models cannot generate structured chains.
+ * <br><br>
+ * Requests are handled on a fixed pool of threads that share the models without any locking. Trained models are never
+ * modified and online models are only read through immutable snapshots, so generation never waits on learning. A request
+ * with a seed to a trained model always gives the same chains as the command line given the same model and seed.
+ * <br><br>
+ * Every generate request is recorded to the server's {@link Metrics}: the chains generated, the time taken by the whole
+ * request in the <code>server.generate</code> histogram and the time taken by each chain in the
+ * <code>generate.regular</code>, <code>generate.structured</code> or <code>generate.online</code> histogram.
+ */
+public class GenerationServer implements Closeable {
+
+    /**
+     * The number of chains generated if no count is given
+     */
+    private static final int DEFAULT_COUNT = 10;
+    /**
+     * The maximum number of words in a regular chain if no length is given
+     */
+    private static final int DEFAULT_LENGTH = 100;
+    /**
+     * The number of sentences in a structured chain if none is given
+     */
+    private static final int DEFAULT_SENTENCES = 3;
+    /**
+     * The largest number of chains that a single request can ask for
+     */
+    private static final int MAXIMUM_COUNT = 10000;
+    /**
+     * The largest length of a regular chain that a single request can ask for
+     */
+    private static final int MAXIMUM_LENGTH = 10000;
+    /**
+     * The largest number of sentences in a structured chain that a single request can ask for
+     */
+    private static final int MAXIMUM_SENTENCES = 100;
+    /**
+     * The largest number of words, the count times the length, that a single request can ask for
+     */
+    private static final long MAXIMUM_WORDS = 1000000;
+    /**
+     * The largest number of sentences, the count times the sentences per chain, that a single request can ask for
+     */
+    private static final long MAXIMUM_TOTAL_SENTENCES = 10000;
+    /**
+     * The largest request body that will be learned from, in bytes
+     */
+    private static final int MAXIMUM_BODY = 1 << 20;
+
+    /**
+     * The generators of each model by name, in the order they were given
+     */
+    private final Map<String, Generators> models;
+    /**
+     * The name of the model used when a request does not give one
+     */
+    private final String defaultModel;
+    /**
+     * The underlying HTTP server
+     */
+    private final HttpServer server;
+    /**
+     * The threads that requests are handled on
+     */
+    private final ExecutorService executor;
+    /**
+     * The metrics that requests are recorded to
+     */
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * The generators built for a single model.
+     */
+    private static class Generators {
+        /**
+         * The generator of regular chains
+         */
+        private final ChainGenerator chain;
+        /**
+         * The generator of structured chains or null if the model has no sentence structure data
+         */
+        private final StructuredGenerator structured;
+        /**
+         * The model being learned into or null if the model is fixed
+         */
+        private final OnlineModel online;
+        /**
+         * The generator of chains from the online model or null if the model is fixed
+         */
+        private final OnlineGenerator onlineGenerator;
+
+        private Generators(MarkovModel model, int cacheSize) {
+            this.chain = new ChainGenerator(model);
+            this.structured = model.getSyntax() == null ? null : new StructuredGenerator(model, cacheSize);
+            this.online = null;
+            this.onlineGenerator = null;
+        }
+
+        private Generators(OnlineModel online) {
+            this.chain = null;
+            this.structured = null;
+            this.online = online;
+            this.onlineGenerator = new OnlineGenerator(online);
+        }
+    }
+
+    /**
+     * Thrown while reading a request that cannot be answered, carrying the HTTP status to reply with.
+     */
+    private static class RequestException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The HTTP status code of the reply
+         */
+        private final int status;
+
+        private RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public GenerationServer(Map<String, MarkovModel> models, int port, int threads) throws IOException {
+        this(models, port, threads, false);
+    }
+
+    public GenerationServer(Map<String, MarkovModel> models, int port, int threads, boolean online) throws IOException {
+        this(models, port, threads, online, 0);
+    }
+
+    /**
+     * Creates a server for the given models and binds it to the given port on the loopback address. The server does
+     * not accept requests until {@link #start()} is called.
+     *
+     * @param models    Map[String, MarkovModel] the models to serve by name, the first being the default
+     * @param port      int the port to listen on, or 0 to pick a free one
+     * @param threads   int the number of threads to handle requests on
+     * @param online    boolean whether the models should keep learning from text posted to the server
+     * @param cacheSize int the number of states of each model whose structured sampling tables are cached, or 0 to
+     *                  build them for every state up front
+     * @throws IOException If the server could not be bound to the port.
+     */
+    public GenerationServer(Map<String, MarkovModel> models, int port, int threads, boolean online, int cacheSize) throws IOException {
+        if (models.isEmpty()) throw new IllegalArgumentException("At least one model must be served");
+
+        this.models = new LinkedHashMap<>();
+        for (Map.Entry<String, MarkovModel> entry : models.entrySet()) {
+            MarkovModel model = entry.getValue();
+            this.models.put(entry.getKey(), online ? new Generators(OnlineModel.from(model)) : new Generators(model, cacheSize));
+        }
+        watchCaches(metrics);
+        this.defaultModel = models.keySet().iterator().next();
+
+        AtomicInteger created = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "generation-server-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), factory);
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/generate", exchange -> handle(exchange, "GET", this::generate));
+        this.server.createContext("/models", exchange -> handle(exchange, "GET", this::listModels));
+        this.server.createContext("/learn", exchange -> handle(exchange, "POST", this::learn));
+    }
+
+    /**
+     * Starts accepting requests in the background.
+     */
+    public void start() {
+        server.start();
+        Logger.info(getClass().getSimpleName(), "Serving " + models.keySet() + " on http://" + server.getAddress().getHostString() + ":" + getPort());
+    }
+
+    /**
+     * Sets the metrics that requests are recorded to.
+     *
+     * @param metrics Metrics the metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        watchCaches(metrics);
+    }
+
+    /**
+     * Reports the statistics of the structured sampling cache of each model to the given metrics as
+     * <code>typed.[model]</code>.
+     *
+     * @param metrics Metrics the metrics
+     */
+    private void watchCaches(Metrics metrics) {
+        for (Map.Entry<String, Generators> entry : models.entrySet()) {
+            StructuredGenerator structured = entry.getValue().structured;
+            TypedSampler sampler = structured == null ? null : structured.getTypedSampler();
+            if (sampler instanceof TypedOptionCache) metrics.addCache("typed." + entry.getKey(), ((TypedOptionCache) sampler).getCache());
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return int the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waiting at most a second for those in progress to finish.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A handler for one endpoint which writes its reply to the given writer.
+     */
+    private interface Endpoint {
+        void handle(HttpExchange exchange, Map<String, String> parameters, PrintWriter out) throws RequestException, IOException;
+    }
+
+    /**
+     * Runs an endpoint for a request, replying with plain text and turning a {@link RequestException} into an error
+     * status. The reply is streamed with a status of 200 as soon as the endpoint has written more than fits in the
+     * writer's buffer, so endpoints check their parameters before writing anything. A failure after that point can no
+     * longer change the status and only cuts the reply short.
+     *
+     * @param exchange HttpExchange the request
+     * @param method   String the only request method the endpoint accepts
+     * @param endpoint Endpoint the endpoint to run
+     * @throws IOException If there is an error reading the request or writing the reply.
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+        ReplyStream body = new ReplyStream(exchange);
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                throw new RequestException(405, "Only " + method + " requests are supported");
+            }
+
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)));
+            endpoint.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()), out);
+            out.flush();
+            if (!body.isStarted()) reply(exchange, 200, new byte[0]);
+        } catch (RequestException e) {
+            if (body.isStarted()) {
+                Logger.error(getClass().getSimpleName(), "Failed to finish " + exchange.getRequestURI() + ": " + e.getMessage());
+            } else {
+                reply(exchange, e.status, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException e) {
+            Logger.error(getClass().getSimpleName(), "Failed to handle " + exchange.getRequestURI(), e);
+            if (!body.isStarted()) reply(exchange, 500, "Internal error\n".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The body of a successful reply, which only sends the response headers once the first byte is written so that
+     * an error found before then can still be replied with its own status.
+     */
+    private static class ReplyStream extends OutputStream {
+        /**
+         * The request being replied to
+         */
+        private final HttpExchange exchange;
+        /**
+         * The body of the reply once the headers have been sent, or null before then
+         */
+        private OutputStream body;
+
+        private ReplyStream(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) start().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (body != null) body.flush();
+        }
+
+        /**
+         * Returns if the headers have been sent, after which the status can no longer change.
+         *
+         * @return boolean if the reply has started
+         */
+        private boolean isStarted() {
+            return body != null;
+        }
+
+        /**
+         * Sends the headers of a streamed reply if they have not been sent yet.
+         *
+         * @return OutputStream the body of the reply
+         * @throws IOException If there is an error writing the headers.
+         */
+        private OutputStream start() throws IOException {
+            if (body == null) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Sends a plain text reply.
+     *
+     * @param exchange HttpExchange the request
+     * @param status   int the HTTP status code
+     * @param body     byte[] the UTF-8 body
+     * @throws IOException If there is an error writing the reply.
+     */
+    private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Generates chains as described in the class documentation.
+     *
+     * @param exchange   HttpExchange the request
+     * @param parameters Map[String, String] the query parameters
+     * @param out        PrintWriter the reply
+     * @throws RequestException If the parameters are invalid or the model cannot generate what was asked for.
+     */
+    private void generate(HttpExchange exchange, Map<String, String> parameters, PrintWriter out) throws RequestException {
+        String name = parameters.getOrDefault("model", defaultModel);
+        Generators generators = getGenerators(name);
+
+        int count = getInteger(parameters, "count", DEFAULT_COUNT, MAXIMUM_COUNT);
+        long seed = parameters.containsKey("seed") ? getLong(parameters, "seed") : new SplittableRandom().nextLong();
+        exchange.getResponseHeaders().set("X-Seed", Long.toString(seed));
+
+        //Look for a seed state once up front, on a random source of its own so the chains are unchanged, as a failure
+        //can no longer change the status once chains are being streamed.
+        if (generators.chain != null && generators.chain.getSeed(new SplittableRandom(seed)) == -1) {
+            throw new RequestException(400, "The model " + name + " has no state to start a chain from");
+        }
+
+        Metrics metrics = this.metrics;
+        long start = System.nanoTime();
+        if (generators.online != null) {
+            if (Boolean.parseBoolean(parameters.get("structured"))) {
+                throw new RequestException(400, "Online models cannot generate structured chains");
+            }
+            int length = getInteger(parameters, "length", DEFAULT_LENGTH, MAXIMUM_LENGTH);
+            checkBudget("words", (long) count * length, MAXIMUM_WORDS);
+            SplittableRandom random = new SplittableRandom(seed);
+            LatencyHistogram latency = metrics.getHistogram("generate.online");
+            for (int i = 0; i < count; i++) {
+                long chainStart = System.nanoTime();
+                String chain = generators.onlineGenerator.generate(random, length);
+                latency.recordSince(chainStart);
+                out.println(chain);
+            }
+        } else if (Boolean.parseBoolean(parameters.get("structured"))) {
+            if (generators.structured == null) throw new RequestException(400, "The model " + name + " has no sentence data");
+            int sentences = getInteger(parameters, "sentences", DEFAULT_SENTENCES, MAXIMUM_SENTENCES);
+            checkBudget("sentences", (long) count * sentences, MAXIMUM_TOTAL_SENTENCES);
+            SplittableRandom random = new SplittableRandom(seed);
+            LatencyHistogram latency = metrics.getHistogram("generate.structured");
+            for (int i = 0; i < count; i++) {
+                long chainStart = System.nanoTime();
+                String chain = generators.structured.generate(random, sentences);
+                latency.recordSince(chainStart);
+                out.println(chain);
+            }
+        } else {
+            int length = getInteger(parameters, "length", DEFAULT_LENGTH, MAXIMUM_LENGTH);
+            checkBudget("words", (long) count * length, MAXIMUM_WORDS);
+            BatchGenerator generator = new BatchGenerator(generators.chain, 1);
+            generator.setLatencyHistogram(metrics.getHistogram("generate.regular"));
+            generator.generate(count, length, seed, (index, chain) -> out.println(chain));
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.recordChains(count, nanos);
+        metrics.getHistogram("server.generate").record(nanos);
+    }
+
+    /**
+     * Learns the text in the request body into an online model and replies with the new size of the model.
+     *
+     * @param exchange   HttpExchange the request
+     * @param parameters Map[String, String] the query parameters
+     * @param out        PrintWriter the reply
+     * @throws RequestException If the model is not online or the body is too large.
+     * @throws IOException      If there is an error reading the body.
+     */
+    private void learn(HttpExchange exchange, Map<String, String> parameters, PrintWriter out) throws RequestException, IOException {
+        String name = parameters.getOrDefault("model", defaultModel);
+        Generators generators = getGenerators(name);
+        if (generators.online == null) throw new RequestException(400, "The model " + name + " is not learning online");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (body.size() + read > MAXIMUM_BODY) throw new RequestException(413, "The body must be at most " + MAXIMUM_BODY + " bytes");
+                body.write(buffer, 0, read);
+            }
+        }
+
+        generators.online.learn(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        out.println("words=" + generators.online.getVocabularySize() + " states=" + generators.online.getStateCount());
+    }
+
+    /**
+     * Returns the generators of the named model.
+     *
+     * @param name String the name of the model
+     * @return Generators the generators
+     * @throws RequestException If there is no model with the name.
+     */
+    private Generators getGenerators(String name) throws RequestException {
+        Generators generators = models.get(name);
+        if (generators == null) throw new RequestException(404, "Unknown model " + name);
+        return generators;
+    }
+
+    /**
+     * Lists the names of the loaded models, one per line.
+     *
+     * @param exchange   HttpExchange the request
+     * @param parameters Map[String, String] the query parameters, which are ignored
+     * @param out        PrintWriter the reply
+     */
+    private void listModels(HttpExchange exchange, Map<String, String> parameters, PrintWriter out) {
+        for (String name : models.keySet()) out.println(name);
+    }
+
+    /**
+     * Reads a non-negative integer parameter.
+     *
+     * @param parameters   Map[String, String] the query parameters
+     * @param key          String the name of the parameter
+     * @param defaultValue int the value if the parameter is not given
+     * @param maximum      int the largest value allowed
+     * @return int the value
+     * @throws RequestException If the parameter is not an integer or is out of range.
+     */
+    private static int getInteger(Map<String, String> parameters, String key, int defaultValue, int maximum) throws RequestException {
+        String value = parameters.get(key);
+        if (value == null) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0 || parsed > maximum) {
+                throw new RequestException(400, "The " + key + " must be between 0 and " + maximum);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "The " + key + " must be an integer");
+        }
+    }
+
+    /**
+     * Checks that a request does not ask for more in total than a single request is allowed.
+     *
+     * @param what    String what is being counted
+     * @param total   long the total asked for
+     * @param maximum long the largest total allowed
+     * @throws RequestException If the total is too large.
+     */
+    private static void checkBudget(String what, long total, long maximum) throws RequestException {
+        if (total > maximum) throw new RequestException(400, "A request can ask for at most " + maximum + " " + what + " but asked for " + total);
+    }
+
+    /**
+     * Reads a long parameter.
+     *
+     * @param parameters Map[String, String] the query parameters
+     * @param key        String the name of the parameter
+     * @return long the value
+     * @throws RequestException If the parameter is not a long.
+     */
+    private static long getLong(Map<String, String> parameters, String key) throws RequestException {
+        try {
+            return Long.parseLong(parameters.get(key));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "The " + key + " must be a long");
+        }
+    }
+
+    /**
+     * Splits a raw query string into its decoded parameters. Later values of a repeated parameter replace earlier ones.
+     *
+     * @param query String the raw query string, which may be null
+     * @return Map[String, String] the parameters
+     * @throws RequestException If the query is not validly encoded.
+     */
+    private static Map<String, String> parseQuery(String query) throws RequestException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty()) return parameters;
+        try {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) continue;
+                int split = pair.indexOf('=');
+                String key = URLDecoder.decode(split == -1 ? pair : pair.substring(0, split), "UTF-8");
+                String value = split == -1 ? "" : URLDecoder.decode(pair.substring(split + 1), "UTF-8");
+                parameters.put(key, value);
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new RequestException(400, "Invalid query string");
+        }
+        return parameters;
+    }
+}
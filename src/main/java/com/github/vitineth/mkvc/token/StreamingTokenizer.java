@@ -0,0 +1,122 @@
+package com.github.vitineth.mkvc.token;
+
+import com.github.vitineth.mkvc.model.HashVocabulary;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits text read from a {@link Reader} into tokens without ever holding the whole input in memory. Characters are
+ * read into a fixed size buffer which is cut at its last whitespace character, so no token is ever split across two
+ * chunks, and each chunk is split in place by the {@link Tokenizer}. Tokens are lower cased and handed to a
+ * {@link TokenSink} as soon as they are found, or interned and handed to an {@link Tokenizer.IdSink} as ids. Empty
+ * tokens are never emitted.
+ */
+public class StreamingTokenizer {
+
+    /**
+     * The number of characters read per chunk if no size is given
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The source of the text
+     */
+    private final Reader reader;
+    /**
+     * The chunk buffer, which only grows if a single token is longer than it
+     */
+    private char[] buffer;
+
+    /**
+     * A callback which receives each token in order.
+     */
+    public interface TokenSink {
+        void accept(String token);
+    }
+
+    public StreamingTokenizer(Reader reader) {
+        this(reader, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a tokenizer which reads the given number of characters at a time.
+     *
+     * @param reader    Reader the source of the text, which is not closed by the tokenizer
+     * @param chunkSize int the number of characters to read per chunk
+     */
+    public StreamingTokenizer(Reader reader, int chunkSize) {
+        this.reader = reader;
+        this.buffer = new char[Math.max(16, chunkSize)];
+    }
+
+    /**
+     * Reads the rest of the input, passing every token to the sink.
+     *
+     * @param sink TokenSink the callback to receive the tokens
+     * @throws IOException If there is an error reading from the reader.
+     */
+    public void tokenize(TokenSink sink) throws IOException {
+        read((offset, length) -> Tokenizer.tokenize(buffer, offset, length, sink));
+    }
+
+    /**
+     * Reads the rest of the input, interning every token into the vocabulary and passing its id to the sink. Tokens
+     * that are already in the vocabulary do not create any objects.
+     *
+     * @param vocabulary HashVocabulary the vocabulary to intern the tokens into
+     * @param sink       Tokenizer.IdSink the callback to receive the ids
+     * @throws IOException If there is an error reading from the reader.
+     */
+    public void tokenize(HashVocabulary vocabulary, Tokenizer.IdSink sink) throws IOException {
+        read((offset, length) -> Tokenizer.tokenize(buffer, offset, length, vocabulary, sink));
+    }
+
+    /**
+     * A callback which splits a range of the chunk buffer.
+     */
+    private interface ChunkSink {
+        void accept(int offset, int length);
+    }
+
+    /**
+     * Reads the rest of the input a chunk at a time, handing each chunk to the sink.
+     *
+     * @param sink ChunkSink the callback to split each chunk
+     * @throws IOException If there is an error reading from the reader.
+     */
+    private void read(ChunkSink sink) throws IOException {
+        int length = 0;
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length < buffer.length) continue;
+
+            //Only hand over the text up to and including the last whitespace so the token at the end is kept whole.
+            int cut = lastWhitespace(length) + 1;
+            if (cut == 0) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                continue;
+            }
+
+            sink.accept(0, cut);
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+        }
+        if (length > 0) sink.accept(0, length);
+    }
+
+    /**
+     * Returns the index of the last character in the buffer that separates tokens.
+     *
+     * @param length int the number of valid characters in the buffer
+     * @return int the index or -1 if there is no whitespace
+     */
+    private int lastWhitespace(int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (Tokenizer.isSeparator(buffer[i])) return i;
+        }
+        return -1;
+    }
+}
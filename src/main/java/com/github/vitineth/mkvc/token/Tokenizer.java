@@ -0,0 +1,158 @@
+package com.github.vitineth.mkvc.token;
+
+import com.github.vitineth.mkvc.model.HashVocabulary;
+
+/**
+ * A single pass tokenizer over a range of a <code>char[]</code>. It splits in the same places as the regular expression
+ * <code>\s+|(?=\p{Punct})|(?&lt;=\p{Punct})</code>: every run of whitespace separates tokens and every ASCII
+ * punctuation character is a token of its own. Tokens are lower cased and empty tokens are never produced.
+ * <br><br>
+ * Lower casing is done in place in the given array for tokens that are entirely ASCII, which lets
+ * {@link #tokenize(char[], int, int, HashVocabulary, IdSink)} intern them without creating any objects for tokens that
+ * have been seen before. Tokens with any other characters fall back to {@link String#toLowerCase()} so that they are
+ * lower cased exactly as before. Control characters are treated as whitespace.
+ */
+public final class Tokenizer {
+
+    /**
+     * A callback which receives the id of each token in order.
+     */
+    public interface IdSink {
+        void accept(int id);
+    }
+
+    private Tokenizer() {
+    }
+
+    /**
+     * Splits the given range into tokens, passing each one to the sink as a string.
+     *
+     * @param chars  char[] the text, which is lower cased in place
+     * @param offset int the start of the range
+     * @param length int the number of characters in the range
+     * @param sink   StreamingTokenizer.TokenSink the callback to receive the tokens
+     */
+    public static void tokenize(char[] chars, int offset, int length, StreamingTokenizer.TokenSink sink) {
+        int end = offset + length;
+        long range;
+        int position = offset;
+        while ((range = next(chars, position, end)) != -1) {
+            int start = (int) (range >>> 32);
+            position = (int) range;
+            boolean ascii = lowerCaseAscii(chars, start, position);
+            String token = new String(chars, start, position - start);
+            sink.accept(ascii ? token : token.toLowerCase());
+        }
+    }
+
+    /**
+     * Splits the given range into tokens, interning each one into the vocabulary and passing its id to the sink.
+     *
+     * @param chars      char[] the text, which is lower cased in place
+     * @param offset     int the start of the range
+     * @param length     int the number of characters in the range
+     * @param vocabulary HashVocabulary the vocabulary to intern the tokens into
+     * @param sink       IdSink the callback to receive the ids
+     */
+    public static void tokenize(char[] chars, int offset, int length, HashVocabulary vocabulary, IdSink sink) {
+        int end = offset + length;
+        long range;
+        int position = offset;
+        while ((range = next(chars, position, end)) != -1) {
+            int start = (int) (range >>> 32);
+            position = (int) range;
+            if (lowerCaseAscii(chars, start, position)) {
+                sink.accept(vocabulary.intern(chars, start, position - start));
+            } else {
+                sink.accept(vocabulary.intern(new String(chars, start, position - start).toLowerCase()));
+            }
+        }
+    }
+
+    /**
+     * Finds the next token at or after the given position.
+     *
+     * @param chars    char[] the text
+     * @param position int where to start looking
+     * @param end      int the end of the text
+     * @return long the start of the token in the upper 32 bits and its end in the lower 32 bits, or -1 if there are no
+     * more tokens
+     */
+    private static long next(char[] chars, int position, int end) {
+        while (position < end && isSeparator(chars[position])) position++;
+        if (position == end) return -1;
+
+        int start = position;
+        if (isPunctuation(chars[position])) {
+            position++;
+        } else {
+            while (position < end && !isSeparator(chars[position]) && !isPunctuation(chars[position])) position++;
+        }
+        return ((long) start << 32) | position;
+    }
+
+    /**
+     * Finds where the last few tokens before a position start by splitting backwards from it, in the same places that
+     * splitting forwards would.
+     *
+     * @param chars    char[] the text
+     * @param offset   int the start of the text, which is never scanned past
+     * @param position int the position to look back from
+     * @param count    int the number of tokens to find
+     * @return int the start of the earliest of the tokens, or <code>position</code> if there are none
+     */
+    public static int previousTokens(char[] chars, int offset, int position, int count) {
+        int start = position;
+        for (int found = 0; found < count; found++) {
+            int end = start;
+            while (end > offset && isSeparator(chars[end - 1])) end--;
+            if (end == offset) break;
+
+            start = end - 1;
+            if (!isPunctuation(chars[start])) {
+                while (start > offset && !isSeparator(chars[start - 1]) && !isPunctuation(chars[start - 1])) start--;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Returns if the character separates tokens, which is any whitespace or control character up to and including the
+     * space. Anything that cuts text into pieces to be tokenized separately must only cut on these, otherwise a token
+     * holding some other whitespace character would be split in two whenever a cut falls on it.
+     *
+     * @param c char the character
+     * @return boolean if it is a separator
+     */
+    public static boolean isSeparator(char c) {
+        return c <= ' ';
+    }
+
+    /**
+     * Lower cases the given range in place if every character in it is ASCII.
+     *
+     * @param chars char[] the text
+     * @param start int the start of the range
+     * @param end   int the end of the range
+     * @return boolean true if the range was lower cased, or false if it holds other characters and was left alone
+     */
+    private static boolean lowerCaseAscii(char[] chars, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars[i] >= 0x80) return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') chars[i] += 'a' - 'A';
+        }
+        return true;
+    }
+
+    /**
+     * Returns if the character is in the <code>\p{Punct}</code> class, which is ASCII punctuation only.
+     *
+     * @param c char the character
+     * @return boolean if it is punctuation
+     */
+    private static boolean isPunctuation(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.vitineth.mkvc.util.collection;
+
+import java.util.Arrays;
+
+/**
+ * A list that can only grow, which any number of threads can read without locking while others append to it. Appends
+ * are serialised on the list itself. An element is always fully stored before the size that covers it is published, so
+ * a reader that has seen an index from {@link #size()} or from an {@link #add(Object)} on another thread can always read
+ * it.
+ *
+ * @param <T> the type of the elements
+ */
+public class AppendOnlyList<T> {
+
+    /**
+     * The backing array, replaced by a larger copy when it fills up
+     */
+    private volatile Object[] elements;
+    /**
+     * The number of elements that have been published
+     */
+    private volatile int size;
+
+    public AppendOnlyList() {
+        this(16);
+    }
+
+    /**
+     * Creates a list with room for the given number of elements before it needs to grow.
+     *
+     * @param capacity int the initial capacity
+     */
+    public AppendOnlyList(int capacity) {
+        this.elements = new Object[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends an element to the end of the list.
+     *
+     * @param element T the element
+     * @return int the index of the element
+     */
+    public synchronized int add(T element) {
+        Object[] current = elements;
+        int index = size;
+        if (index == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            current[index] = element;
+            elements = current;
+        } else {
+            current[index] = element;
+        }
+        size = index + 1;
+        return index;
+    }
+
+    /**
+     * Returns the element at the given index.
+     *
+     * @param index int the index, which must be below a size that has been published
+     * @return T the element
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index " + index + " is not below the size " + size);
+        return (T) elements[index];
+    }
+
+    /**
+     * Returns the number of elements that have been published.
+     *
+     * @return int the size
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.vitineth.mkvc.util.collection;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive <code>int</code> values, used in place of <code>List&lt;Integer&gt;</code> wherever
+ * boxing every element would be too expensive.
+ */
+public class IntArrayList {
+
+    /**
+     * The backing array, which may be longer than the list
+     */
+    private int[] data;
+    /**
+     * The number of values in the list
+     */
+    private int size;
+
+    public IntArrayList() {
+        this(16);
+    }
+
+    /**
+     * Creates a list with room for the given number of values before it needs to grow.
+     *
+     * @param capacity int the initial capacity
+     */
+    public IntArrayList(int capacity) {
+        data = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends a value to the end of the list.
+     *
+     * @param value int the value
+     */
+    public void add(int value) {
+        if (size == data.length) data = Arrays.copyOf(data, data.length * 2);
+        data[size++] = value;
+    }
+
+    /**
+     * Returns the value at the given index.
+     *
+     * @param index int the index
+     * @return int the value
+     */
+    public int get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return data[index];
+    }
+
+    /**
+     * Replaces the value at the given index.
+     *
+     * @param index int the index
+     * @param value int the new value
+     */
+    public void set(int index, int value) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        data[index] = value;
+    }
+
+    /**
+     * Returns the number of values in the list.
+     *
+     * @return int the size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of the values in the list trimmed to its size.
+     *
+     * @return int[] the values
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.vitineth.mkvc.util.collection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * A bounded cache keyed by int which evicts the least recently used entry once it is full. The cache is split into
+ * segments, each an access ordered {@link LinkedHashMap} behind its own lock, so threads working on different keys
+ * rarely wait for each other. Eviction is least recently used within a segment, which is close to least recently used
+ * overall when keys are spread evenly. Hits, misses and evictions are counted for monitoring.
+ *
+ * @param <V> the type of the values
+ */
+public class IntLruCache<V> {
+
+    /**
+     * The largest number of segments, a power of two
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The segments that keys are spread over
+     */
+    private final Segment<V>[] segments;
+    /**
+     * The number of segments less one, used to pick the segment of a key
+     */
+    private final int mask;
+    /**
+     * The largest number of entries held across every segment
+     */
+    private final int capacity;
+    /**
+     * The number of lookups that found a value
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * The number of lookups that had to load a value
+     */
+    private final LongAdder misses = new LongAdder();
+    /**
+     * The number of entries removed to make room
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache holding at most the given number of entries. Capacities below {@link #SEGMENTS} use fewer
+     * segments so that every segment holds at least one entry without the total going over the capacity.
+     *
+     * @param capacity int the capacity, at least 1
+     */
+    @SuppressWarnings("unchecked")
+    public IntLruCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1 but was " + capacity);
+        this.capacity = capacity;
+        int count = Integer.highestOneBit(Math.min(capacity, SEGMENTS));
+        this.mask = count - 1;
+        this.segments = (Segment<V>[]) new Segment<?>[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(capacity / count + (i < capacity % count ? 1 : 0), evictions);
+        }
+    }
+
+    /**
+     * Returns the value for the key, loading and caching it if it is not held. The loader runs outside of any lock, so
+     * two threads missing on the same key at once may both load it and the first to finish is kept.
+     *
+     * @param key    int the key
+     * @param loader IntFunction[V] creates the value for a key that is not held
+     * @return V the value
+     */
+    public V get(int key, IntFunction<V> loader) {
+        Segment<V> segment = segments[spread(key) & mask];
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+
+        misses.increment();
+        V loaded = loader.apply(key);
+        synchronized (segment) {
+            value = segment.putIfAbsent(key, loaded);
+        }
+        return value != null ? value : loaded;
+    }
+
+    /**
+     * Removes every entry. The statistics are kept.
+     */
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries currently held.
+     *
+     * @return int the size
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a value.
+     *
+     * @return double the hit rate between 0 and 1, or 0 if nothing has been looked up
+     */
+    public double getHitRate() {
+        long hit = getHits();
+        long total = hit + getMisses();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * Spreads the bits of a key so that sequential keys land in different segments.
+     *
+     * @param key int the key
+     * @return int the spread key
+     */
+    private static int spread(int key) {
+        key *= 0x9e3779b9;
+        return key ^ (key >>> 16);
+    }
+
+    /**
+     * One segment of the cache, evicting its eldest entry once it holds more than its share of the capacity.
+     */
+    private static class Segment<T> extends LinkedHashMap<Integer, T> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The largest number of entries this segment holds
+         */
+        private final int limit;
+        /**
+         * The eviction count of the cache that owns this segment
+         */
+        private final LongAdder evictions;
+
+        Segment(int limit, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, T> eldest) {
+            if (size() <= limit) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.vitineth.mkvc.util.collection;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive <code>long</code> keys to primitive <code>int</code> values. This avoids
+ * boxing every key and value into its own object which matters when counting millions of transitions. Keys must be
+ * non-negative as <code>-1</code> is used to mark an empty slot.
+ */
+public class LongIntHashMap {
+
+    /**
+     * The key used to mark a slot as empty
+     */
+    private static final long EMPTY = -1L;
+    /**
+     * The fraction of slots which can be used before the table is grown
+     */
+    private static final double LOAD_FACTOR = 0.6d;
+
+    /**
+     * The keys of each slot, or {@link #EMPTY} if the slot is unused
+     */
+    private long[] keys;
+    /**
+     * The value of each slot
+     */
+    private int[] values;
+    /**
+     * The number of keys currently stored
+     */
+    private int size;
+    /**
+     * The number of keys that can be stored before the table needs to be grown
+     */
+    private int threshold;
+
+    /**
+     * A callback used to visit each entry of the map through {@link #forEach(EntryConsumer)}.
+     */
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    /**
+     * Creates a map with a small default capacity.
+     */
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a map that can hold roughly the given number of entries before it needs to grow.
+     *
+     * @param expected int the number of entries expected
+     */
+    public LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Combines two non-negative integers into a single key with <code>high</code> in the upper 32 bits.
+     *
+     * @param high int the upper half of the key
+     * @param low  int the lower half of the key
+     * @return long the combined key
+     */
+    public static long key(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the upper half of a key produced by {@link #key(int, int)}.
+     *
+     * @param key long the combined key
+     * @return int the upper half
+     */
+    public static int high(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Returns the lower half of a key produced by {@link #key(int, int)}.
+     *
+     * @param key long the combined key
+     * @return int the lower half
+     */
+    public static int low(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Returns the value stored against the key or the default value if there is no entry.
+     *
+     * @param key          long the key to look up
+     * @param defaultValue int the value to return if the key is not present
+     * @return int the stored value or the default
+     */
+    public int get(long key, int defaultValue) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? defaultValue : values[slot];
+    }
+
+    /**
+     * Returns if the map contains the given key.
+     *
+     * @param key long the key to look up
+     * @return boolean if there is an entry for the key
+     */
+    public boolean containsKey(long key) {
+        return keys[find(key)] != EMPTY;
+    }
+
+    /**
+     * Stores the value against the key, replacing any existing value.
+     *
+     * @param key   long the key
+     * @param value int the value
+     */
+    public void put(long key, int value) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            insert(slot, key, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Adds the given delta to the value stored against the key, treating a missing key as 0.
+     *
+     * @param key   long the key
+     * @param delta int the amount to add
+     * @return int the new value
+     */
+    public int addTo(long key, int delta) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            insert(slot, key, delta);
+            return delta;
+        }
+        return values[slot] += delta;
+    }
+
+    /**
+     * Returns the number of entries in the map.
+     *
+     * @return int the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls the consumer once for each entry in the map in no particular order.
+     *
+     * @param consumer EntryConsumer the callback
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Returns all keys currently stored in the map sorted in ascending order. As keys built by {@link #key(int, int)}
+     * sort by their upper half first, this groups entries by their upper half.
+     *
+     * @return long[] the sorted keys
+     */
+    public long[] sortedKeys() {
+        long[] out = new long[size];
+        int index = 0;
+        for (long key : keys) {
+            if (key != EMPTY) out[index++] = key;
+        }
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * Returns the slot holding the key or the empty slot it should be inserted into.
+     *
+     * @param key long the key
+     * @return int the slot index
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Places a new entry in the given empty slot, growing the table if it has become too full.
+     *
+     * @param slot  int the empty slot
+     * @param key   long the key
+     * @param value int the value
+     */
+    private void insert(int slot, long key, int value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > threshold) rehash(keys.length << 1);
+    }
+
+    /**
+     * Moves every entry into a new table of the given capacity.
+     *
+     * @param capacity int the new capacity, must be a power of two
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Allocates empty key and value arrays of the given capacity.
+     *
+     * @param capacity int the capacity, must be a power of two
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Spreads the bits of the key so that sequential keys do not cluster in the table.
+     *
+     * @param key long the key
+     * @return int the mixed hash
+     */
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
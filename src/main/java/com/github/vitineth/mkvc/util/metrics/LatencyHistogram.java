@@ -0,0 +1,176 @@
+package com.github.vitineth.mkvc.util.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds laid out in the same way as an HdrHistogram. Values below 128 get
+ * a bucket each and every power of two above that is split into 64 linear buckets, so any value is reported to within
+ * one part in 64 using a few thousand counters no matter how large the range of values is. Recording is lock free and
+ * can be done from any number of threads.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of precision kept for each value
+     */
+    private static final int PRECISION_BITS = 7;
+    /**
+     * The number of buckets below the first power of two that is split up, which hold one value each
+     */
+    private static final int LINEAR_BUCKETS = 1 << PRECISION_BITS;
+    /**
+     * The number of buckets each power of two is split into
+     */
+    private static final int SUB_BUCKETS = LINEAR_BUCKETS >> 1;
+    /**
+     * The total number of buckets, enough for any positive long
+     */
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - PRECISION_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values recorded in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * The number of values recorded
+     */
+    private final LongAdder count = new LongAdder();
+    /**
+     * The sum of every value recorded
+     */
+    private final LongAdder sum = new LongAdder();
+    /**
+     * The smallest value recorded
+     */
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    /**
+     * The largest value recorded
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single latency. Negative values are recorded as 0.
+     *
+     * @param nanos long the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     *
+     * @param startNanos long the time the measured work started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the smallest latency recorded.
+     *
+     * @return long the minimum in nanoseconds or 0 if nothing has been recorded
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * Returns the largest latency recorded.
+     *
+     * @return long the maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of every latency recorded.
+     *
+     * @return double the mean in nanoseconds or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long recorded = getCount();
+        return recorded == 0 ? 0 : (double) sum.sum() / recorded;
+    }
+
+    /**
+     * Returns the latency that the given percentage of recorded values are at or below. The value is the top of the
+     * bucket it falls into, capped at the largest value recorded, so it never under reports.
+     *
+     * @param percentile double the percentile between 0 and 100
+     * @return long the latency in nanoseconds or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) recorded += counts.get(i);
+        if (recorded == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(highestInBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the latency at the given percentile converted to the given unit as a fraction.
+     *
+     * @param percentile double the percentile between 0 and 100
+     * @param unit       TimeUnit the unit to report in
+     * @return double the latency in the given unit
+     */
+    public double getValueAtPercentile(double percentile, TimeUnit unit) {
+        return (double) getValueAtPercentile(percentile) / unit.toNanos(1);
+    }
+
+    /**
+     * Clears every recorded value. Values recorded while this runs may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * Returns the bucket a value is counted in.
+     *
+     * @param value long the value, at least 0
+     * @return int the bucket index
+     */
+    static int bucket(long value) {
+        if (value < LINEAR_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION_BITS - 1);
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the largest value that is counted in the given bucket.
+     *
+     * @param bucket int the bucket index
+     * @return long the largest value of the bucket
+     */
+    static long highestInBucket(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long lowest = (long) ((bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.vitineth.mkvc.util.metrics;
+
+import com.github.vitineth.mkvc.util.collection.IntLruCache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the measurements taken while training and generating so they can be queried directly or scraped over JMX
+ * through {@link #register(String)}, rather than read out of log lines. It records:
+ * <ul>
+ * <li>the time spent in each phase, fed by a {@link com.github.vitineth.mkvc.util.time.SegmentedTimerTool}</li>
+ * <li>tokens, counted transitions and generated chains along with their rates</li>
+ * <li>named {@link LatencyHistogram}s, such as the time taken to sample each chain</li>
+ * <li>the size in bytes of each model</li>
+ * <li>the hits, misses and evictions of named {@link IntLruCache}s</li>
+ * <li>the queue depth, throughput and busy time of each {@link StageStats pipeline stage}</li>
+ * </ul>
+ * Every method is thread safe.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * The domain of the object names that metrics are registered under
+     */
+    public static final String JMX_DOMAIN = "com.github.vitineth.mkvc";
+
+    /**
+     * The nanoseconds spent in each phase, in the order they were first recorded
+     */
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    /**
+     * The tokens read while training
+     */
+    private final Throughput tokens = new Throughput();
+    /**
+     * The transitions counted while training
+     */
+    private final Throughput transitions = new Throughput();
+    /**
+     * The chains generated
+     */
+    private final Throughput chains = new Throughput();
+    /**
+     * The latency histograms by name
+     */
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    /**
+     * The size in bytes of each model by name
+     */
+    private final ConcurrentMap<String, Long> modelSizes = new ConcurrentHashMap<>();
+    /**
+     * The caches being watched by name
+     */
+    private final ConcurrentMap<String, IntLruCache<?>> caches = new ConcurrentHashMap<>();
+    /**
+     * The pipeline stages being watched by name
+     */
+    private final ConcurrentMap<String, StageStats> stages = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the given time to a phase. Phases that run more than once add up.
+     *
+     * @param phase String the name of the phase
+     * @param nanos long the time spent in nanoseconds
+     */
+    public void recordPhase(String phase, long nanos) {
+        synchronized (phases) {
+            phases.merge(phase, nanos, Long::sum);
+        }
+    }
+
+    /**
+     * Records tokens that were read in the given time.
+     *
+     * @param count long the number of tokens
+     * @param nanos long the time taken in nanoseconds
+     */
+    public void recordTokens(long count, long nanos) {
+        tokens.record(count, nanos);
+    }
+
+    /**
+     * Records transitions that were counted in the given time.
+     *
+     * @param count long the number of transitions
+     * @param nanos long the time taken in nanoseconds
+     */
+    public void recordTransitions(long count, long nanos) {
+        transitions.record(count, nanos);
+    }
+
+    /**
+     * Records chains that were generated in the given time.
+     *
+     * @param count long the number of chains
+     * @param nanos long the time taken in nanoseconds
+     */
+    public void recordChains(long count, long nanos) {
+        chains.record(count, nanos);
+    }
+
+    /**
+     * Sets the size of a model, replacing any earlier size for the same name.
+     *
+     * @param model String the name of the model
+     * @param bytes long the size in bytes
+     */
+    public void setModelSize(String model, long bytes) {
+        modelSizes.put(model, bytes);
+    }
+
+    /**
+     * Watches a cache so that its statistics are reported, replacing any earlier cache with the same name.
+     *
+     * @param name  String the name of the cache
+     * @param cache IntLruCache[?] the cache
+     */
+    public void addCache(String name, IntLruCache<?> cache) {
+        caches.put(name, cache);
+    }
+
+    /**
+     * Watches a pipeline stage so that its statistics are reported, replacing any earlier stage with the same name.
+     *
+     * @param stage StageStats the stage
+     */
+    public void addStage(StageStats stage) {
+        stages.put(stage.getName(), stage);
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if it does not exist yet.
+     *
+     * @param name String the name of the histogram
+     * @return LatencyHistogram the histogram
+     */
+    public LatencyHistogram getHistogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the time spent in each phase.
+     *
+     * @return Map[String, Long] a copy of the nanoseconds spent in each phase, in the order they were first recorded
+     */
+    public Map<String, Long> getPhaseNanos() {
+        synchronized (phases) {
+            return new LinkedHashMap<>(phases);
+        }
+    }
+
+    public Throughput getTokens() {
+        return tokens;
+    }
+
+    public Throughput getTransitions() {
+        return transitions;
+    }
+
+    public Throughput getChains() {
+        return chains;
+    }
+
+    /**
+     * Returns every histogram that has been created.
+     *
+     * @return Map[String, LatencyHistogram] the histograms by name
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMillis() {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> phase : getPhaseNanos().entrySet()) millis.put(phase.getKey(), phase.getValue() / 1e6);
+        return millis;
+    }
+
+    @Override
+    public long getTokenCount() {
+        return tokens.getCount();
+    }
+
+    @Override
+    public double getTokensPerSecond() {
+        return tokens.getPerSecond();
+    }
+
+    @Override
+    public long getTransitionCount() {
+        return transitions.getCount();
+    }
+
+    @Override
+    public double getTransitionsPerSecond() {
+        return transitions.getPerSecond();
+    }
+
+    @Override
+    public long getChainCount() {
+        return chains.getCount();
+    }
+
+    @Override
+    public double getChainsPerSecond() {
+        return chains.getPerSecond();
+    }
+
+    @Override
+    public Map<String, Long> getModelSizeBytes() {
+        return new TreeMap<>(modelSizes);
+    }
+
+    @Override
+    public long getTotalModelSizeBytes() {
+        long total = 0;
+        for (long size : modelSizes.values()) total += size;
+        return total;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMicros() {
+        Map<String, Double> summary = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            summary.put(name + ".count", (double) histogram.getCount());
+            summary.put(name + ".mean", histogram.getMean() / 1e3);
+            summary.put(name + ".p50", histogram.getValueAtPercentile(50, TimeUnit.MICROSECONDS));
+            summary.put(name + ".p90", histogram.getValueAtPercentile(90, TimeUnit.MICROSECONDS));
+            summary.put(name + ".p99", histogram.getValueAtPercentile(99, TimeUnit.MICROSECONDS));
+            summary.put(name + ".p999", histogram.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS));
+            summary.put(name + ".max", histogram.getMax() / 1e3);
+        }
+        return summary;
+    }
+
+    @Override
+    public Map<String, Double> getCacheStats() {
+        Map<String, Double> summary = new TreeMap<>();
+        for (Map.Entry<String, IntLruCache<?>> entry : caches.entrySet()) {
+            String name = entry.getKey();
+            IntLruCache<?> cache = entry.getValue();
+            summary.put(name + ".size", (double) cache.size());
+            summary.put(name + ".capacity", (double) cache.getCapacity());
+            summary.put(name + ".hits", (double) cache.getHits());
+            summary.put(name + ".misses", (double) cache.getMisses());
+            summary.put(name + ".evictions", (double) cache.getEvictions());
+            summary.put(name + ".hitRate", cache.getHitRate());
+        }
+        return summary;
+    }
+
+    @Override
+    public Map<String, Double> getPipelineStats() {
+        Map<String, Double> summary = new TreeMap<>();
+        for (StageStats stage : stages.values()) {
+            String name = stage.getName();
+            summary.put(name + ".workers", (double) stage.getWorkers());
+            summary.put(name + ".queueDepth", (double) stage.getQueueDepth());
+            summary.put(name + ".maxQueueDepth", (double) stage.getMaxQueueDepth());
+            summary.put(name + ".batches", (double) stage.getBatches());
+            summary.put(name + ".records", (double) stage.getRecords());
+            summary.put(name + ".recordsPerSecond", stage.getRecordsPerSecond());
+            summary.put(name + ".busyFraction", stage.getBusyFraction());
+        }
+        return summary;
+    }
+
+    @Override
+    public void reset() {
+        synchronized (phases) {
+            phases.clear();
+        }
+        tokens.reset();
+        transitions.reset();
+        chains.reset();
+        for (LatencyHistogram histogram : histograms.values()) histogram.reset();
+        modelSizes.clear();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * <code>com.github.vitineth.mkvc:type=Metrics,name=[name]</code>, replacing anything already registered there.
+     *
+     * @param name String the name to register under
+     * @return ObjectName the name the metrics were registered as
+     * @throws JMException If the metrics could not be registered.
+     */
+    public ObjectName register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+        if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+}
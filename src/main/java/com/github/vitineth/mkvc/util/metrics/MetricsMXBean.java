@@ -0,0 +1,77 @@
+package com.github.vitineth.mkvc.util.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface that {@link Metrics} is exposed through over JMX. Durations are in milliseconds and
+ * latencies in microseconds so that they read sensibly in a JMX console.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the total time spent in each phase that has been recorded, in the order they were first recorded.
+     *
+     * @return Map[String, Double] the milliseconds spent in each phase
+     */
+    Map<String, Double> getPhaseMillis();
+
+    long getTokenCount();
+
+    double getTokensPerSecond();
+
+    long getTransitionCount();
+
+    double getTransitionsPerSecond();
+
+    long getChainCount();
+
+    double getChainsPerSecond();
+
+    /**
+     * Returns the size of every model that has been recorded.
+     *
+     * @return Map[String, Long] the size in bytes of each model by name
+     */
+    Map<String, Long> getModelSizeBytes();
+
+    /**
+     * Returns the combined size of every model that has been recorded.
+     *
+     * @return long the size in bytes
+     */
+    long getTotalModelSizeBytes();
+
+    /**
+     * Returns a summary of every latency histogram, keyed by the histogram name followed by one of
+     * <code>.count</code>, <code>.mean</code>, <code>.p50</code>, <code>.p90</code>, <code>.p99</code>,
+     * <code>.p999</code> or <code>.max</code>.
+     *
+     * @return Map[String, Double] the summaries in microseconds, apart from the counts
+     */
+    Map<String, Double> getLatencyMicros();
+
+    /**
+     * Returns the statistics of every cache being watched, keyed by the cache name followed by one of
+     * <code>.size</code>, <code>.capacity</code>, <code>.hits</code>, <code>.misses</code>, <code>.evictions</code> or
+     * <code>.hitRate</code>. Cache statistics count from when the cache was created and are not cleared by
+     * {@link #reset()}.
+     *
+     * @return Map[String, Double] the statistics of each cache
+     */
+    Map<String, Double> getCacheStats();
+
+    /**
+     * Returns the statistics of every pipeline stage being watched, keyed by the stage name followed by one of
+     * <code>.workers</code>, <code>.queueDepth</code>, <code>.maxQueueDepth</code>, <code>.batches</code>,
+     * <code>.records</code>, <code>.recordsPerSecond</code> or <code>.busyFraction</code>. Like the cache statistics
+     * these belong to the stages and are not cleared by {@link #reset()}.
+     *
+     * @return Map[String, Double] the statistics of each stage
+     */
+    Map<String, Double> getPipelineStats();
+
+    /**
+     * Clears every metric.
+     */
+    void reset();
+}
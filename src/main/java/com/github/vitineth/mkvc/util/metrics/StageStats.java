@@ -0,0 +1,149 @@
+package com.github.vitineth.mkvc.util.metrics;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measurements of one stage of a pipeline: how deep the queue feeding it is, how many batches and records it has
+ * processed and how long its workers were busy. A stage that is busy nearly all of the time with a full queue in front
+ * of it is the bottleneck and wants more workers, while a stage with an empty queue and idle workers can give some up.
+ */
+public class StageStats {
+
+    /**
+     * The name of the stage
+     */
+    private final String name;
+    /**
+     * The number of workers the stage runs on
+     */
+    private final int workers;
+    /**
+     * The queue feeding the stage or null if it is the first stage
+     */
+    private final Queue<?> queue;
+    /**
+     * The records processed against the time the workers were busy
+     */
+    private final Throughput records = new Throughput();
+    /**
+     * The number of batches processed
+     */
+    private final AtomicLong batches = new AtomicLong();
+    /**
+     * The deepest the queue has been seen
+     */
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    /**
+     * When the stage was created, in nanoseconds
+     */
+    private final long created = System.nanoTime();
+    /**
+     * When the last worker of the stage finished, in nanoseconds, or 0 while it is still running
+     */
+    private volatile long finished;
+
+    /**
+     * Creates the statistics of a stage.
+     *
+     * @param name    String the name of the stage
+     * @param workers int the number of workers the stage runs on
+     * @param queue   Queue[?] the queue feeding the stage or null if it is the first stage
+     */
+    public StageStats(String name, int workers, Queue<?> queue) {
+        this.name = name;
+        this.workers = workers;
+        this.queue = queue;
+    }
+
+    /**
+     * Records a batch processed by one worker.
+     *
+     * @param count long the number of records in the batch
+     * @param nanos long the time the worker spent on it in nanoseconds
+     */
+    public void record(long count, long nanos) {
+        records.record(count, nanos);
+        batches.incrementAndGet();
+        int depth = getQueueDepth();
+        long max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) ;
+    }
+
+    /**
+     * Marks the stage as finished so that its rates stop counting time from here on.
+     */
+    public void finish() {
+        if (finished == 0) finished = System.nanoTime();
+    }
+
+    /**
+     * Returns the time the stage has been running for.
+     *
+     * @return long the nanoseconds from creation until it finished or until now if it is still running
+     */
+    private long getElapsedNanos() {
+        long end = finished;
+        return (end == 0 ? System.nanoTime() : end) - created;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the number of batches waiting for the stage.
+     *
+     * @return int the queue depth or 0 for the first stage
+     */
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Returns the deepest the queue was seen when a batch finished.
+     *
+     * @return long the largest queue depth
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getRecords() {
+        return records.getCount();
+    }
+
+    /**
+     * Returns the records processed per second of wall clock time while the stage was running.
+     *
+     * @return double the rate
+     */
+    public double getRecordsPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : getRecords() * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the fraction of the time the stage was running that its workers spent processing batches.
+     *
+     * @return double the busy fraction between 0 and 1
+     */
+    public double getBusyFraction() {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : Math.min(1d, records.getNanos() / ((double) elapsed * workers));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d workers, %d batches, %d records, %.1f records/s, %.0f%% busy, queue %d (max %d)",
+                name, workers, getBatches(), getRecords(), getRecordsPerSecond(), getBusyFraction() * 100, getQueueDepth(), getMaxQueueDepth());
+    }
+}
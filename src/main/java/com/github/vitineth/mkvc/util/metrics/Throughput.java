@@ -0,0 +1,57 @@
+package com.github.vitineth.mkvc.util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many items were processed and how long was spent processing them, giving the rate of items per second
+ * over every period recorded. Periods recorded from several threads at once are added together, so the rate is per
+ * thread rather than wall clock.
+ */
+public class Throughput {
+
+    /**
+     * The number of items processed
+     */
+    private final LongAdder count = new LongAdder();
+    /**
+     * The time spent processing them in nanoseconds
+     */
+    private final LongAdder nanos = new LongAdder();
+
+    /**
+     * Records a period of work.
+     *
+     * @param items long the number of items processed
+     * @param time  long the time it took in nanoseconds
+     */
+    public void record(long items, long time) {
+        count.add(items);
+        nanos.add(time);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * Returns the number of items processed per second across every period recorded.
+     *
+     * @return double the rate or 0 if no time has been recorded
+     */
+    public double getPerSecond() {
+        long time = getNanos();
+        return time <= 0 ? 0 : getCount() * 1e9 / time;
+    }
+
+    /**
+     * Clears the count and the time.
+     */
+    public void reset() {
+        count.reset();
+        nanos.reset();
+    }
+}
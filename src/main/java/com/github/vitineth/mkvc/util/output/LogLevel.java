@@ -0,0 +1,31 @@
+package com.github.vitineth.mkvc.util.output;
+
+/**
+ * The levels that {@link Logger} messages are written at, from least to most severe. Warnings and anything more severe
+ * are written to the error stream.
+ */
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR, SEVERE;
+
+    /**
+     * Returns if messages at this level are written to the error stream rather than the standard stream.
+     *
+     * @return boolean if this level is an error level
+     */
+    public boolean isError() {
+        return compareTo(WARN) >= 0;
+    }
+
+    /**
+     * Returns the level with the given name in any case.
+     *
+     * @param name String the name of the level
+     * @return LogLevel the level or null if there is no level with the name
+     */
+    public static LogLevel fromName(String name) {
+        for (LogLevel level : values()) {
+            if (level.name().equalsIgnoreCase(name)) return level;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.vitineth.mkvc.util.output;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring buffer that any number of threads can add to and a single thread takes from. Each slot carries a
+ * sequence number which says whether it is free for the producer of a given position or full for the consumer, so
+ * producers only contend on a single compare and swap of the tail and never take a lock or wait for the consumer.
+ *
+ * @param <T> the type of the elements
+ */
+class LogRingBuffer<T> {
+
+    /**
+     * The elements in each slot
+     */
+    private final AtomicReferenceArray<T> elements;
+    /**
+     * The sequence of each slot: equal to a position when the slot is free to be written at that position, and one
+     * past it once the element for that position has been written
+     */
+    private final AtomicLongArray sequences;
+    /**
+     * The capacity minus one, used to turn a position into a slot
+     */
+    private final int mask;
+    /**
+     * The next position to be written
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The next position to be read, only touched by the consumer
+     */
+    private long head;
+
+    /**
+     * Creates a ring buffer that holds at least the given number of elements.
+     *
+     * @param capacity int the capacity, rounded up to a power of two
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element if there is room for it. Safe to call from any thread.
+     *
+     * @param element T the element
+     * @return boolean true if it was added or false if the buffer is full
+     */
+    boolean offer(T element) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference < 0) return false;
+            if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                elements.set(slot, element);
+                sequences.set(slot, position + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element. Must only be called from the consumer thread.
+     *
+     * @return T the element or null if the buffer is empty
+     */
+    T poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) return null;
+        T element = elements.get(slot);
+        elements.set(slot, null);
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return element;
+    }
+}
@@ -3,16 +3,34 @@ package com.github.vitineth.mkvc.util.output;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
+ * Writes labelled, timestamped messages to the standard and error streams. Messages below the minimum level are
+ * skipped before anything is formatted, and the {@link Supplier} overloads skip building the message as well.
+ * <br><br>
+ * By default every message is written and flushed on the calling thread. {@link #startAsync(int)} instead hands
+ * messages to a bounded {@link LogRingBuffer} which a single writer thread drains, formatting them and flushing only
+ * once the buffer is empty, so logging threads never take a lock or wait on I/O. If the buffer is full, debug and info
+ * messages are dropped and counted while warnings and errors wait for room.
+ * <br><br>
  * Created by Ryan on 20/10/2016.
  */
 public class Logger {
 
     private static OutputStream stdoutOutput = System.out;
     private static OutputStream stderrOutput = System.err;
-    private static SimpleDateFormat dateFormat = new SimpleDateFormat("[yyyy/MM/dd HH:mm:ss z]");
+    private static DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("'['yyyy/MM/dd HH:mm:ss z']'").withZone(ZoneId.systemDefault());
+    private static volatile LogLevel minimumLevel = LogLevel.DEBUG;
+    private static volatile AsyncWriter asyncWriter;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Object writeLock = new Object();
+    private static boolean shutdownHookAdded;
 
     public static void setStdoutOutput(OutputStream stdoutOutput) {
         Logger.stdoutOutput = stdoutOutput;
@@ -30,37 +48,300 @@ public class Logger {
         return stderrOutput;
     }
 
-    public static void setDateFormat(SimpleDateFormat dateFormat) {
+    /**
+     * Sets the format of the timestamp at the start of every message. The formatter must have a zone if it prints any
+     * zone or date fields, see {@link DateTimeFormatter#withZone(ZoneId)}.
+     *
+     * @param dateFormat DateTimeFormatter the format
+     */
+    public static void setDateFormat(DateTimeFormatter dateFormat) {
         Logger.dateFormat = dateFormat;
     }
 
-    public static SimpleDateFormat getDateFormat() {
+    /**
+     * Sets the format of the timestamp from a {@link SimpleDateFormat}, converting its pattern and time zone to a
+     * {@link DateTimeFormatter}. Pattern letters mean the same in both except for the few that
+     * {@link DateTimeFormatter} redefines, such as <code>u</code>.
+     *
+     * @param dateFormat SimpleDateFormat the format
+     * @deprecated Use {@link #setDateFormat(DateTimeFormatter)}, which is safe to share between threads.
+     */
+    @Deprecated
+    public static void setDateFormat(SimpleDateFormat dateFormat) {
+        setDateFormat(DateTimeFormatter.ofPattern(toFormatterPattern(dateFormat.toPattern())).withZone(dateFormat.getTimeZone().toZoneId()));
+    }
+
+    public static DateTimeFormatter getDateFormat() {
         return dateFormat;
     }
 
-    private static void out(String level, String label, String message, boolean useError) {
-        try {
-            if (useError) {
-                stderrOutput.write((dateFormat.format(new Date()) + "[" + level + "\\" + label + "]: " + message + "\n").getBytes());
-                stderrOutput.flush();
+    /**
+     * Converts a {@link SimpleDateFormat} pattern to a {@link DateTimeFormatter} one by quoting the characters that
+     * only have a meaning in the latter, which are the optional section brackets and the reserved characters.
+     *
+     * @param pattern String the {@link SimpleDateFormat} pattern
+     * @return String the {@link DateTimeFormatter} pattern
+     */
+    private static String toFormatterPattern(String pattern) {
+        StringBuilder builder = new StringBuilder(pattern.length() + 8);
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            if (!quoted && "[]{}#".indexOf(c) != -1) {
+                builder.append('\'').append(c).append('\'');
             } else {
-                stdoutOutput.write((dateFormat.format(new Date()) + "[" + level + "\\" + label + "]: " + message + "\n").getBytes());
-                stdoutOutput.flush();
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sets the least severe level that is written. Anything below it is skipped without being formatted.
+     *
+     * @param minimumLevel LogLevel the minimum level
+     */
+    public static void setMinimumLevel(LogLevel minimumLevel) {
+        Logger.minimumLevel = minimumLevel;
+    }
+
+    public static LogLevel getMinimumLevel() {
+        return minimumLevel;
+    }
+
+    /**
+     * Returns if messages at the given level are written, so that callers can skip expensive work for disabled levels.
+     *
+     * @param level LogLevel the level
+     * @return boolean if the level is enabled
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return level.compareTo(minimumLevel) >= 0;
+    }
+
+    /**
+     * Switches to asynchronous logging through a ring buffer of the given capacity and a single writer thread. Anything
+     * left in the buffer is written out by {@link #stopAsync()}, which is also run when the JVM shuts down. Does nothing
+     * if asynchronous logging has already been started.
+     *
+     * @param capacity int the number of messages the buffer can hold
+     */
+    public static synchronized void startAsync(int capacity) {
+        if (asyncWriter != null) return;
+        AsyncWriter writer = new AsyncWriter(capacity);
+        writer.start();
+        asyncWriter = writer;
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Logger::stopAsync, "logger-shutdown"));
+            shutdownHookAdded = true;
+        }
+    }
+
+    /**
+     * Switches back to synchronous logging, waiting for the writer thread to write out everything already in the
+     * buffer. Does nothing if asynchronous logging is not running.
+     */
+    public static synchronized void stopAsync() {
+        AsyncWriter writer = asyncWriter;
+        if (writer == null) return;
+        asyncWriter = null;
+        writer.running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writer.finished = true;
+        writer.drain();
+    }
+
+    public static boolean isAsync() {
+        return asyncWriter != null;
+    }
+
+    /**
+     * Returns the number of messages dropped because the asynchronous buffer was full.
+     *
+     * @return long the number of dropped messages
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void out(LogLevel level, String label, String message, Throwable throwable) {
+        if (!isEnabled(level)) return;
+        Entry entry = new Entry(level, label, message, throwable, System.currentTimeMillis());
+
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            while (true) {
+                if (writer.buffer.offer(entry)) {
+                    //The writer may have stopped before taking the message, in which case nothing else will.
+                    if (writer.finished) writer.drain();
+                    return;
+                }
+                if (!level.isError()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                //Warnings and errors are never dropped, so wait for the writer to make room or to be stopped.
+                if (asyncWriter != writer) break;
+                LockSupport.parkNanos(10000);
             }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        entry.format(builder);
+        synchronized (writeLock) {
+            write(level.isError() ? stderrOutput : stdoutOutput, builder);
+        }
+    }
+
+    private static void out(LogLevel level, String label, Supplier<String> message) {
+        if (isEnabled(level)) out(level, label, message.get(), null);
+    }
+
+    private static void write(OutputStream output, StringBuilder builder) {
+        try {
+            output.write(builder.toString().getBytes());
+            output.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * A single message waiting to be written.
+     */
+    private static class Entry {
+        private final LogLevel level;
+        private final String label;
+        private final String message;
+        private final Throwable throwable;
+        private final long time;
+
+        Entry(LogLevel level, String label, String message, Throwable throwable, long time) {
+            this.level = level;
+            this.label = label;
+            this.message = message;
+            this.throwable = throwable;
+            this.time = time;
+        }
+
+        /**
+         * Appends the message, followed by a line for each element of the stack trace if there is one, each in the form
+         * <code>[timestamp][LEVEL\label]: message</code>.
+         *
+         * @param builder StringBuilder the builder to append to
+         */
+        void format(StringBuilder builder) {
+            String prefix = dateFormat.format(Instant.ofEpochMilli(time)) + "[" + level + "\\" + label + "]: ";
+            builder.append(prefix).append(message).append('\n');
+            if (throwable != null) {
+                for (StackTraceElement element : throwable.getStackTrace()) builder.append(prefix).append(element).append('\n');
+            }
+        }
+    }
+
+    /**
+     * The thread that drains the ring buffer. Messages are formatted into one buffer per stream which is written when
+     * it grows large or the ring buffer runs dry, so the streams are flushed once per batch rather than per message.
+     */
+    private static class AsyncWriter extends Thread {
+
+        private static final int BATCH_SIZE = 8192;
+        private static final long IDLE_NANOS = 1000000;
+
+        private final LogRingBuffer<Entry> buffer;
+        private final StringBuilder stdout = new StringBuilder();
+        private final StringBuilder stderr = new StringBuilder();
+        private final Object drainLock = new Object();
+        private volatile boolean running = true;
+        private volatile boolean finished;
+        private long reportedDropped;
+
+        AsyncWriter(int capacity) {
+            super("logger-writer");
+            setDaemon(true);
+            buffer = new LogRingBuffer<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry = buffer.poll();
+                if (entry != null) {
+                    StringBuilder builder = entry.level.isError() ? stderr : stdout;
+                    entry.format(builder);
+                    if (builder.length() >= BATCH_SIZE) flush(builder);
+                    continue;
+                }
+
+                reportDropped();
+                flush(stdout);
+                flush(stderr);
+                if (!running) {
+                    if ((entry = buffer.poll()) == null) return;
+                    entry.format(entry.level.isError() ? stderr : stdout);
+                    continue;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+
+        /**
+         * Writes out anything left in the buffer once the thread has ended. A thread that saw the writer before it was
+         * stopped can still add a message after the last poll of the writer thread, so {@link #stopAsync()} and any such
+         * thread call this, taking turns as the buffer only has one consumer at a time.
+         */
+        private void drain() {
+            synchronized (drainLock) {
+                Entry entry;
+                while ((entry = buffer.poll()) != null) {
+                    StringBuilder builder = new StringBuilder();
+                    entry.format(builder);
+                    synchronized (writeLock) {
+                        write(entry.level.isError() ? stderrOutput : stdoutOutput, builder);
+                    }
+                }
+            }
+        }
+
+        private void reportDropped() {
+            long total = dropped.get();
+            if (total == reportedDropped) return;
+            new Entry(LogLevel.WARN, "Logger", (total - reportedDropped) + " messages were dropped because the log buffer was full", null, System.currentTimeMillis()).format(stderr);
+            reportedDropped = total;
+        }
+
+        private void flush(StringBuilder builder) {
+            if (builder.length() == 0) return;
+            synchronized (writeLock) {
+                write(builder == stderr ? stderrOutput : stdoutOutput, builder);
+            }
+            builder.setLength(0);
+        }
+    }
+
     public static void debug(String label, String message) {
-        out("DEBUG", label, message, false);
+        out(LogLevel.DEBUG, label, message, null);
+    }
+
+    /**
+     * Writes the message built by the supplier, which is only called if the debug level is enabled.
+     *
+     * @param label   String the label of the message
+     * @param message Supplier[String] builds the message
+     */
+    public static void debug(String label, Supplier<String> message) {
+        out(LogLevel.DEBUG, label, message);
     }
 
     public static void debug(String label, String message, Throwable throwable) {
-        out("DEBUG", label, message, false);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            out("DEBUG", label, element.toString(), false);
-        }
+        out(LogLevel.DEBUG, label, message, throwable);
     }
 
     public static void d(String label, String message) {
@@ -72,14 +353,21 @@ public class Logger {
     }
 
     public static void info(String label, String message) {
-        out("INFO", label, message, false);
+        out(LogLevel.INFO, label, message, null);
+    }
+
+    /**
+     * Writes the message built by the supplier, which is only called if the info level is enabled.
+     *
+     * @param label   String the label of the message
+     * @param message Supplier[String] builds the message
+     */
+    public static void info(String label, Supplier<String> message) {
+        out(LogLevel.INFO, label, message);
     }
 
     public static void info(String label, String message, Throwable throwable) {
-        out("INFO", label, message, false);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            out("INFO", label, element.toString(), false);
-        }
+        out(LogLevel.INFO, label, message, throwable);
     }
 
     public static void i(String label, String message) {
@@ -91,14 +379,21 @@ public class Logger {
     }
 
     public static void warn(String label, String message) {
-        out("WARN", label, message, true);
+        out(LogLevel.WARN, label, message, null);
+    }
+
+    /**
+     * Writes the message built by the supplier, which is only called if the warn level is enabled.
+     *
+     * @param label   String the label of the message
+     * @param message Supplier[String] builds the message
+     */
+    public static void warn(String label, Supplier<String> message) {
+        out(LogLevel.WARN, label, message);
     }
 
     public static void warn(String label, String message, Throwable throwable) {
-        out("WARN", label, message, true);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            out("WARN", label, element.toString(), true);
-        }
+        out(LogLevel.WARN, label, message, throwable);
     }
 
     public static void w(String label, String message) {
@@ -110,14 +405,21 @@ public class Logger {
     }
 
     public static void error(String label, String message) {
-        out("ERROR", label, message, true);
+        out(LogLevel.ERROR, label, message, null);
+    }
+
+    /**
+     * Writes the message built by the supplier, which is only called if the error level is enabled.
+     *
+     * @param label   String the label of the message
+     * @param message Supplier[String] builds the message
+     */
+    public static void error(String label, Supplier<String> message) {
+        out(LogLevel.ERROR, label, message);
     }
 
     public static void error(String label, String message, Throwable throwable) {
-        out("ERROR", label, message, true);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            out("ERROR", label, element.toString(), true);
-        }
+        out(LogLevel.ERROR, label, message, throwable);
     }
 
     public static void e(String label, String message) {
@@ -129,14 +431,21 @@ public class Logger {
     }
 
     public static void severe(String label, String message) {
-        out("SEVERE", label, message, true);
+        out(LogLevel.SEVERE, label, message, null);
+    }
+
+    /**
+     * Writes the message built by the supplier, which is only called if the severe level is enabled.
+     *
+     * @param label   String the label of the message
+     * @param message Supplier[String] builds the message
+     */
+    public static void severe(String label, Supplier<String> message) {
+        out(LogLevel.SEVERE, label, message);
     }
 
     public static void severe(String label, String message, Throwable throwable) {
-        out("SEVERE", label, message, true);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            out("SEVERE", label, element.toString(), true);
-        }
+        out(LogLevel.SEVERE, label, message, throwable);
     }
 
     public static void s(String label, String message) {
@@ -1,5 +1,6 @@
 package com.github.vitineth.mkvc.util.time;
 
+import com.github.vitineth.mkvc.util.metrics.Metrics;
 import com.github.vitineth.mkvc.util.output.Logger;
 
 import java.util.ArrayList;
@@ -9,7 +10,7 @@ import java.util.concurrent.TimeUnit;
 /**
  * A timer tool that breaks a task into parts and measures each one individually. Each task is stored and will be
  * outputted as a block either to a string or to the console using the {@link Logger#info(String, String)} from the
- * Logger.
+ * Logger. If {@link Metrics} are attached every lap is also recorded there as a phase.
  * <br><br>
  * Created by Ryan on 22/10/2016.
  */
@@ -31,12 +32,16 @@ public class SegmentedTimerTool {
      * The region currently being measured
      */
     private TimerRegion activeRegion;
+    /**
+     * The metrics each lap is recorded to, or null if laps are only kept by the timer
+     */
+    private Metrics metrics;
 
     /**
      * Creates a timer tool with the given precision
      *
      * @param precision Precision the precision to which the output should be given. The total time will always be
-     *                  printed in seconds
+     *                  printed in fractional seconds
      */
     public SegmentedTimerTool(TimerTool.Precision precision) {
         regionList = new ArrayList<>();
@@ -44,6 +49,19 @@ public class SegmentedTimerTool {
         activeRegion = new TimerRegion(0, 0);
     }
 
+    /**
+     * Attaches metrics which every lap from now on is recorded to as a phase.
+     *
+     * @param metrics Metrics the metrics or null to stop recording them
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Starts the active timer region ({@link #lap(String)} should be called before this if start has already been
      * called)
@@ -65,12 +83,16 @@ public class SegmentedTimerTool {
      * Laps the given task with the given task name. It will reset the timer region back to 0 ready to be used again.
      *
      * @param task String the task name that was measured
+     * @return long the time the task took in nanoseconds
      */
-    public void lap(String task) {
+    public long lap(String task) {
         activeRegion.setEndTime(System.nanoTime());
         activeRegion.setTask(task);
         regionList.add(activeRegion);
+        long difference = activeRegion.getDifference();
         activeRegion = new TimerRegion(0, 0);
+        if (metrics != null) metrics.recordPhase(task, difference);
+        return difference;
     }
 
     /**
@@ -93,12 +115,7 @@ public class SegmentedTimerTool {
      * </code>
      */
     public void printStatistics() {
-        Logger.i("SegmentedTimerTool[" + hashCode() + "]", "Segmented Timer Statistics:");
-        for (TimerRegion region : regionList) {
-            Logger.i("SegmentedTimerTool[" + hashCode() + "]", "|-- '" + region.getTask() + "' completed in '" + precision.getTimeUnit().convert(region.getDifference(), TimeUnit.NANOSECONDS) + "' milliseconds.");
-        }
-        Logger.i("SegmentedTimerTool[" + hashCode() + "]", "|-- Total timer task completed in '" + TimeUnit.SECONDS.convert(finalEnd - regionList.get(0).getStartTime(), TimeUnit.NANOSECONDS) + "' seconds.");
-        Logger.i("SegmentedTimerTool[" + hashCode() + "]", "|--------------------->");
+        for (String line : getStatisticLines()) Logger.i("SegmentedTimerTool[" + hashCode() + "]", line);
     }
 
     /**
@@ -117,16 +134,27 @@ public class SegmentedTimerTool {
      * @return The timer statistics
      */
     public String getStatistics() {
-        StringBuilder builder = new StringBuilder();
+        return String.join(System.lineSeparator(), getStatisticLines());
+    }
 
-        builder.append("Segmented Timer Statistics:");
+    /**
+     * Builds the lines of the statistics output. Each lap is given in the unit of the precision and the total is given
+     * in seconds to the millisecond.
+     *
+     * @return List[String] the lines
+     */
+    private List<String> getStatisticLines() {
+        List<String> lines = new ArrayList<>();
+        String unit = precision.getTimeUnit().name().toLowerCase();
+
+        lines.add("Segmented Timer Statistics:");
         for (TimerRegion region : regionList) {
-            builder.append("|-- '").append(region.getTask()).append("' completed in '").append(precision.getTimeUnit().convert(region.getDifference(), TimeUnit.NANOSECONDS)).append("' milliseconds.");
+            lines.add("|-- '" + region.getTask() + "' completed in '" + precision.getTimeUnit().convert(region.getDifference(), TimeUnit.NANOSECONDS) + "' " + unit + ".");
         }
-        builder.append("|-- Total timer task completed in '").append(TimeUnit.SECONDS.convert(finalEnd - regionList.get(0).getStartTime(), TimeUnit.NANOSECONDS)).append("' seconds.");
-        builder.append("|--------------------->");
-
-        return builder.toString();
+        long total = regionList.isEmpty() ? 0 : finalEnd - regionList.get(0).getStartTime();
+        lines.add("|-- Total timer task completed in '" + String.format("%.3f", total / 1e9) + "' seconds.");
+        lines.add("|--------------------->");
+        return lines;
     }
 
 }
@@ -1,5 +1,7 @@
 package com.github.vitineth.mkvc.word;
 
+import java.util.HashMap;
+
 /**
  * The various types of words that are considered valid by the sentence parser.
  * <p>
@@ -8,6 +10,19 @@ package com.github.vitineth.mkvc.word;
 public enum WordType {
     COORDINATING_CONJUNCTION("CC"), CARDINAL_NUMBER("CD"), DETERMINER("DT"), EXISTENIAL_THERE("EX"), FOREIGN_WORD("FW"), PREPOSITION("IN"), ADJECTIVE("JJR|JJS|JJ"), LIST_ITEM_MARKER("LS"), MODAL("MD"), NOUN("NNS|NN"), PROPER_NOUN("NNPS|NNP"), PREDETERMINER("PDT"), POSSESSIVE_ENDING("POS"), PERSONAL_PRONOUN("PRP"), POSSESSIVE_PRONOUN("PRP\\$"), ADVERB("RBR|RBS|RB"), PARTICLE("RP"), SYMBOL("SYM"), TO("TO"), INTERJECTION("UH"), VERB("VBZ|VBP|VBN|VBG|VBD|VB"), WH("WRB|WP\\$|WP|WDT"), ANY(null);
 
+    /**
+     * Every Penn Treebank tag that maps onto a word type other than {@link #ANY}
+     */
+    private static final String[] TAGS = {"CC", "CD", "DT", "EX", "FW", "IN", "JJ", "JJR", "JJS", "LS", "MD", "NN", "NNS", "NNP", "NNPS", "PDT", "POS", "PRP", "PRP$", "RB", "RBR", "RBS", "RP", "SYM", "TO", "UH", "VB", "VBD", "VBG", "VBN", "VBP", "VBZ", "WDT", "WP", "WP$", "WRB"};
+    /**
+     * The word type of each tag in {@link #TAGS}, worked out once through the matchers so lookups need no regex
+     */
+    private static final HashMap<String, WordType> TAG_TYPES = new HashMap<>();
+
+    static {
+        for (String tag : TAGS) TAG_TYPES.put(tag, matchPattern(tag));
+    }
+
     private String matcher;
 
     WordType(String matcher) {
@@ -19,12 +34,34 @@ public enum WordType {
     }
 
     /**
-     * Matches the given type to one of the word types and if none can be found then it returns {@link #ANY}
+     * Matches the given type to one of the word types and if none can be found then it returns {@link #ANY}. Known
+     * tags are resolved through a precomputed table and only unknown ones are matched against each pattern.
      *
      * @param type String the name of the word
      * @return WordType the corresponding word type
      */
     public static WordType match(String type) {
+        WordType wordType = TAG_TYPES.get(type);
+        return wordType != null ? wordType : matchPattern(type);
+    }
+
+    /**
+     * Returns the word type for a Penn Treebank tag through a single table lookup.
+     *
+     * @param tag String the tag
+     * @return WordType the corresponding word type or null if the tag is not one that the parser considers valid
+     */
+    public static WordType fromTag(String tag) {
+        return TAG_TYPES.get(tag);
+    }
+
+    /**
+     * Matches the given type against the matcher of every word type in turn, returning {@link #ANY} if none match.
+     *
+     * @param type String the name of the word
+     * @return WordType the corresponding word type
+     */
+    private static WordType matchPattern(String type) {
         for (WordType wordType : WordType.values()) {
             if (wordType == ANY) continue;
             if (type.matches(wordType.getMatcher())) return wordType;